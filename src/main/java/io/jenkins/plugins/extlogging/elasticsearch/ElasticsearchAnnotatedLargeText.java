@@ -0,0 +1,268 @@
+package io.jenkins.plugins.extlogging.elasticsearch;
+
+import hudson.console.AnnotatedLargeText;
+import hudson.console.ConsoleAnnotationOutputStream;
+import hudson.console.ConsoleAnnotator;
+import hudson.console.PlainTextConsoleOutputStream;
+import hudson.remoting.ObjectInputStreamEx;
+import io.jenkins.plugins.extlogging.elasticsearch.util.LogCache;
+import io.jenkins.plugins.extlogging.elasticsearch.util.ReadCoalescer;
+import io.jenkins.plugins.extlogging.elasticsearch.util.TailBuffer;
+import jenkins.model.Jenkins;
+import jenkins.security.CryptoConfidentialKey;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.framework.io.ByteBuffer;
+import org.kohsuke.stapler.framework.io.CharSpool;
+import org.kohsuke.stapler.framework.io.LineEndNormalizingWriter;
+import org.kohsuke.stapler.framework.io.WriterOutputStream;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+//TODO: replace
+import com.trilead.ssh2.crypto.Base64;
+
+import static java.lang.Math.abs;
+
+/**
+ * Log text which is read from Elasticsearch page by page while it is written to the output.
+ * Nothing is buffered beyond the current page, so the first lines are sent as soon as the first page arrives.
+ * <p>
+ * Offsets are not byte positions, but cursors over the sequence numbers stored with the log documents.
+ * A progressive read from the offset returned by the previous one fetches only the documents written since,
+ * instead of reading the whole log again and skipping the already sent part.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class ElasticsearchAnnotatedLargeText<T> extends AnnotatedLargeText<T> {
+
+    @Nonnull
+    private final ElasticsearchLogLargeTextProvider provider;
+    private final boolean completed;
+    @CheckForNull
+    private final T context;
+
+    public ElasticsearchAnnotatedLargeText(@Nonnull ElasticsearchLogLargeTextProvider provider, boolean completed,
+                                           @CheckForNull T context) {
+        super(new ByteBuffer(), StandardCharsets.UTF_8, completed, context);
+        this.provider = provider;
+        this.completed = completed;
+        this.context = context;
+    }
+
+    /**
+     * Writes the log with its console notes.
+     * Complete logs of finished builds are served from {@link LogCache} and recorded there on a miss.
+     * @return Offset to continue from
+     */
+    @Override
+    public long writeRawLogTo(long start, OutputStream out) throws IOException {
+        String key = completed ? provider.getCacheKey() : null;
+        if (key == null) {
+            // Running builds, the log may still change
+            return completed ? pull(start, out) : pullWithTail(start, out);
+        }
+        LogCache cache = LogCache.get();
+        LogCache.Entry entry = cache.lookup(key);
+        if (entry != null) {
+            if (start == 0) {
+                entry.writeTo(out);
+                return entry.getEnd();
+            }
+            if (start >= entry.getEnd()) {
+                // Nothing new, the log cannot change anymore
+                return entry.getEnd();
+            }
+        } else if (start == 0) {
+            LogCache.Recorder recorder = new LogCache.Recorder(out, cache.getMaxEntrySize());
+            long r = pull(start, recorder);
+            LogCache.Entry recorded = recorder.toEntry(r);
+            if (recorded != null) {
+                cache.put(key, recorded);
+            }
+            return r;
+        }
+        // Partial reads are rare for finished builds, they are not cached
+        return pull(start, out);
+    }
+
+    /**
+     * Reads the log of a running build.
+     * Recent documents are taken from {@link TailBuffer}, as they may not be searchable yet.
+     * Reads of the live console which start within the buffer do not query Elasticsearch at all.
+     */
+    private long pullWithTail(long start, @Nonnull OutputStream out) throws IOException {
+        String key = provider.getLogKey();
+        TailBuffer tail = key != null ? TailBuffer.find(key) : null;
+        if (tail == null) {
+            return pull(start, out);
+        }
+        if (start > 0 && tail.covers(start)) {
+            return tail.writeTo(start, out);
+        }
+        // Stitched by the sequence number, the buffer writes only what comes after the search results.
+        // If it has dropped some of the documents in between, they are read from Elasticsearch next time
+        long end = pull(start, out);
+        return tail.covers(end) ? tail.writeTo(end, out) : end;
+    }
+
+    /**
+     * Reads the log from Elasticsearch.
+     * Concurrent reads of the same range share a single query.
+     */
+    private long pull(long start, @Nonnull OutputStream out) throws IOException {
+        String key = provider.getLogKey();
+        if (key == null) {
+            return query(start, out);
+        }
+        return ReadCoalescer.get().read(key + "@" + start, out, o -> query(start, o));
+    }
+
+    private long query(long start, @Nonnull OutputStream out) throws IOException {
+        // Encodes as the characters arrive, without materializing the text
+        Writer w = new OutputStreamWriter(out, charset);
+        long r = provider.writeLogTo(start, w);
+        w.flush();
+        return r;
+    }
+
+    @Override
+    public long writeLogTo(long start, OutputStream out) throws IOException {
+        PlainTextConsoleOutputStream plain = new PlainTextConsoleOutputStream(out);
+        long r = writeRawLogTo(start, plain);
+        plain.flush();
+        return r;
+    }
+
+    @Override
+    public long writeLogTo(long start, Writer w) throws IOException {
+        if (isHtml()) {
+            return writeHtmlTo(start, w);
+        }
+        WriterOutputStream out = new WriterOutputStream(w, charset);
+        long r = writeLogTo(start, out);
+        out.flush();
+        return r;
+    }
+
+    @Override
+    public long writeHtmlTo(long start, Writer w) throws IOException {
+        ConsoleAnnotationOutputStream caw = new ConsoleAnnotationOutputStream(
+                w, createAnnotator(Stapler.getCurrentRequest()), context, charset);
+        long r = writeRawLogTo(start, caw);
+        caw.flush();
+        return r;
+    }
+
+    /**
+     * The base implementation checks the offset against the length of the in-memory buffer,
+     * which is always empty here.
+     */
+    @Override
+    public void doProgressText(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        setContentType(rsp);
+        rsp.setStatus(200);
+
+        long start = 0;
+        String s = req.getParameter("start");
+        if (s != null) {
+            try {
+                start = Math.max(0, Long.parseLong(s));
+            } catch (NumberFormatException ex) {
+                // Start from scratch
+            }
+        }
+
+        // The size header has to precede the text
+        CharSpool spool = new CharSpool();
+        CountingWriter counter = new CountingWriter(spool);
+        long r = writeLogTo(start, counter);
+        rsp.addHeader("X-Text-Size", String.valueOf(r));
+        if (!completed) {
+            rsp.addHeader("X-More-Data", "true");
+        }
+        // Offsets are not sizes, the size decides on compression
+        Writer w = createWriter(req, rsp, counter.count);
+        spool.writeTo(new LineEndNormalizingWriter(w));
+        w.close();
+    }
+
+    private static boolean isHtml() {
+        StaplerRequest req = Stapler.getCurrentRequest();
+        return req != null && req.getAttribute("html") != null;
+    }
+
+    /**
+    * Used for sending the state of ConsoleAnnotator to the client, because we are deserializing this object later.
+    */
+    private static final CryptoConfidentialKey PASSING_ANNOTATOR = new CryptoConfidentialKey(AnnotatedLargeText.class,"consoleAnnotator");
+
+
+    private ConsoleAnnotator createAnnotator(StaplerRequest req) throws IOException {
+        try {
+            String base64 = req!=null ? req.getHeader("X-ConsoleAnnotator") : null;
+            if (base64!=null) {
+                Cipher sym = PASSING_ANNOTATOR.decrypt();
+
+                ObjectInputStream ois = new ObjectInputStreamEx(new GZIPInputStream(
+                        new CipherInputStream(new ByteArrayInputStream(Base64.decode(base64.toCharArray())),sym)),
+                        Jenkins.getInstance().pluginManager.uberClassLoader);
+                try {
+                    long timestamp = ois.readLong();
+                    if (TimeUnit.HOURS.toMillis(1) > abs(System.currentTimeMillis()-timestamp))
+                        // don't deserialize something too old to prevent a replay attack
+                        return (ConsoleAnnotator)ois.readObject();
+                } finally {
+                    ois.close();
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        // start from scratch
+        return ConsoleAnnotator.initial(context==null ? null : context.getClass());
+    }
+
+    private static final class CountingWriter extends FilterWriter {
+
+        private long count;
+
+        CountingWriter(@Nonnull Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            count++;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            count += len;
+        }
+    }
+}
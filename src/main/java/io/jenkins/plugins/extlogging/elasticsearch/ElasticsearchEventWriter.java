@@ -1,21 +1,39 @@
 
 package io.jenkins.plugins.extlogging.elasticsearch;
 
+import hudson.remoting.Channel;
 import io.jenkins.plugins.extlogging.api.Event;
 import io.jenkins.plugins.extlogging.api.ExternalLoggingEventWriter;
 
+import io.jenkins.plugins.extlogging.elasticsearch.util.BulkIndexer;
+import io.jenkins.plugins.extlogging.elasticsearch.util.ChunkBuilder;
+import io.jenkins.plugins.extlogging.elasticsearch.util.CircuitBreaker;
+import io.jenkins.plugins.extlogging.elasticsearch.util.DocumentTemplate;
 import io.jenkins.plugins.extlogging.elasticsearch.util.ElasticSearchDao;
 import io.jenkins.plugins.extlogging.elasticsearch.util.JSONConsoleNotes;
-import net.sf.json.JSONObject;
+import io.jenkins.plugins.extlogging.elasticsearch.util.JsonBuffer;
+import io.jenkins.plugins.extlogging.elasticsearch.util.NoteDictionary;
+import io.jenkins.plugins.extlogging.elasticsearch.util.RetryPolicy;
+import io.jenkins.plugins.extlogging.elasticsearch.util.TailBuffer;
+import io.jenkins.plugins.extlogging.elasticsearch.util.TailSink;
+import io.jenkins.plugins.extlogging.elasticsearch.util.Utf8;
 import org.apache.commons.lang.exception.ExceptionUtils;
-import org.apache.commons.lang.time.FastDateFormat;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.Calendar;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,18 +41,170 @@ public class ElasticsearchEventWriter extends ExternalLoggingEventWriter {
 
     private static final long serialVersionUID = 1L;
     private static final Logger LOGGER = Logger.getLogger(ElasticsearchEventWriter.class.getName());
-    private static final FastDateFormat MILLIS_FORMATTER = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+    /**
+     * Sequence numbers per millisecond of the event time.
+     */
+    static final long SEQ_PER_MILLI = 1000;
+    /**
+     * Writers of a build use distinct remainders of the sequence numbers modulo this,
+     * so that documents of two writers never get the same sequence number.
+     * It divides {@link #SEQ_PER_MILLI}, so a writer may write {@code SEQ_PER_MILLI / WRITER_SLOTS} documents
+     * per millisecond before its sequence numbers get ahead of the clock.
+     * More writers than slots share them, their documents collide only if they are written in the same millisecond.
+     */
+    static final int WRITER_SLOTS = 100;
+    private static final byte[] NEWLINE = {'\n'};
 
     @CheckForNull
     private final String prefix;
     @Nonnull
     private final ElasticSearchDao dao;
-    private boolean connectionBroken;
+    @Nonnull
+    private final ElasticsearchWriterConfiguration config;
+    @Nonnull
+    private final DocumentTemplate template;
+    /**
+     * Shard routing value of the documents, see {@link ElasticsearchWriterConfiguration#getShardRouting(String, int)}.
+     */
+    @CheckForNull
+    private String routing;
+
+    /**
+     * Number of lines written so far.
+     * Not transient, so that a copy deserialized on the agent continues the numbering instead of starting over.
+     */
+    private long lines;
+    /**
+     * Number of bytes written so far, in UTF-8 and including line terminators.
+     */
+    private long bytes;
+
+    /**
+     * Controller time when the writer was serialized, see {@link #clockOffset}.
+     */
+    private long serializedAt;
+
+    /**
+     * Created lazily, so that the writer starts its own buffer after being deserialized on the agent.
+     */
+    @CheckForNull
+    private transient BulkIndexer indexer;
+    @CheckForNull
+    private transient CircuitBreaker breaker;
+    /**
+     * Reused for serializing events, so that steady-state serialization does not allocate.
+     */
+    @CheckForNull
+    private transient JsonBuffer documentBuffer;
+    /**
+     * Reused for finding the console notes of lines, so that every line is searched once.
+     */
+    @CheckForNull
+    private transient JSONConsoleNotes.NoteScan noteScan;
+    @CheckForNull
+    private transient byte[] encodedPrefix;
+    @CheckForNull
+    private transient byte[] lineBuffer;
+    /**
+     * Lines which are not sent yet in the chunked mode.
+     */
+    @CheckForNull
+    private transient ChunkBuilder chunk;
+    /**
+     * Documents which are ready, but not passed to the {@link #indexer} yet.
+     * They are produced under the writer lock and delivered after it is released,
+     * so that a full buffer or a retry backoff does not block other threads using the writer.
+     */
+    @CheckForNull
+    private transient ArrayDeque<byte[]> outbox;
+    /**
+     * Held while the {@link #outbox} is delivered.
+     */
+    @CheckForNull
+    private transient ReentrantLock deliveryLock;
+    /**
+     * Notes written so far, if the note dictionary is enabled.
+     * A deserialized copy starts with an empty one and writes the notes again.
+     */
+    @CheckForNull
+    private transient NoteDictionary noteDictionary;
+    /**
+     * Incremented whenever a chunk is sealed, so that a stale timer does not seal a newer chunk.
+     */
+    private transient long chunkGeneration;
+    /**
+     * Sequence number of the last document.
+     */
+    private transient long lastSeq;
+    /**
+     * Remainder of the sequence numbers of this writer, see {@link #WRITER_SLOTS}.
+     * Copies get theirs when they are serialized.
+     */
+    @CheckForNull
+    private transient Integer slot;
+    /**
+     * Difference between the controller clock and the local clock, estimated when the writer was received
+     * through remoting. Sequence numbers follow the controller clock, so that documents of agents with a clock
+     * which is behind do not arrive later than the readers expect, see {@code ElasticsearchLogLargeTextProvider}.
+     */
+    private transient long clockOffset;
+    /**
+     * Identifies this instance of the writer.
+     * Every deserialized copy gets its own, so that line numbers are unique per writer id.
+     */
+    @CheckForNull
+    private transient String writerId;
+    private transient long chunkLine;
+    private transient long chunkOffset;
+    /**
+     * Number of failed attempts to push the first document of the {@link #outbox} in the unbuffered mode.
+     * Guarded by the {@link #deliveryLock}.
+     */
+    private transient int pushAttempt;
+    /**
+     * {@link System#nanoTime()} before which the failed document is not pushed again.
+     * Guarded by the {@link #deliveryLock}.
+     */
+    private transient long pushRetryAt;
+    /**
+     * Set while a timer to push the {@link #outbox} again is pending, see {@link #scheduleRetry(long)}.
+     */
+    private transient boolean retryScheduled;
+    /**
+     * Receives the documents for live console reads, see {@link #setTail(TailSink)}.
+     */
+    @CheckForNull
+    private transient TailSink tail;
+    /**
+     * Lines of the next document for {@link #tail}.
+     */
+    @CheckForNull
+    private transient JsonBuffer tailText;
 
     public ElasticsearchEventWriter(@CheckForNull String prefix,
                                     @Nonnull ElasticSearchDao dao) {
+        this(prefix, dao, new ElasticsearchWriterConfiguration());
+    }
+
+    public ElasticsearchEventWriter(@CheckForNull String prefix,
+                                    @Nonnull ElasticSearchDao dao,
+                                    @Nonnull ElasticsearchWriterConfiguration config) {
+        this(prefix, dao, config, DocumentTemplate.EMPTY);
+    }
+
+    /**
+     * @param template Metadata which is the same for all events of the writer
+     * @since TODO
+     */
+    public ElasticsearchEventWriter(@CheckForNull String prefix,
+                                    @Nonnull ElasticSearchDao dao,
+                                    @Nonnull ElasticsearchWriterConfiguration config,
+                                    @Nonnull DocumentTemplate template) {
         this.prefix = prefix;
         this.dao = dao;
+        this.config = config;
+        this.template = template;
     }
 
     @Override
@@ -42,54 +212,565 @@ public class ElasticsearchEventWriter extends ExternalLoggingEventWriter {
         super.writeMessage(prefix != null ? prefix + message : message);
     }
 
+    /**
+     * Writes an event of the build output.
+     * The message is encoded once and takes the same path as the lines of {@link #writeLine(byte[], int, int)}.
+     */
     @Override
     public void writeEvent(Event event) {
-        JSONObject payload = new JSONObject();
-        JSONConsoleNotes.parseToJSON(event.getMessage(), payload);
+        synchronized (this) {
+            String message = event.getMessage();
+            byte[] line = getLineBuffer(3 * message.length());
+            int len = Utf8.encode(message, line, 0);
+            appendLine(line, 0, len, event.getData(), event.getTimestamp());
+        }
+        deliver(true);
+    }
+
+    /**
+     * Writes a line of raw output, without decoding it.
+     * The writer prefix is prepended to the line.
+     * @param b Buffer with the UTF-8 encoded line, without the line terminator
+     * @param off Offset of the line in the buffer
+     * @param len Length of the line
+     * @since TODO
+     */
+    public void writeLine(@Nonnull byte[] b, int off, int len) {
+        writeLine(b, off, len, null);
+    }
+
+    /**
+     * Writes a line of raw output with its event data, e.g. the {@code stepId} of a step log.
+     * @param data Event data, the same as {@link Event#getData()} of {@link #writeEvent(Event)}
+     * @see #writeLine(byte[], int, int)
+     * @since TODO
+     */
+    public void writeLine(@Nonnull byte[] b, int off, int len, @CheckForNull Map<String, Serializable> data) {
+        synchronized (this) {
+            byte[] encodedPrefix = getEncodedPrefix();
+            if (encodedPrefix.length > 0) {
+                // Notes in the line must be positioned relative to the prefixed message
+                byte[] line = getLineBuffer(encodedPrefix.length + len);
+                System.arraycopy(encodedPrefix, 0, line, 0, encodedPrefix.length);
+                System.arraycopy(b, off, line, encodedPrefix.length, len);
+                b = line;
+                off = 0;
+                len += encodedPrefix.length;
+            }
+            appendLine(b, off, len, data, System.currentTimeMillis());
+        }
+        deliver(true);
+    }
+
+    /**
+     * Turns a UTF-8 encoded line into a document, or appends it to the open chunk.
+     */
+    // must be called under the writer lock
+    private void appendLine(@Nonnull byte[] b, int off, int len, @CheckForNull Map<String, Serializable> data,
+                            long timestamp) {
+        if (config.isChunked()) {
+            ChunkBuilder chunk = getChunk(data);
+            chunk.append(b, off, len, data, timestamp);
+            queue(submitNotes(timestamp));
+            recordTail(b, off, len);
+            countLine(len);
+            if (chunk.isFull()) {
+                queue(sealChunk());
+            }
+        } else {
+            JsonBuffer json = getDocumentBuffer().reset().startObject();
+            JSONConsoleNotes.writeJSON(b, off, len, json, getNoteDictionary(), getNoteScan());
+            writeMetadata(json, data, timestamp, lines, bytes);
+            queue(submitNotes(timestamp));
+            recordTail(b, off, len);
+            publishTail();
+            countLine(len);
+            queue(submit(json));
+        }
+    }
+
+    /**
+     * Gets the open chunk for the event data.
+     * A chunk with other data gets sealed first, and a timer is started for a new chunk.
+     */
+    // must be called under the writer lock
+    @Nonnull
+    private ChunkBuilder getChunk(@CheckForNull Map<String, Serializable> data) {
+        if (chunk == null) {
+            chunk = new ChunkBuilder(config.getMaxChunkLines(), config.getMaxChunkBytes(), getNoteDictionary());
+        }
+        if (!chunk.accepts(data)) {
+            queue(sealChunk());
+        }
+        if (chunk.isEmpty()) {
+            chunkLine = lines;
+            chunkOffset = bytes;
+            final long generation = chunkGeneration;
+            BulkIndexer.schedule(() -> {
+                synchronized (this) {
+                    if (chunkGeneration == generation) {
+                        queue(sealChunk());
+                    }
+                }
+                deliverLater();
+            }, config.getMaxChunkLatencyMillis());
+        }
+        return chunk;
+    }
+
+    /**
+     * Turns the open chunk into a document.
+     * @return Document to be queued, or {@code null} if there is nothing to queue
+     */
+    // must be called under the writer lock
+    @CheckForNull
+    private byte[] sealChunk() {
+        if (chunk == null || chunk.isEmpty()) {
+            return null;
+        }
+        chunkGeneration++;
+        Map<String, Serializable> data = chunk.getData();
+        long timestamp = chunk.getFirstTimestamp();
+        JsonBuffer json = getDocumentBuffer().reset().startObject();
+        chunk.writeTo(json);
+        writeMetadata(json, data, timestamp, chunkLine, chunkOffset);
+        publishTail();
+        return submit(json);
+    }
+
+    /**
+     * @param line Number of the first line of the document within the writer
+     * @param offset Position of the first line of the document within the writer output
+     */
+    // must be called under the writer lock
+    private void writeMetadata(@Nonnull JsonBuffer json, @CheckForNull Map<String, Serializable> data, long timestamp,
+                               long line, long offset) {
         // TODO: replace Dao implementation by an independent one
-        JSONObject data = new JSONObject();
-        for (Map.Entry<String, Serializable> entry : event.getData().entrySet()) {
-            Serializable value = entry.getValue();
-            data.accumulate(entry.getKey(), value != null ? value.toString() : null);
+        json.name("data").startObject();
+        template.writeData(json);
+        if (data != null) {
+            for (Map.Entry<String, Serializable> entry : data.entrySet()) {
+                if (template.containsData(entry.getKey())) {
+                    continue;
+                }
+                Serializable value = entry.getValue();
+                json.name(entry.getKey());
+                if (value == null) {
+                    json.nullValue();
+                } else {
+                    json.value(value instanceof String ? (String) value : value.toString());
+                }
+            }
         }
-        payload.put("data", data);
+        json.endObject();
         //TODO: Use Event timestamp everywhere?
-        payload.put("@buildTimestamp", MILLIS_FORMATTER.format(event.getTimestamp()));
-        payload.put("@timestamp", MILLIS_FORMATTER.format(Calendar.getInstance().getTime()));
-        payload.put("@version", 1);
+        json.name("seq").value(nextSeq(timestamp));
+        json.name("writer").value(getWriterId());
+        json.name("line").value(line);
+        json.name("offset").value(offset);
+        json.name("@buildTimestamp").timestampValue(timestamp);
+        json.name("@timestamp").timestampValue(System.currentTimeMillis());
+        json.name("@version").value(1);
+        json.endObject();
+    }
+
+    /**
+     * Gets the sequence number for a new document.
+     * It is derived from the event time, so writers deserialized on agents continue the sequence of the build
+     * without sharing a counter, and it keeps increasing within the writer even if the clock goes back.
+     * Its remainder modulo {@link #WRITER_SLOTS} is the slot of the writer, so it is unique among the writers of the build.
+     * Readers use it as the log order and as the progressive offset.
+     */
+    // must be called under the writer lock
+    private long nextSeq(long timestamp) {
+        lastSeq = Math.max(lastSeq + WRITER_SLOTS, (timestamp + clockOffset) * SEQ_PER_MILLI + getSlot());
+        return lastSeq;
+    }
 
+    // must be called under the writer lock
+    private int getSlot() {
+        if (slot == null) {
+            slot = allocateSlot();
+        }
+        return slot;
+    }
+
+    /**
+     * Allocates the slot for this writer or for a copy of it.
+     * Slots are counted by the {@link TailBuffer} of the build on the controller.
+     * Without it, e.g. for a copy sent on from an agent, the slot is random and may collide with another writer.
+     */
+    // must be called under the writer lock
+    private int allocateSlot() {
+        if (tail instanceof TailBuffer) {
+            return (int) (((TailBuffer) tail).nextWriterNumber() % WRITER_SLOTS);
+        }
+        return ThreadLocalRandom.current().nextInt(WRITER_SLOTS);
+    }
+
+    /**
+     * Sets the receiver of written documents for live console reads.
+     * It is passed to agents as a remoting proxy when the writer is sent there.
+     */
+    synchronized void setTail(@CheckForNull TailSink tail) {
+        this.tail = tail;
+    }
+
+    /**
+     * Sets the shard routing value of the documents.
+     * Must be called before the first event is written.
+     */
+    synchronized void setRouting(@CheckForNull String routing) {
+        this.routing = routing;
+    }
+
+    // must be called under the writer lock
+    private void recordTail(@Nonnull byte[] b, int off, int len) {
+        if (tail != null) {
+            if (tailText == null) {
+                tailText = new JsonBuffer(1024);
+            }
+            tailText.raw(b, off, len);
+            tailText.raw(NEWLINE, 0, 1);
+        }
+    }
+
+    /**
+     * Passes the recorded lines of the last document to {@link #tail}.
+     */
+    // must be called under the writer lock
+    private void publishTail() {
+        if (tail == null || tailText == null || tailText.size() == 0) {
+            return;
+        }
+        try {
+            tail.append(lastSeq, tailText.toByteArray());
+        } catch (RuntimeException e) {
+            // E.g. the channel is closed. The documents are still in Elasticsearch.
+            LOGGER.log(Level.FINE, "Failed to pass log data for live console reads, giving up", e);
+            tail = null;
+        }
+        tailText.reset();
+    }
+
+    // must be called under the writer lock
+    private void countLine(long length) {
+        lines++;
+        // Line terminator
+        bytes += length + 1;
+    }
+
+    // must be called under the writer lock
+    @Nonnull
+    private String getWriterId() {
+        if (writerId == null) {
+            writerId = String.format("%016x", ThreadLocalRandom.current().nextLong());
+        }
+        return writerId;
+    }
+
+    // must be called under the writer lock
+    @CheckForNull
+    private NoteDictionary getNoteDictionary() {
+        if (noteDictionary == null && config.isNoteDictionary()) {
+            noteDictionary = new NoteDictionary();
+        }
+        return noteDictionary;
+    }
+
+    /**
+     * Creates the dictionary documents of the notes which have been referenced for the first time.
+     * @return Documents to be queued before the document referring to them
+     */
+    // must be called under the writer lock
+    @Nonnull
+    private List<byte[]> submitNotes(long timestamp) {
+        if (noteDictionary == null || !noteDictionary.hasPending()) {
+            return Collections.emptyList();
+        }
+        return noteDictionary.takeDocuments(timestamp);
+    }
+
+    /**
+     * @return Copy of the document to be queued
+     */
+    // must be called under the writer lock
+    @Nonnull
+    private byte[] submit(@Nonnull JsonBuffer json) {
+        return json.toByteArray();
+    }
+
+    // must be called under the writer lock
+    private void queue(@Nonnull List<byte[]> documents) {
+        for (byte[] document : documents) {
+            queue(document);
+        }
+    }
+
+    // must be called under the writer lock
+    private void queue(@CheckForNull byte[] document) {
+        if (document != null) {
+            if (outbox == null) {
+                outbox = new ArrayDeque<>();
+            }
+            outbox.add(document);
+        }
+    }
+
+    /**
+     * Passes the documents of the {@link #outbox} to the indexer, or pushes them in the unbuffered mode.
+     * Must not be called under the writer lock.
+     * @param wait If {@code false}, stops at the first document which cannot be passed on without waiting.
+     *             It stays in the outbox for the next call
+     * @return {@code true} if the outbox is empty
+     */
+    private boolean deliver(boolean wait) {
+        // Keeps the order of the documents if several threads deliver
+        ReentrantLock delivery = getDeliveryLock();
+        if (wait) {
+            delivery.lock();
+        } else if (!delivery.tryLock()) {
+            return false;
+        }
+        try {
+            List<byte[]> documents;
+            BulkIndexer target;
+            synchronized (this) {
+                if (outbox == null || outbox.isEmpty()) {
+                    return true;
+                }
+                documents = new ArrayList<>(outbox);
+                outbox.clear();
+                target = config.isBuffered() ? getIndexer() : null;
+            }
+            for (int i = 0; i < documents.size(); i++) {
+                if (!deliver(target, documents.get(i), wait)) {
+                    synchronized (this) {
+                        for (int j = documents.size() - 1; j >= i; j--) {
+                            outbox.addFirst(documents.get(j));
+                        }
+                    }
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            delivery.unlock();
+        }
+    }
+
+    /**
+     * @return {@code false} if the document should be delivered again later
+     */
+    private boolean deliver(@CheckForNull BulkIndexer target, @Nonnull byte[] document, boolean wait) {
+        if (target == null) {
+            return push(document);
+        }
         try {
-            dao.push(payload.toString());
+            if (wait) {
+                target.add(document);
+                return true;
+            }
+            return target.offer(document);
         } catch (IOException e) {
-            String msg = "[logstash-plugin]: Failed to send log data to " + dao.getDescription() + ".\n"
-                    + "[logstash-plugin]: No Further logs will be sent to " + dao.getDescription() + ".\n"
-                    + ExceptionUtils.getStackTrace(e);
-            logErrorMessage(msg);
+            LOGGER.log(Level.WARNING, "[logstash-plugin]: Failed to queue log data for " + dao.getDescription(), e);
+            return true;
         }
     }
 
     /**
-     * @return True if errors have occurred during initialization or write.
+     * Delivers the {@link #outbox} from a timer on the flusher threads, which must never wait.
+     * Documents which cannot be passed on right away are offered again later, unless the writer gets to them first.
+     */
+    private void deliverLater() {
+        if (!deliver(false)) {
+            BulkIndexer.schedule(this::deliverLater, config.getMaxChunkLatencyMillis());
+        }
+    }
+
+    /**
+     * Pushes a single document in the unbuffered mode.
+     * Like the buffered mode, it never waits for the backoff: a document which failed with a transient error
+     * stays in the {@link #outbox}, and it is pushed again by a timer on the flusher threads
+     * or by the next write after the backoff.
+     * The event is dropped if it cannot be delivered, but the writer keeps going.
+     * Must be called while holding the {@link #deliveryLock}.
+     * @return {@code false} if the document should be pushed again later
+     */
+    private boolean push(@Nonnull byte[] document) {
+        if (pushAttempt > 0) {
+            long remaining = pushRetryAt - System.nanoTime();
+            if (remaining > 0) {
+                scheduleRetry(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+                return false;
+            }
+        }
+        CircuitBreaker circuitBreaker = getCircuitBreaker();
+        if (!circuitBreaker.allowRequest()) {
+            pushAttempt = 0;
+            return true;
+        }
+        try {
+            dao.push(document, document.length, routing);
+            circuitBreaker.recordSuccess();
+            pushAttempt = 0;
+            return true;
+        } catch (IOException e) {
+            circuitBreaker.recordFailure();
+            RetryPolicy retryPolicy = new RetryPolicy(config.getMaxRetries(),
+                    config.getInitialBackoffMillis(), config.getMaxBackoffMillis());
+            if (RetryPolicy.isRetryable(e) && retryPolicy.canRetry(pushAttempt)) {
+                long backoff = retryPolicy.backoffMillis(pushAttempt);
+                pushAttempt++;
+                pushRetryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+                scheduleRetry(backoff);
+                return false;
+            }
+            LOGGER.log(Level.WARNING, "[logstash-plugin]: Failed to send log data to " + dao.getDescription()
+                    + ".\n" + ExceptionUtils.getStackTrace(e));
+            pushAttempt = 0;
+            return true;
+        }
+    }
+
+    /**
+     * Delivers the {@link #outbox} again after the delay, unless a timer is pending already.
+     */
+    private synchronized void scheduleRetry(long delayMillis) {
+        if (!retryScheduled) {
+            retryScheduled = true;
+            BulkIndexer.schedule(this::retry, delayMillis);
+        }
+    }
+
+    private void retry() {
+        synchronized (this) {
+            retryScheduled = false;
+        }
+        // A failure schedules the next retry, and so does a concurrent delivery which fails
+        deliver(false);
+    }
+
+    /**
+     * @return True if events cannot be delivered at the moment.
+     *         In the buffered mode the buffer takes care of failures, so it is always {@code false}.
      */
     public boolean isConnectionBroken() {
-        return connectionBroken || dao == null;
+        return !config.isBuffered() && getCircuitBreaker().isOpen();
+    }
+
+    @Nonnull
+    private synchronized CircuitBreaker getCircuitBreaker() {
+        if (breaker == null) {
+            breaker = CircuitBreaker.forDao(dao,
+                    config.getCircuitBreakerFailureThreshold(), config.getCircuitBreakerOpenMillis());
+        }
+        return breaker;
+    }
+
+    // must be called under the writer lock
+    @Nonnull
+    private byte[] getEncodedPrefix() {
+        if (encodedPrefix == null) {
+            encodedPrefix = prefix != null ? prefix.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        }
+        return encodedPrefix;
+    }
+
+    // must be called under the writer lock
+    @Nonnull
+    private byte[] getLineBuffer(int size) {
+        if (lineBuffer == null || lineBuffer.length < size) {
+            lineBuffer = new byte[Math.max(size, 256)];
+        }
+        return lineBuffer;
+    }
+
+    // must be called under the writer lock
+    @Nonnull
+    private JsonBuffer getDocumentBuffer() {
+        if (documentBuffer == null) {
+            documentBuffer = new JsonBuffer();
+        }
+        return documentBuffer;
+    }
+
+    // must be called under the writer lock
+    @Nonnull
+    private JSONConsoleNotes.NoteScan getNoteScan() {
+        if (noteScan == null) {
+            noteScan = new JSONConsoleNotes.NoteScan();
+        }
+        return noteScan;
+    }
+
+    @Nonnull
+    private synchronized ReentrantLock getDeliveryLock() {
+        if (deliveryLock == null) {
+            deliveryLock = new ReentrantLock();
+        }
+        return deliveryLock;
+    }
+
+    @Nonnull
+    private synchronized BulkIndexer getIndexer() {
+        if (indexer == null) {
+            indexer = new BulkIndexer(dao, config, routing);
+        }
+        return indexer;
     }
 
     /**
-     * Write error message to errorStream and set connectionBroken to true.
+     * Takes the counters under the writer lock, so that they are consistent with the documents written so far.
      */
-    private void logErrorMessage(String msg) {
-        connectionBroken = true;
-        LOGGER.log(Level.WARNING, msg);
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        serializedAt = System.currentTimeMillis();
+        out.defaultWriteObject();
+        // Only remoting can pass a proxy
+        Channel channel = Channel.current();
+        out.writeObject(tail != null && channel != null ? channel.export(TailSink.class, tail) : null);
+        out.writeInt(allocateSlot());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        tail = (TailSink) in.readObject();
+        slot = in.readInt();
+        // Only a copy sent by remoting is received right after it has been written,
+        // it is underestimated by the transfer time
+        if (serializedAt > 0 && Channel.current() != null) {
+            clockOffset = serializedAt - System.currentTimeMillis();
+        }
     }
 
     @Override
     public void flush() throws IOException {
-        // no caching, nothing to do here
+        synchronized (this) {
+            queue(sealChunk());
+        }
+        deliver(true);
+        BulkIndexer current;
+        synchronized (this) {
+            current = indexer;
+        }
+        if (current != null) {
+            current.flush();
+        }
     }
 
     @Override
     public void close() throws IOException {
-        // dao handles it
+        synchronized (this) {
+            queue(sealChunk());
+        }
+        deliver(true);
+        BulkIndexer current;
+        synchronized (this) {
+            current = indexer;
+            indexer = null;
+        }
+        if (current != null) {
+            current.close();
+        }
     }
 }
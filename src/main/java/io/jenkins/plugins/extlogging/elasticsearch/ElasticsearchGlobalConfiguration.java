@@ -4,6 +4,7 @@ import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
 import hudson.AbortException;
 import hudson.Extension;
 import io.jenkins.plugins.extlogging.elasticsearch.util.ElasticSearchDao;
+import io.jenkins.plugins.extlogging.elasticsearch.util.LogCache;
 import jenkins.model.GlobalConfiguration;
 import org.jenkinsci.Symbol;
 import javax.annotation.CheckForNull;
@@ -26,8 +27,15 @@ public class ElasticsearchGlobalConfiguration extends GlobalConfiguration {
     @CheckForNull
     private String key;
 
+    @CheckForNull
+    private ElasticsearchWriterConfiguration writer;
+
+    @CheckForNull
+    private ElasticsearchReaderConfiguration reader;
+
     public ElasticsearchGlobalConfiguration() {
         load();
+        applyReader();
     }
 
     @CheckForNull
@@ -64,6 +72,43 @@ public class ElasticsearchGlobalConfiguration extends GlobalConfiguration {
         return key;
     }
 
+    /**
+     * Gets tuning options for event writers.
+     * @return Writer configuration, defaults if not configured
+     */
+    @Nonnull
+    public ElasticsearchWriterConfiguration getWriter() {
+        return writer != null ? writer : new ElasticsearchWriterConfiguration();
+    }
+
+    public void setWriter(@CheckForNull ElasticsearchWriterConfiguration writer) {
+        this.writer = writer;
+        save();
+    }
+
+    /**
+     * Gets tuning options for log browsers.
+     * @return Reader configuration, defaults if not configured
+     */
+    @Nonnull
+    public ElasticsearchReaderConfiguration getReader() {
+        return reader != null ? reader : new ElasticsearchReaderConfiguration();
+    }
+
+    public void setReader(@CheckForNull ElasticsearchReaderConfiguration reader) {
+        this.reader = reader;
+        save();
+        applyReader();
+    }
+
+    /**
+     * Applies the reader configuration to the state shared by all log browsers.
+     */
+    private void applyReader() {
+        // Logs of finished builds are served from the cache, see ElasticsearchAnnotatedLargeText
+        LogCache.get().setMaxSize(getReader().getCacheSizeMb() * 1024L * 1024L);
+    }
+
     public ElasticSearchDao toDao() throws IOException {
         if (elasticsearch == null) {
             throw new AbortException("Elasticsearch is not configured");
@@ -19,28 +19,23 @@ public class ElasticsearchLogBrowser extends LogBrowser {
         super(loggable);
     }
 
-    //TODO: Cache values instead of refreshing them each time
     @Override
     public AnnotatedLargeText overallLog() {
-        ElasticSearchDao dao;
-        try {
-            dao = ElasticsearchGlobalConfiguration.getInstance().toDao();
-        } catch (Exception ex) {
-            return new BrokenAnnotatedLargeText(ex);
-        }
-
-        return new ElasticsearchLogLargeTextProvider(dao, getOwner(), null).getLogText();
+        return stepLog(null, true);
     }
 
     @Override
     public AnnotatedLargeText stepLog(@CheckForNull String stepId, boolean b) {
+        ElasticsearchGlobalConfiguration cfg;
         ElasticSearchDao dao;
         try {
-            dao = ElasticsearchGlobalConfiguration.getInstance().toDao();
+            cfg = ElasticsearchGlobalConfiguration.getInstance();
+            dao = cfg.toDao();
         } catch (Exception ex) {
             return new BrokenAnnotatedLargeText(ex);
         }
 
-        return new ElasticsearchLogLargeTextProvider(dao, getOwner(), stepId).getLogText();
+        return new ElasticsearchLogLargeTextProvider(dao, getOwner(), stepId, cfg.getReader(),
+                cfg.getWriter()).getLogText();
     }
 }
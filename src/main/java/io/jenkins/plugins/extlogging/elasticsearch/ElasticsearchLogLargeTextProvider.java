@@ -5,28 +5,24 @@ import hudson.model.Run;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Writer;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import io.jenkins.plugins.extlogging.api.util.UniqueIdHelper;
+import io.jenkins.plugins.extlogging.elasticsearch.util.BulkIndexer;
 import io.jenkins.plugins.extlogging.elasticsearch.util.ElasticSearchDao;
+import io.jenkins.plugins.extlogging.elasticsearch.util.IndexRouting;
 import io.jenkins.plugins.extlogging.elasticsearch.util.JSONConsoleNotes;
-import io.jenkins.plugins.extlogging.elasticsearch.util.HttpGetWithData;
+import io.jenkins.plugins.extlogging.elasticsearch.util.LogCache;
+import io.jenkins.plugins.extlogging.elasticsearch.util.LogHit;
+import io.jenkins.plugins.extlogging.elasticsearch.util.LogQuery;
+import io.jenkins.plugins.extlogging.elasticsearch.util.NoteResolver;
+import io.jenkins.plugins.extlogging.elasticsearch.util.SearchPager;
 import jenkins.model.logging.Loggable;
-import net.sf.json.JSONArray;
-import net.sf.json.JSONObject;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.jelly.XMLOutput;
-import org.apache.commons.lang.StringUtils;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.framework.io.ByteBuffer;
@@ -38,6 +34,54 @@ import org.kohsuke.stapler.framework.io.ByteBuffer;
 @Restricted(NoExternalUse.class)
 public class ElasticsearchLogLargeTextProvider {
 
+    /**
+     * Members read from {@code _source}. Console notes are not mapped, so they are available only there.
+     */
+    private static final String SOURCE = "[\"message\",\"annotations\"]";
+
+    private static final String DOC_VALUE_FIELDS = "[\"seq\"]";
+
+    /**
+     * Log order. Documents without a sequence number, written by older versions, come first in the time order.
+     * The writer id and the line number within the writer are unique, so they break ties across shards,
+     * unlike {@code _doc}. The writer id is sorted on its keyword subfield: indices which existed before the
+     * index template was installed map it dynamically as {@code text}, which cannot be sorted.
+     */
+    private static final String SORT = "[{\"seq\":{\"order\":\"asc\",\"missing\":\"_first\",\"unmapped_type\":\"long\"}},"
+            + "{\"@timestamp\":{\"order\":\"asc\"}},"
+            + "{\"writer.keyword\":{\"order\":\"asc\",\"missing\":\"_first\",\"unmapped_type\":\"keyword\"}},"
+            + "{\"line\":{\"order\":\"asc\",\"missing\":\"_first\",\"unmapped_type\":\"long\"}}]";
+
+    /**
+     * Time after the end of a build after which its log is considered to be fully indexed.
+     */
+    private static final long CACHE_SETTLE_MILLIS = Long.getLong(
+            ElasticsearchLogLargeTextProvider.class.getName() + ".cacheSettleMillis", 60000);
+
+    /**
+     * Documents of running builds are read only once they are older than this.
+     * The progressive cursor does not go back, so the documents which become searchable later than their
+     * sequence number suggests, e.g. after the buffer latency and the index refresh interval, must not be
+     * overtaken by it. {@code TailBuffer} serves the recent documents of the live console in the meantime.
+     */
+    public static final long LATE_ARRIVAL_MILLIS = Long.getLong(
+            ElasticsearchLogLargeTextProvider.class.getName() + ".lateArrivalMillis", 10000);
+
+    /**
+     * Documents of running builds which refer to notes that cannot be found yet are not read for this long.
+     * The dictionary document of a note may become searchable later than the documents which refer to it,
+     * e.g. if it is stored on another shard. Older documents are read without the missing notes.
+     */
+    private static final long NOTE_WAIT_MILLIS = Long.getLong(
+            ElasticsearchLogLargeTextProvider.class.getName() + ".noteWaitMillis", 60000);
+
+    /**
+     * Tolerated difference between the clocks of the controller and of the agents
+     * when the documents are searched by time, see {@link IndexRouting#DATA_STREAM}.
+     */
+    private static final long CLOCK_SKEW_MILLIS = Long.getLong(
+            ElasticsearchLogLargeTextProvider.class.getName() + ".clockSkewMillis", 60 * 60 * 1000);
+
     @Nonnull
     private ElasticSearchDao esDao;
 
@@ -47,18 +91,39 @@ public class ElasticsearchLogLargeTextProvider {
     @CheckForNull
     private String stepId;
 
+    @Nonnull
+    private final ElasticsearchReaderConfiguration reader;
+
+    @Nonnull
+    private final ElasticsearchWriterConfiguration writerConfig;
+
     public ElasticsearchLogLargeTextProvider(@Nonnull ElasticSearchDao dao, @Nonnull Loggable loggable) {
         this(dao, loggable, null);
     }
 
     public ElasticsearchLogLargeTextProvider(@Nonnull ElasticSearchDao dao, @Nonnull Loggable loggable, @CheckForNull String stepId) {
+        this(dao, loggable, stepId, new ElasticsearchReaderConfiguration());
+    }
+
+    public ElasticsearchLogLargeTextProvider(@Nonnull ElasticSearchDao dao, @Nonnull Loggable loggable, @CheckForNull String stepId,
+                                             @Nonnull ElasticsearchReaderConfiguration reader) {
+        this(dao, loggable, stepId, reader, new ElasticsearchWriterConfiguration());
+    }
+
+    /**
+     * @param dao DAO of the configured index
+     * @param writerConfig Configuration of the writers, which defines where the documents are
+     */
+    public ElasticsearchLogLargeTextProvider(@Nonnull ElasticSearchDao dao, @Nonnull Loggable loggable, @CheckForNull String stepId,
+                                             @Nonnull ElasticsearchReaderConfiguration reader,
+                                             @Nonnull ElasticsearchWriterConfiguration writerConfig) {
         this.esDao = dao;
         this.loggable = loggable;
         this.stepId = stepId;
+        this.reader = reader;
+        this.writerConfig = writerConfig;
     }
 
-    private transient HttpClientBuilder clientBuilder;
-
     /**
      * Used from <tt>index.jelly</tt> to write annotated log to the given
      * output.
@@ -86,14 +151,7 @@ public class ElasticsearchLogLargeTextProvider {
      * @return A {@link Run} log with annotations
      */   
     public @Nonnull AnnotatedLargeText getLogText() {
-        ByteBuffer buf;
-        try {
-            buf = readLogToBuffer(0);
-        } catch (IOException ex) {
-            buf = new ByteBuffer();
-            //TODO: return new BrokenAnnotatedLargeText(ex);
-        }
-        return new UncompressedAnnotatedLargeText(buf, StandardCharsets.UTF_8, loggable.isLoggingFinished(), this);
+        return new ElasticsearchAnnotatedLargeText<>(this, loggable.isLoggingFinished(), loggable);
     }
     
     /**
@@ -103,109 +161,177 @@ public class ElasticsearchLogLargeTextProvider {
     @Nonnull 
     public ByteBuffer readLogToBuffer(long initialOffset) throws IOException {
         ByteBuffer buffer = new ByteBuffer();
-        Writer wr = new Writer() {
-            @Override
-            public void write(char[] cbuf, int off, int len) throws IOException {
-                byte[] bytes = new String(cbuf).getBytes("UTF-8");
-                buffer.write(bytes, off, len);
-            }
-
-            @Override
-            public void flush() throws IOException {
-                buffer.flush();
-            }
-
-            @Override
-            public void close() throws IOException {
-                buffer.close();
-            }
-        };
-        pullLogs(wr, esDao,0, Long.MAX_VALUE);
+        getLogText().writeRawLogTo(initialOffset, buffer);
         return buffer;
     }
 
-    //TODO: Move to External Logging API
-    private Map<String, String> produceMatchers() {
-        Map<String, String> eqMatchers = new HashMap<>();
-        if (loggable instanceof Run<?, ?>) {
-            Run<?,?> run = (Run<?, ?>)loggable;
-            eqMatchers.put("jobId", UniqueIdHelper.getOrCreateId(run.getParent()));
-            eqMatchers.put("buildNum", Integer.toString(run.getNumber()));
+    /**
+     * Writes the log with its console notes.
+     * The writer is flushed after every page, so the output does not wait for the last page.
+     * @param start Cursor returned by a previous call, or {@code 0} to write the whole log.
+     *              Only documents with a sequence number of at least {@code start} are read
+     * @return Cursor for the next call, i.e. the sequence number after the last written document
+     */
+    public long writeLogTo(long start, @Nonnull Writer writer) throws IOException {
+        return pullLogs(writer, getDocumentsDao(), start);
+    }
+
+    /**
+     * @return DAO of the index with the documents of the log
+     */
+    @Nonnull
+    private ElasticSearchDao getDocumentsDao() {
+        if (!(loggable instanceof Run<?, ?>)) {
+            return esDao;
         }
+        return writerConfig.getDocumentsDao(esDao, ((Run<?, ?>) loggable).getTimeInMillis());
+    }
 
-        if (stepId != null) {
-            eqMatchers.put("stepId", stepId);
+    /**
+     * @return Key which identifies the log, {@code null} if the log cannot be identified
+     */
+    @CheckForNull
+    public String getLogKey() {
+        if (!(loggable instanceof Run<?, ?>)) {
+            return null;
         }
-        return eqMatchers;
-    }
-
-    private String getMatchQuery() {
-        //TODO: Can be optimized a lot
-        //TODO: Proper escaping to avoid query injection
-        Map<String, String> matchers = produceMatchers();
-        ArrayList<String> conditions = new ArrayList<>(matchers.size());
-        for (Map.Entry<String, String> entry : matchers.entrySet()) {
-            String filter = String.format("{ \"match\": { \"data.%s\": \"%s\"}}",
-                    entry.getKey(), entry.getValue());
-            conditions.add(filter);
+        Run<?,?> run = (Run<?, ?>)loggable;
+        String jobId = UniqueIdHelper.getOrCreateId(run.getParent());
+        if (jobId == null) {
+            return null;
         }
-        return StringUtils.join(conditions, ",");
+        return getLogKey(esDao, jobId, run.getNumber(), stepId);
     }
 
-    private void pullLogs(Writer writer, ElasticSearchDao dao, long sinceMs, long toMs) throws IOException {
+    /**
+     * @return Key which identifies the log of a build or of a step
+     */
+    @Nonnull
+    static String getLogKey(@Nonnull ElasticSearchDao dao, @Nonnull String jobId, int buildNum, @CheckForNull String stepId) {
+        return dao.getUri() + "#" + jobId + "#" + buildNum + (stepId != null ? "#" + stepId : "");
+    }
 
-        // Prepare query
-        //TODO: stored_fields in ES5
-        String query = "{\n" +
-                "  \"fields\": [\"message\",\"@timestamp\"], \n" +
-                "  \"size\": 9999, \n" + // TODO use paging https://www.elastic.co/guide/en/elasticsearch/reference/current/search-request-from-size.html
-                "  \"query\": { \n" +
-                "    \"bool\": { \n" +
-                "      \"must\": [ " + getMatchQuery() + " ]\n" +
-                "    }\n" +
-                "  }\n" +
-                "}";
+    /**
+     * @return Key of the log in {@link LogCache}, {@code null} if the log cannot be cached
+     */
+    @CheckForNull
+    public String getCacheKey() {
+        if (!(loggable instanceof Run<?, ?>) || !loggable.isLoggingFinished()) {
+            return null;
+        }
+        Run<?,?> run = (Run<?, ?>)loggable;
+        if (run.getStartTimeInMillis() + run.getDuration() + CACHE_SETTLE_MILLIS > System.currentTimeMillis()) {
+            // The last documents may not be searchable yet
+            return null;
+        }
+        if (BulkIndexer.hasUndelivered(esDao)) {
+            // Documents waiting for a retry or in a spill queue may belong to the log
+            return null;
+        }
+        return getLogKey();
+    }
 
+    //TODO: Move to External Logging API
+    @Nonnull
+    private LogQuery createQuery() {
+        LogQuery query = new LogQuery();
+        if (loggable instanceof Run<?, ?>) {
+            Run<?,?> run = (Run<?, ?>)loggable;
+            String jobId = UniqueIdHelper.getOrCreateId(run.getParent());
+            if (jobId != null) {
+                query.data("jobId", jobId);
+            }
+            query.data("buildNum", Integer.toString(run.getNumber()));
+        }
 
-        // Prepare request
-        final HttpGetWithData getRequest = new HttpGetWithData(dao.getUri() + "/_search");
-        final StringEntity input = new StringEntity(query, ContentType.APPLICATION_JSON);
-        getRequest.setEntity(input);
+        if (stepId != null) {
+            query.data("stepId", stepId);
+        }
+        return restrictTime(query);
+    }
 
-        final String auth = dao.getAuth();
-        if (auth != null) {
-            getRequest.addHeader("Authorization", "Basic " + auth);
+    /**
+     * Restricts the query to the build time range when the documents are in a data stream.
+     */
+    @Nonnull
+    private LogQuery restrictTime(@Nonnull LogQuery query) {
+        if (loggable instanceof Run<?, ?> && writerConfig.getIndexRouting() == IndexRouting.DATA_STREAM) {
+            Run<?,?> run = (Run<?, ?>)loggable;
+            long end = loggable.isLoggingFinished() ? run.getStartTimeInMillis() + run.getDuration() + CLOCK_SKEW_MILLIS : 0;
+            query.timestamp(run.getTimeInMillis() - CLOCK_SKEW_MILLIS, end);
         }
+        return query;
+    }
 
-        try(CloseableHttpClient httpClient = clientBuilder().build();
-            CloseableHttpResponse response = httpClient.execute(getRequest)) {
+    @CheckForNull
+    private String getShardRouting() {
+        if (!(loggable instanceof Run<?, ?>)) {
+            return null;
+        }
+        Run<?,?> run = (Run<?, ?>)loggable;
+        String jobId = UniqueIdHelper.getOrCreateId(run.getParent());
+        return jobId != null ? writerConfig.getShardRouting(jobId, run.getNumber()) : null;
+    }
 
-            if (response.getStatusLine().getStatusCode() != 200) {
-                throw new IOException(HttpGetWithData.getErrorMessage(dao.getUri(), response));
+    private long pullLogs(Writer writer, ElasticSearchDao dao, long fromSeq) throws IOException {
+        LogQuery logQuery = createQuery().fromSeq(fromSeq);
+        if (!loggable.isLoggingFinished()) {
+            logQuery.toSeq((System.currentTimeMillis() - LATE_ARRIVAL_MILLIS) * ElasticsearchEventWriter.SEQ_PER_MILLI);
+        }
+        String query = logQuery.toString();
+        final long[] cursor = {fromSeq};
+        SearchPager pager = new SearchPager(dao, query, SOURCE, DOC_VALUE_FIELDS, SORT, reader.getPageSize(),
+                reader.isPointInTime() ? reader.getPointInTimeKeepAlive() : null);
+        // Logs of finished builds do not change, so their pages can be served from the shard request cache
+        pager.setRequestCache(loggable.isLoggingFinished());
+        // Daily indices are created by the first write
+        pager.setIgnoreUnavailable(writerConfig.getIndexRouting() == IndexRouting.DAILY);
+        pager.setRouting(getShardRouting());
+        NoteResolver notes = new NoteResolver(dao, restrictTime(new LogQuery()));
+        notes.setIgnoreUnavailable(writerConfig.getIndexRouting() == IndexRouting.DAILY);
+        notes.setRouting(getShardRouting());
+        // Hits with unknown notes wait for the end of the page, and so do all hits after them
+        final List<LogHit> deferred = new ArrayList<>();
+        final long noteWaitSeq = loggable.isLoggingFinished()
+                ? Long.MAX_VALUE : (System.currentTimeMillis() - NOTE_WAIT_MILLIS) * ElasticsearchEventWriter.SEQ_PER_MILLI;
+        pager.forEach(new SearchPager.HitHandler() {
+            @Override
+            public boolean onHit(@Nonnull LogHit hit) throws IOException {
+                if (notes.isResolved(hit) && deferred.isEmpty()) {
+                    write(hit);
+                } else {
+                    deferred.add(hit.copy());
+                }
+                return true;
             }
 
-            // TODO: retrieve log entries
-            final String content;
-            try(InputStream i = response.getEntity().getContent()) {
-                content = IOUtils.toString(i);
+            @Override
+            public boolean onPageEnd() throws IOException {
+                boolean complete = true;
+                if (!deferred.isEmpty()) {
+                    notes.fetchMissing();
+                    for (LogHit hit : deferred) {
+                        if (hit.getSeq() >= noteWaitSeq && !notes.isAvailable(hit)) {
+                            // Its notes may not be searchable yet, so the next read starts from this hit
+                            cursor[0] = Math.min(cursor[0], hit.getSeq());
+                            complete = false;
+                            break;
+                        }
+                        write(hit);
+                    }
+                    deferred.clear();
+                }
+                writer.flush();
+                return complete;
             }
 
-            final JSONObject json = JSONObject.fromObject(content);
-            JSONArray jsonArray = json.getJSONObject("hits").getJSONArray("hits");
-            for (int i=0; i<jsonArray.size(); ++i) {
-                JSONObject hit = jsonArray.getJSONObject(i);
-                JSONObject data = hit.getJSONObject("fields");
-                //TODO: Change for ES5
-                String timestamp = data.getJSONArray("@timestamp").getString(0);
-                JSONConsoleNotes.jsonToMessage(writer, data);
+            private void write(@Nonnull LogHit hit) throws IOException {
+                JSONConsoleNotes.writeMessage(writer, hit, notes);
+                if (hit.getSeq() >= cursor[0]) {
+                    cursor[0] = hit.getSeq() + 1;
+                }
             }
-        }
-    }
-
-    HttpClientBuilder clientBuilder() {
-        if (clientBuilder == null) {
-            clientBuilder = HttpClientBuilder.create();
-        }
-        return clientBuilder;
+        });
+        return cursor[0];
     }
-}
\ No newline at end of file
+}
@@ -2,14 +2,18 @@ package io.jenkins.plugins.extlogging.elasticsearch;
 
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import hudson.model.Run;
 
 import io.jenkins.plugins.extlogging.api.ExternalLoggingEventWriter;
-import io.jenkins.plugins.extlogging.api.OutputStreamWrapper;
 import io.jenkins.plugins.extlogging.api.ExternalLoggingMethod;
-import io.jenkins.plugins.extlogging.api.impl.ExternalLoggingOutputStream;
+import io.jenkins.plugins.extlogging.api.util.UniqueIdHelper;
+import io.jenkins.plugins.extlogging.elasticsearch.util.DocumentTemplate;
 import io.jenkins.plugins.extlogging.elasticsearch.util.ElasticSearchDao;
+import io.jenkins.plugins.extlogging.elasticsearch.util.IndexTemplate;
+import io.jenkins.plugins.extlogging.elasticsearch.util.TailBuffer;
 import jenkins.model.logging.LogBrowser;
 import jenkins.model.logging.Loggable;
 
@@ -37,8 +41,42 @@ public class ElasticsearchLoggingMethod extends ExternalLoggingMethod {
 
     @Override
     protected ExternalLoggingEventWriter _createWriter() throws IOException {
-        ElasticSearchDao dao = ElasticsearchGlobalConfiguration.getInstance().toDao();
-        return new ElasticsearchEventWriter(prefix, dao);
+        ElasticsearchGlobalConfiguration cfg = ElasticsearchGlobalConfiguration.getInstance();
+        ElasticSearchDao dao = cfg.toDao();
+        IndexTemplate.ensureInstalled(dao, cfg.getWriter());
+        Loggable loggable = getOwner();
+        Run<?, ?> run = loggable instanceof Run<?, ?> ? (Run<?, ?>) loggable : null;
+        String jobId = run != null ? UniqueIdHelper.getOrCreateId(run.getParent()) : null;
+        // Log keys are based on the configured index, the routing applies to the documents only
+        ElasticSearchDao documentsDao = run != null
+                ? cfg.getWriter().getDocumentsDao(dao, run.getTimeInMillis()) : dao;
+        ElasticsearchEventWriter writer = new ElasticsearchEventWriter(prefix, documentsDao, cfg.getWriter(),
+                createTemplate(run, jobId));
+        if (run != null && jobId != null) {
+            writer.setRouting(cfg.getWriter().getShardRouting(jobId, run.getNumber()));
+            // Live console reads are served from memory, see ElasticsearchAnnotatedLargeText
+            writer.setTail(TailBuffer.forLog(
+                    ElasticsearchLogLargeTextProvider.getLogKey(dao, jobId, run.getNumber(), null)));
+        }
+        return writer;
+    }
+
+    /**
+     * Collects metadata which is the same for all events of the build,
+     * so that it gets serialized only once.
+     * @param run Build, {@code null} if the owner is not a build
+     * @param jobId Unique ID of the job of the build
+     */
+    private static DocumentTemplate createTemplate(@CheckForNull Run<?, ?> run, @CheckForNull String jobId) {
+        if (run == null) {
+            return DocumentTemplate.EMPTY;
+        }
+        Map<String, String> data = new LinkedHashMap<>();
+        if (jobId != null) {
+            data.put("jobId", jobId);
+        }
+        data.put("buildNum", Integer.toString(run.getNumber()));
+        return new DocumentTemplate(data);
     }
 
    // @Override
@@ -50,24 +88,4 @@ public class ElasticsearchLoggingMethod extends ExternalLoggingMethod {
     //    return null;
     //}
 
-    private static class LogstashOutputStreamWrapper implements OutputStreamWrapper {
-
-        private final ElasticsearchEventWriter wr;
-        private final List<String> passwordStrings;
-
-        public LogstashOutputStreamWrapper(ElasticsearchEventWriter wr, List<String> passwordStrings, String prefix) {
-            this.wr = wr;
-            this.passwordStrings = passwordStrings;
-        }
-
-        public Object readResolve() {
-            return ExternalLoggingOutputStream.createOutputStream(wr, passwordStrings);
-        }
-
-        @Override
-        public OutputStream toSerializableOutputStream() {
-            return ExternalLoggingOutputStream.createOutputStream(wr, passwordStrings);
-        }
-    }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,102 @@
+package io.jenkins.plugins.extlogging.elasticsearch;
+
+import hudson.Extension;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+
+/**
+ * Tuning options for reading logs from Elasticsearch.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public class ElasticsearchReaderConfiguration implements Describable<ElasticsearchReaderConfiguration>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+    public static final String DEFAULT_POINT_IN_TIME_KEEP_ALIVE = "1m";
+    public static final int DEFAULT_CACHE_SIZE_MB = 64;
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private boolean pointInTime;
+    @CheckForNull
+    private String pointInTimeKeepAlive;
+    private int cacheSizeMb = DEFAULT_CACHE_SIZE_MB;
+
+    @DataBoundConstructor
+    public ElasticsearchReaderConfiguration() {
+
+    }
+
+    /**
+     * Number of hits requested per {@code _search} request.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @DataBoundSetter
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize > 0 ? Math.min(pageSize, 10000) : DEFAULT_PAGE_SIZE;
+    }
+
+    /**
+     * If {@code true}, pages are read from a point-in-time, so that they form a consistent view
+     * even while the log is being written. Requires Elasticsearch 7.10 or newer.
+     */
+    public boolean isPointInTime() {
+        return pointInTime;
+    }
+
+    @DataBoundSetter
+    public void setPointInTime(boolean pointInTime) {
+        this.pointInTime = pointInTime;
+    }
+
+    /**
+     * Time for which a point-in-time is kept between two pages, e.g. {@code 1m}.
+     */
+    @Nonnull
+    public String getPointInTimeKeepAlive() {
+        return StringUtils.isNotBlank(pointInTimeKeepAlive) ? pointInTimeKeepAlive : DEFAULT_POINT_IN_TIME_KEEP_ALIVE;
+    }
+
+    @DataBoundSetter
+    public void setPointInTimeKeepAlive(@CheckForNull String pointInTimeKeepAlive) {
+        this.pointInTimeKeepAlive = pointInTimeKeepAlive;
+    }
+
+    /**
+     * Size of the controller-side cache for logs of finished builds, in megabytes. {@code 0} disables the cache.
+     * The cache is kept outside of the heap.
+     * Its hits, misses and evictions are available over JMX as {@code io.jenkins.plugins.extlogging.elasticsearch:type=LogCache}.
+     */
+    public int getCacheSizeMb() {
+        return cacheSizeMb;
+    }
+
+    @DataBoundSetter
+    public void setCacheSizeMb(int cacheSizeMb) {
+        this.cacheSizeMb = Math.max(0, cacheSizeMb);
+    }
+
+    @Override
+    public Descriptor<ElasticsearchReaderConfiguration> getDescriptor() {
+        return Jenkins.get().getDescriptor(ElasticsearchReaderConfiguration.class);
+    }
+
+    @Extension
+    @Symbol("elasticsearchReader")
+    public static class DescriptorImpl extends Descriptor<ElasticsearchReaderConfiguration> {
+
+    }
+}
@@ -0,0 +1,532 @@
+package io.jenkins.plugins.extlogging.elasticsearch;
+
+import hudson.Extension;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import io.jenkins.plugins.extlogging.elasticsearch.util.BackpressurePolicy;
+import io.jenkins.plugins.extlogging.elasticsearch.util.BulkEncoding;
+import io.jenkins.plugins.extlogging.elasticsearch.util.ElasticSearchDao;
+import io.jenkins.plugins.extlogging.elasticsearch.util.IndexRouting;
+import io.jenkins.plugins.extlogging.elasticsearch.util.IndexTemplate;
+import io.jenkins.plugins.extlogging.elasticsearch.util.SpillQueue;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+
+/**
+ * Tuning options for {@link ElasticsearchEventWriter}.
+ * The configuration is serialized together with the writer,
+ * so it must not reference anything which is available only on the controller.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public class ElasticsearchWriterConfiguration implements Describable<ElasticsearchWriterConfiguration>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_MAX_BULK_DOCUMENTS = 1000;
+    public static final int DEFAULT_MAX_BULK_BYTES = 5 * 1024 * 1024;
+    public static final long DEFAULT_MAX_LATENCY_MILLIS = 1000;
+    public static final int DEFAULT_BUFFER_CAPACITY = 10000;
+    public static final int DEFAULT_MAX_SPILL_SEGMENTS = 16;
+    public static final int DEFAULT_MAX_SPILL_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_SPILL_REPLAY_INTERVAL_MILLIS = 5000;
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 200;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000;
+    public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS = 30000;
+    public static final long DEFAULT_MAX_BLOCK_MILLIS = 10000;
+    public static final int DEFAULT_MAX_CHUNK_LINES = 100;
+    public static final int DEFAULT_MAX_CHUNK_BYTES = 64 * 1024;
+    public static final long DEFAULT_MAX_CHUNK_LATENCY_MILLIS = 1000;
+    public static final String DEFAULT_REFRESH_INTERVAL = "5s";
+    public static final String DEFAULT_INDEX_CODEC = "best_compression";
+    public static final int DEFAULT_SHARD_ROUTING_PARTITIONS = 1;
+
+    private boolean buffered = true;
+    private int maxBulkDocuments = DEFAULT_MAX_BULK_DOCUMENTS;
+    private int maxBulkBytes = DEFAULT_MAX_BULK_BYTES;
+    private long maxLatencyMillis = DEFAULT_MAX_LATENCY_MILLIS;
+    private int bufferCapacity = DEFAULT_BUFFER_CAPACITY;
+    private boolean spillEnabled;
+    @CheckForNull
+    private String spillDirectory;
+    private int maxSpillSegments = DEFAULT_MAX_SPILL_SEGMENTS;
+    private int maxSpillSegmentBytes = DEFAULT_MAX_SPILL_SEGMENT_BYTES;
+    @CheckForNull
+    private SpillQueue.SyncPolicy spillSyncPolicy;
+    private long spillReplayIntervalMillis = DEFAULT_SPILL_REPLAY_INTERVAL_MILLIS;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private int circuitBreakerFailureThreshold = DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+    private long circuitBreakerOpenMillis = DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS;
+    @CheckForNull
+    private BackpressurePolicy backpressurePolicy;
+    private long maxBlockMillis = DEFAULT_MAX_BLOCK_MILLIS;
+    private boolean chunked;
+    private int maxChunkLines = DEFAULT_MAX_CHUNK_LINES;
+    private int maxChunkBytes = DEFAULT_MAX_CHUNK_BYTES;
+    private long maxChunkLatencyMillis = DEFAULT_MAX_CHUNK_LATENCY_MILLIS;
+    private boolean indexTemplate = true;
+    @CheckForNull
+    private String refreshInterval = DEFAULT_REFRESH_INTERVAL;
+    @CheckForNull
+    private String indexCodec = DEFAULT_INDEX_CODEC;
+    @CheckForNull
+    private IndexRouting indexRouting;
+    private boolean shardRouting;
+    private int shardRoutingPartitions = DEFAULT_SHARD_ROUTING_PARTITIONS;
+    private boolean compression;
+    @CheckForNull
+    private BulkEncoding bulkEncoding;
+    private boolean noteDictionary;
+
+    @DataBoundConstructor
+    public ElasticsearchWriterConfiguration() {
+
+    }
+
+    /**
+     * If {@code true}, events are queued and shipped through the {@code _bulk} API
+     * by a background flusher. Otherwise every event is pushed synchronously.
+     * Failed pushes are retried after the backoff by a timer, so the writing thread never waits for it.
+     */
+    public boolean isBuffered() {
+        return buffered;
+    }
+
+    @DataBoundSetter
+    public void setBuffered(boolean buffered) {
+        this.buffered = buffered;
+    }
+
+    /**
+     * Maximum number of documents in a single {@code _bulk} request.
+     */
+    public int getMaxBulkDocuments() {
+        return maxBulkDocuments;
+    }
+
+    @DataBoundSetter
+    public void setMaxBulkDocuments(int maxBulkDocuments) {
+        this.maxBulkDocuments = maxBulkDocuments > 0 ? maxBulkDocuments : DEFAULT_MAX_BULK_DOCUMENTS;
+    }
+
+    /**
+     * Maximum size of serialized documents in a single {@code _bulk} request.
+     */
+    public int getMaxBulkBytes() {
+        return maxBulkBytes;
+    }
+
+    @DataBoundSetter
+    public void setMaxBulkBytes(int maxBulkBytes) {
+        this.maxBulkBytes = maxBulkBytes > 0 ? maxBulkBytes : DEFAULT_MAX_BULK_BYTES;
+    }
+
+    /**
+     * Maximum time an event may stay in the buffer before it gets flushed.
+     */
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    @DataBoundSetter
+    public void setMaxLatencyMillis(long maxLatencyMillis) {
+        this.maxLatencyMillis = maxLatencyMillis > 0 ? maxLatencyMillis : DEFAULT_MAX_LATENCY_MILLIS;
+    }
+
+    /**
+     * Maximum number of documents waiting in the buffer.
+     * Once the buffer is full, the {@link #getBackpressurePolicy()} applies.
+     */
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    @DataBoundSetter
+    public void setBufferCapacity(int bufferCapacity) {
+        this.bufferCapacity = bufferCapacity > 0 ? bufferCapacity : DEFAULT_BUFFER_CAPACITY;
+    }
+
+    /**
+     * If {@code true}, batches which cannot be delivered are spilled to the local disk
+     * and replayed once Elasticsearch is available again.
+     * Requires the buffered mode.
+     */
+    public boolean isSpillEnabled() {
+        return spillEnabled;
+    }
+
+    @DataBoundSetter
+    public void setSpillEnabled(boolean spillEnabled) {
+        this.spillEnabled = spillEnabled;
+    }
+
+    /**
+     * Directory for spill segments on the machine where the writer runs.
+     * If not set, a directory in {@code java.io.tmpdir} is used.
+     */
+    @CheckForNull
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    @DataBoundSetter
+    public void setSpillDirectory(@CheckForNull String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Maximum number of spill segments per writer.
+     * Batches are dropped once all segments are full, or once the spill queues of the JVM
+     * have taken the disk space allowed by the
+     * {@code io.jenkins.plugins.extlogging.elasticsearch.util.SpillQueue.maxTotalBytes} system property.
+     */
+    public int getMaxSpillSegments() {
+        return maxSpillSegments;
+    }
+
+    @DataBoundSetter
+    public void setMaxSpillSegments(int maxSpillSegments) {
+        this.maxSpillSegments = maxSpillSegments > 0 ? maxSpillSegments : DEFAULT_MAX_SPILL_SEGMENTS;
+    }
+
+    /**
+     * Size of a single spill segment file.
+     */
+    public int getMaxSpillSegmentBytes() {
+        return maxSpillSegmentBytes;
+    }
+
+    @DataBoundSetter
+    public void setMaxSpillSegmentBytes(int maxSpillSegmentBytes) {
+        this.maxSpillSegmentBytes = maxSpillSegmentBytes > 0 ? maxSpillSegmentBytes : DEFAULT_MAX_SPILL_SEGMENT_BYTES;
+    }
+
+    @Nonnull
+    public SpillQueue.SyncPolicy getSpillSyncPolicy() {
+        return spillSyncPolicy != null ? spillSyncPolicy : SpillQueue.SyncPolicy.ON_SEGMENT_ROLL;
+    }
+
+    @DataBoundSetter
+    public void setSpillSyncPolicy(@CheckForNull SpillQueue.SyncPolicy spillSyncPolicy) {
+        this.spillSyncPolicy = spillSyncPolicy;
+    }
+
+    /**
+     * Interval between attempts to replay spilled batches,
+     * or to deliver batches held in the buffer while the endpoint is unavailable.
+     */
+    public long getSpillReplayIntervalMillis() {
+        return spillReplayIntervalMillis;
+    }
+
+    @DataBoundSetter
+    public void setSpillReplayIntervalMillis(long spillReplayIntervalMillis) {
+        this.spillReplayIntervalMillis = spillReplayIntervalMillis > 0
+                ? spillReplayIntervalMillis : DEFAULT_SPILL_REPLAY_INTERVAL_MILLIS;
+    }
+
+    /**
+     * Maximum number of retries for a request which failed with a transient error.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    @DataBoundSetter
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(maxRetries, 0);
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    @DataBoundSetter
+    public void setInitialBackoffMillis(long initialBackoffMillis) {
+        this.initialBackoffMillis = initialBackoffMillis > 0 ? initialBackoffMillis : DEFAULT_INITIAL_BACKOFF_MILLIS;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    @DataBoundSetter
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis > 0 ? maxBackoffMillis : DEFAULT_MAX_BACKOFF_MILLIS;
+    }
+
+    /**
+     * Number of consecutive failures after which requests to the endpoint are suspended.
+     */
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    @DataBoundSetter
+    public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold > 0
+                ? circuitBreakerFailureThreshold : DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+    }
+
+    /**
+     * Time for which requests are suspended before a probe request is sent.
+     */
+    public long getCircuitBreakerOpenMillis() {
+        return circuitBreakerOpenMillis;
+    }
+
+    @DataBoundSetter
+    public void setCircuitBreakerOpenMillis(long circuitBreakerOpenMillis) {
+        this.circuitBreakerOpenMillis = circuitBreakerOpenMillis > 0
+                ? circuitBreakerOpenMillis : DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS;
+    }
+
+    @Nonnull
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy != null ? backpressurePolicy : BackpressurePolicy.BLOCK;
+    }
+
+    @DataBoundSetter
+    public void setBackpressurePolicy(@CheckForNull BackpressurePolicy backpressurePolicy) {
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    /**
+     * Maximum time for which the {@link BackpressurePolicy#BLOCK} policy blocks the build.
+     * Afterwards events are spilled if spilling is enabled, or dropped, until the buffer has space again.
+     */
+    public long getMaxBlockMillis() {
+        return maxBlockMillis;
+    }
+
+    @DataBoundSetter
+    public void setMaxBlockMillis(long maxBlockMillis) {
+        this.maxBlockMillis = Math.max(maxBlockMillis, 0);
+    }
+
+    /**
+     * If {@code true}, consecutive lines are packed into chunk documents
+     * instead of indexing every line as a separate document.
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    @DataBoundSetter
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * Maximum number of lines in a chunk document.
+     */
+    public int getMaxChunkLines() {
+        return maxChunkLines;
+    }
+
+    @DataBoundSetter
+    public void setMaxChunkLines(int maxChunkLines) {
+        this.maxChunkLines = maxChunkLines > 0 ? maxChunkLines : DEFAULT_MAX_CHUNK_LINES;
+    }
+
+    /**
+     * Size of the chunk message after which the chunk is sealed.
+     */
+    public int getMaxChunkBytes() {
+        return maxChunkBytes;
+    }
+
+    @DataBoundSetter
+    public void setMaxChunkBytes(int maxChunkBytes) {
+        this.maxChunkBytes = maxChunkBytes > 0 ? maxChunkBytes : DEFAULT_MAX_CHUNK_BYTES;
+    }
+
+    /**
+     * Maximum time a line may wait in an open chunk.
+     */
+    public long getMaxChunkLatencyMillis() {
+        return maxChunkLatencyMillis;
+    }
+
+    @DataBoundSetter
+    public void setMaxChunkLatencyMillis(long maxChunkLatencyMillis) {
+        this.maxChunkLatencyMillis = maxChunkLatencyMillis > 0
+                ? maxChunkLatencyMillis : DEFAULT_MAX_CHUNK_LATENCY_MILLIS;
+    }
+
+    /**
+     * If {@code true}, an index template with mappings for the log documents is installed before the first write.
+     * @see IndexTemplate
+     */
+    public boolean isIndexTemplate() {
+        return indexTemplate;
+    }
+
+    @DataBoundSetter
+    public void setIndexTemplate(boolean indexTemplate) {
+        this.indexTemplate = indexTemplate;
+    }
+
+    /**
+     * Refresh interval of new log indices, e.g. {@code 5s}.
+     * Live console reads do not wait for the refresh, so it may be longer than the Elasticsearch default.
+     * @return Interval, {@code null} to keep the Elasticsearch default
+     */
+    @CheckForNull
+    public String getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    @DataBoundSetter
+    public void setRefreshInterval(@CheckForNull String refreshInterval) {
+        this.refreshInterval = StringUtils.trimToNull(refreshInterval);
+    }
+
+    /**
+     * Compression codec of new log indices, e.g. {@code best_compression}.
+     * @return Codec, {@code null} to keep the Elasticsearch default
+     */
+    @CheckForNull
+    public String getIndexCodec() {
+        return indexCodec;
+    }
+
+    @DataBoundSetter
+    public void setIndexCodec(@CheckForNull String indexCodec) {
+        this.indexCodec = StringUtils.trimToNull(indexCodec);
+    }
+
+    /**
+     * Defines which index receives the documents of a build.
+     * Log browsers use it as well to find the documents.
+     */
+    @Nonnull
+    public IndexRouting getIndexRouting() {
+        return indexRouting != null ? indexRouting : IndexRouting.FIXED;
+    }
+
+    /**
+     * Gets the DAO for the documents of a build.
+     * With the {@link IndexTemplate} or {@link IndexRouting#DATA_STREAM}, documents are written with the typeless APIs,
+     * because the template has no mapping type and data streams reject typed requests.
+     * Log browsers use it as well, so that they search the same indices.
+     * @param dao DAO of the configured key
+     * @param buildTimestamp Time when the build was scheduled, see {@code Run#getTimeInMillis()}
+     */
+    @Nonnull
+    public ElasticSearchDao getDocumentsDao(@Nonnull ElasticSearchDao dao, long buildTimestamp) {
+        IndexRouting routing = getIndexRouting();
+        ElasticSearchDao documentsDao = routing.forBuild(dao, buildTimestamp);
+        return indexTemplate || routing == IndexRouting.DATA_STREAM ? documentsDao.withoutType() : documentsDao;
+    }
+
+    @DataBoundSetter
+    public void setIndexRouting(@CheckForNull IndexRouting indexRouting) {
+        this.indexRouting = indexRouting;
+    }
+
+    /**
+     * If {@code true}, documents are routed to shards by the job, so that a log read queries a single shard.
+     * Documents written without the routing are not found by reads with the routing,
+     * so it should be enabled together with a new index or {@link IndexRouting#DAILY}.
+     */
+    public boolean isShardRouting() {
+        return shardRouting;
+    }
+
+    @DataBoundSetter
+    public void setShardRouting(boolean shardRouting) {
+        this.shardRouting = shardRouting;
+    }
+
+    /**
+     * Number of shards among which the builds of a job are spread by their numbers.
+     * {@code 1} keeps all builds of a job on one shard, larger values avoid hot shards for busy jobs.
+     */
+    public int getShardRoutingPartitions() {
+        return shardRoutingPartitions;
+    }
+
+    @DataBoundSetter
+    public void setShardRoutingPartitions(int shardRoutingPartitions) {
+        this.shardRoutingPartitions = shardRoutingPartitions > 0
+                ? shardRoutingPartitions : DEFAULT_SHARD_ROUTING_PARTITIONS;
+    }
+
+    /**
+     * If {@code true}, {@code _bulk} request bodies are compressed with gzip.
+     * Saves bandwidth between agents and Elasticsearch at the cost of some CPU time on the agents.
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    @DataBoundSetter
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Format of {@code _bulk} request bodies.
+     * {@link BulkEncoding#SMILE} produces smaller bodies than JSON, but compresses worse,
+     * so it is an alternative to {@link #isCompression()} when CPU time on the agents is scarce.
+     */
+    @Nonnull
+    public BulkEncoding getBulkEncoding() {
+        return bulkEncoding != null ? bulkEncoding : BulkEncoding.JSON;
+    }
+
+    @DataBoundSetter
+    public void setBulkEncoding(@CheckForNull BulkEncoding bulkEncoding) {
+        this.bulkEncoding = bulkEncoding;
+    }
+
+    /**
+     * If {@code true}, every distinct console note is stored once per writer in a dictionary document,
+     * and the log documents refer to it by id.
+     * Shrinks the index and the read responses of Pipeline builds, which repeat the same notes on many lines.
+     * Other consumers of the index see only the note ids in the log documents.
+     */
+    public boolean isNoteDictionary() {
+        return noteDictionary;
+    }
+
+    @DataBoundSetter
+    public void setNoteDictionary(boolean noteDictionary) {
+        this.noteDictionary = noteDictionary;
+    }
+
+    /**
+     * Gets the shard routing value for the documents of a build.
+     * @return Routing value, {@code null} if the shard routing is disabled
+     */
+    @CheckForNull
+    public String getShardRouting(@Nonnull String jobId, int buildNum) {
+        if (!shardRouting) {
+            return null;
+        }
+        return shardRoutingPartitions > 1 ? jobId + "/" + (buildNum % shardRoutingPartitions) : jobId;
+    }
+
+    @Override
+    public Descriptor<ElasticsearchWriterConfiguration> getDescriptor() {
+        return Jenkins.get().getDescriptor(ElasticsearchWriterConfiguration.class);
+    }
+
+    @Extension
+    @Symbol("elasticsearchWriter")
+    public static class DescriptorImpl extends Descriptor<ElasticsearchWriterConfiguration> {
+
+    }
+}
@@ -0,0 +1,28 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+/**
+ * Defines what happens when a writer produces events faster than they can be delivered,
+ * and the bulk buffer is full.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public enum BackpressurePolicy {
+    /**
+     * Block the build until there is space in the buffer, at most for the configured time.
+     * Then the events are spilled if spilling is enabled, or dropped, until the buffer has space again.
+     */
+    BLOCK,
+    /**
+     * Discard the oldest buffered event.
+     */
+    DROP_OLDEST,
+    /**
+     * Discard the new event.
+     */
+    DROP_NEWEST,
+    /**
+     * Move buffered events to the spill queue on the disk.
+     * Falls back to {@link #BLOCK} if the spill queue is not available.
+     */
+    SPILL
+}
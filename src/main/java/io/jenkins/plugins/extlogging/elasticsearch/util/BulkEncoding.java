@@ -0,0 +1,36 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.apache.http.entity.ContentType;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Format of {@code _bulk} request bodies.
+ * CBOR is not offered, Elasticsearch accepts it for single documents but not for {@code _bulk} requests.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public enum BulkEncoding {
+    /**
+     * Newline-delimited JSON.
+     */
+    JSON(ContentType.create("application/x-ndjson", StandardCharsets.UTF_8)),
+    /**
+     * Smile binary format, see {@link SmileEncoder}.
+     * Strings are sent as length-prefixed UTF-8 without escaping, and numbers as variable-length integers.
+     */
+    SMILE(ContentType.create("application/smile"));
+
+    @Nonnull
+    private final ContentType contentType;
+
+    BulkEncoding(@Nonnull ContentType contentType) {
+        this.contentType = contentType;
+    }
+
+    @Nonnull
+    public ContentType getContentType() {
+        return contentType;
+    }
+}
@@ -0,0 +1,956 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.jenkins.plugins.extlogging.elasticsearch.ElasticsearchWriterConfiguration;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffers serialized documents and ships them through the {@code _bulk} API.
+ * Documents are queued by the build thread, and a shared background flusher sends them
+ * once the batch reaches the document count or byte size limit, or once the oldest queued
+ * document exceeds the maximum latency.
+ * {@link #flush()} and {@link #close()} drain the buffer synchronously.
+ * <p>
+ * Transient failures, including rejections of single documents in a bulk response, are retried
+ * according to the {@link RetryPolicy}. The flusher does not wait for the backoff, the retry is scheduled instead. Requests are not sent while the {@link CircuitBreaker}
+ * of the endpoint is open. Undelivered documents then stay in the buffer, and the
+ * {@link BackpressurePolicy} decides what happens once it is full.
+ * <p>
+ * If spilling is enabled, batches which cannot be delivered are appended to a {@link SpillQueue}
+ * and replayed in order before any newer batch once Elasticsearch becomes available again.
+ * Replay continues in the background after the indexer is closed, until the queue is empty.
+ * Documents which are still held in memory once the indexer has been closed for {@link #CLOSED_RETRY_MILLIS}
+ * are spilled, or dropped if there is no spill queue.
+ * Spill queues are kept in a directory per endpoint. Queues left behind there, e.g. by a JVM which has been
+ * restarted before they were drained, are claimed and replayed by the first indexer of the endpoint with spilling enabled.
+ * <p>
+ * Documents are queued in JSON. With {@link BulkEncoding#SMILE}, the request body is transcoded
+ * by the {@link SmileEncoder} when a batch is sent.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class BulkIndexer implements Flushable, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(BulkIndexer.class.getName());
+
+    private static final int FLUSHER_THREADS = Integer.getInteger(BulkIndexer.class.getName() + ".flusherThreads", 4);
+
+    /**
+     * Time for which a closed indexer keeps retrying the documents held in memory.
+     */
+    // non-final for tests and the script console
+    static long CLOSED_RETRY_MILLIS = Long.getLong(BulkIndexer.class.getName() + ".closedRetryMillis",
+            TimeUnit.MINUTES.toMillis(5));
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newScheduledThreadPool(FLUSHER_THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "Elasticsearch bulk flusher"));
+
+    /**
+     * Number of indexers with undelivered documents by endpoint, see {@link #hasUndelivered(ElasticSearchDao)}.
+     */
+    private static final ConcurrentMap<String, AtomicInteger> UNDELIVERED = new ConcurrentHashMap<>();
+
+    /**
+     * Spill directories of endpoints which have been searched for queues left behind.
+     */
+    private static final Set<File> RECOVERED_SPILL_ROOTS = ConcurrentHashMap.newKeySet();
+
+    private static final String URI_ATTRIBUTE = "uri";
+    private static final String ROUTING_ATTRIBUTE = "routing";
+
+    @Nonnull
+    private final ElasticSearchDao dao;
+    private final int maxDocuments;
+    private final int maxBytes;
+    private final long maxLatencyMillis;
+    private final int capacity;
+    private final long maxBlockNanos;
+    private final long retryIntervalMillis;
+    @Nonnull
+    private final RetryPolicy retryPolicy;
+    @Nonnull
+    private final CircuitBreaker breaker;
+    @Nonnull
+    private final BackpressurePolicy backpressurePolicy;
+    @Nonnull
+    private final String action;
+    @CheckForNull
+    private final String routing;
+    @CheckForNull
+    private final SpillQueue spill;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    /**
+     * Documents which overflowed the buffer with the {@link BackpressurePolicy#SPILL} policy.
+     * They precede the {@link #queue}, and are spilled by the flusher, see {@link #spillBuffer()}.
+     */
+    private final ArrayDeque<byte[]> overflow = new ArrayDeque<>();
+    private long queuedBytes;
+    private long dropped;
+    private boolean flushScheduled;
+    private boolean timerScheduled;
+    private boolean retryScheduled;
+    private boolean closed;
+    private long closedAt;
+    /**
+     * Set once a writer has waited for space in vain, so that the next writers do not wait again.
+     * Cleared when a batch leaves the buffer.
+     */
+    private boolean blockTimedOut;
+
+    /**
+     * Serializes senders, so that batches reach Elasticsearch in the order they were queued.
+     */
+    private final Object sendLock = new Object();
+    /**
+     * Consecutive failed attempts, they drive the backoff.
+     */
+    private int failedAttempts;
+    /**
+     * Set while backing off after a failure, no request is sent before {@link #backoffUntil}.
+     */
+    private boolean backingOff;
+    private long backoffUntil;
+    /**
+     * Rest of a partially delivered spilled batch, it is sent before anything else.
+     */
+    @CheckForNull
+    private List<byte[]> retryHead;
+    /**
+     * Set from a failed delivery until everything queued before it has been delivered.
+     */
+    private boolean undelivered;
+    private final JsonBuffer body = new JsonBuffer(64 * 1024);
+    /**
+     * Compresses {@link #body} if compression is enabled.
+     */
+    @CheckForNull
+    private final GzipEncoder gzip;
+    @Nonnull
+    private final BulkEncoding encoding;
+    /**
+     * Encodes {@link #body} if {@link BulkEncoding#SMILE} is used.
+     */
+    @CheckForNull
+    private final SmileEncoder smile;
+    /**
+     * Action line, precomputed for the binary encoding.
+     */
+    @CheckForNull
+    private final byte[] actionLine;
+
+    public BulkIndexer(@Nonnull ElasticSearchDao dao, @Nonnull ElasticsearchWriterConfiguration config) {
+        this(dao, config, null);
+    }
+
+    /**
+     * @param routing Shard routing value of all documents, {@code null} for the default routing
+     */
+    public BulkIndexer(@Nonnull ElasticSearchDao dao, @Nonnull ElasticsearchWriterConfiguration config,
+                       @CheckForNull String routing) {
+        this(dao, config, routing,
+                config.isSpillEnabled() || config.getBackpressurePolicy() == BackpressurePolicy.SPILL
+                        ? createSpillQueue(dao, config, routing) : null);
+        if (spill != null) {
+            File root = getSpillRoot(dao, config);
+            if (RECOVERED_SPILL_ROOTS.add(root)) {
+                FLUSHER.execute(() -> recoverSpillQueues(dao, config, root));
+            }
+        }
+    }
+
+    private BulkIndexer(@Nonnull ElasticSearchDao dao, @Nonnull ElasticsearchWriterConfiguration config,
+                        @CheckForNull String routing, @CheckForNull SpillQueue spill) {
+        this.dao = dao;
+        this.routing = routing;
+        this.maxDocuments = config.getMaxBulkDocuments();
+        this.maxBytes = config.getMaxBulkBytes();
+        this.maxLatencyMillis = config.getMaxLatencyMillis();
+        this.capacity = Math.max(config.getBufferCapacity(), maxDocuments);
+        this.maxBlockNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxBlockMillis());
+        this.retryIntervalMillis = config.getSpillReplayIntervalMillis();
+        this.retryPolicy = new RetryPolicy(config.getMaxRetries(),
+                config.getInitialBackoffMillis(), config.getMaxBackoffMillis());
+        this.breaker = CircuitBreaker.forDao(dao,
+                config.getCircuitBreakerFailureThreshold(), config.getCircuitBreakerOpenMillis());
+        this.spill = spill;
+        this.backpressurePolicy = config.getBackpressurePolicy() == BackpressurePolicy.SPILL && spill == null
+                ? BackpressurePolicy.BLOCK : config.getBackpressurePolicy();
+        this.action = config.getIndexRouting().getBulkAction();
+        this.gzip = config.isCompression() ? new GzipEncoder() : null;
+        this.encoding = config.getBulkEncoding();
+        this.smile = encoding == BulkEncoding.SMILE ? new SmileEncoder() : null;
+        if (smile != null) {
+            JsonBuffer out = new JsonBuffer(128);
+            writeAction(out);
+            // Without the trailing newline
+            actionLine = Arrays.copyOf(out.array(), out.size() - 1);
+        } else {
+            actionLine = null;
+        }
+    }
+
+    /**
+     * Gets the directory which holds the spill queues of the endpoint.
+     */
+    @Nonnull
+    static File getSpillRoot(@Nonnull ElasticSearchDao dao, @Nonnull ElasticsearchWriterConfiguration config) {
+        String base = config.getSpillDirectory();
+        File root = base != null ? new File(base) : new File(System.getProperty("java.io.tmpdir"), "elasticsearch-spill");
+        return new File(root, dao.getRootUri().replaceAll("[^A-Za-z0-9.-]", "_"));
+    }
+
+    @CheckForNull
+    private static SpillQueue createSpillQueue(@Nonnull ElasticSearchDao dao,
+                                               @Nonnull ElasticsearchWriterConfiguration config,
+                                               @CheckForNull String routing) {
+        File directory = new File(getSpillRoot(dao, config), UUID.randomUUID().toString());
+        SpillQueue queue = null;
+        try {
+            queue = new SpillQueue(directory, config.getMaxSpillSegments(),
+                    config.getMaxSpillSegmentBytes(), config.getSpillSyncPolicy());
+            Properties attributes = new Properties();
+            attributes.setProperty(URI_ATTRIBUTE, dao.getUri().toString());
+            if (routing != null) {
+                attributes.setProperty(ROUTING_ATTRIBUTE, routing);
+            }
+            queue.writeAttributes(attributes);
+            return queue;
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Cannot create spill queue in " + directory + ", spilling is disabled", ex);
+            if (queue != null) {
+                try {
+                    queue.close();
+                } catch (IOException closeEx) {
+                    ex.addSuppressed(closeEx);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Replays the spill queues which have been left behind in the directory of the endpoint.
+     * Every queue gets a closed indexer of its own, which delivers it in the background and then removes it.
+     */
+    private static void recoverSpillQueues(@Nonnull ElasticSearchDao dao, @Nonnull ElasticsearchWriterConfiguration config,
+                                           @Nonnull File root) {
+        // Queues without attributes may still be set up by their owner
+        File[] directories = root.listFiles(SpillQueue::hasAttributes);
+        if (directories == null) {
+            return;
+        }
+        for (File directory : directories) {
+            try {
+                SpillQueue queue = SpillQueue.claim(directory, config.getMaxSpillSegments(),
+                        config.getMaxSpillSegmentBytes(), config.getSpillSyncPolicy());
+                if (queue == null) {
+                    continue;
+                }
+                Properties attributes = queue.readAttributes();
+                String uri = attributes.getProperty(URI_ATTRIBUTE);
+                if (queue.isEmpty() || uri == null) {
+                    queue.close();
+                    continue;
+                }
+                LOGGER.log(Level.INFO, "Replaying {0} batches of log data left behind in {1}",
+                        new Object[] {queue.size(), directory});
+                ElasticSearchDao target;
+                try {
+                    target = dao.withUri(URI.create(uri));
+                } catch (IllegalArgumentException ex) {
+                    queue.close();
+                    throw new IOException("Spill queue for " + uri + " does not belong to " + dao.getRootUri(), ex);
+                }
+                new BulkIndexer(target, config, attributes.getProperty(ROUTING_ATTRIBUTE), queue).close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Cannot replay spill queue in " + directory, ex);
+            }
+        }
+    }
+
+    /**
+     * Queues a serialized document.
+     * If the buffer is full, the {@link BackpressurePolicy} applies.
+     * @param document Document in the JSON format, without trailing newline
+     * @throws IOException The indexer is closed, or the thread was interrupted while waiting for space
+     */
+    public void add(@Nonnull byte[] document) throws IOException {
+        add(document, true);
+    }
+
+    /**
+     * Queues a serialized document without waiting for space, e.g. from a timer on the flusher threads.
+     * Unlike {@link #add(byte[])}, it never parks the calling thread.
+     * @param document Document in the JSON format, without trailing newline
+     * @return {@code false} if the buffer is full and the {@link BackpressurePolicy#BLOCK} policy applies.
+     *         The document has not been queued then, and the caller should offer it again later
+     * @throws IOException The indexer is closed
+     */
+    public boolean offer(@Nonnull byte[] document) throws IOException {
+        return add(document, false);
+    }
+
+    private boolean add(@Nonnull byte[] document, boolean wait) throws IOException {
+        lock.lock();
+        try {
+            long blockNanos = blockTimedOut ? 0 : maxBlockNanos;
+            while (queue.size() >= capacity) {
+                if (closed) {
+                    break;
+                }
+                switch (backpressurePolicy) {
+                    case DROP_OLDEST:
+                        byte[] oldest = queue.poll();
+                        queuedBytes -= oldest.length;
+                        onDropped(1);
+                        break;
+                    case DROP_NEWEST:
+                        onDropped(1);
+                        return true;
+                    case SPILL:
+                        spillBuffer();
+                        break;
+                    default:
+                        scheduleFlush();
+                        if (!wait) {
+                            return false;
+                        }
+                        if (blockNanos <= 0) {
+                            if (!blockTimedOut) {
+                                blockTimedOut = true;
+                                LOGGER.log(Level.WARNING, "Timed out waiting for space in the bulk buffer for {0}",
+                                        dao.getDescription());
+                            }
+                            if (spill != null) {
+                                spillBuffer();
+                                break;
+                            }
+                            onDropped(1);
+                            return true;
+                        }
+                        blockNanos = notFull.awaitNanos(blockNanos);
+                }
+            }
+            if (closed) {
+                throw new IOException("Bulk indexer for " + dao.getDescription() + " is closed");
+            }
+            queue.add(document);
+            queuedBytes += document.length;
+            if (queue.size() >= maxDocuments || queuedBytes >= maxBytes) {
+                scheduleFlush();
+            } else if (!timerScheduled) {
+                timerScheduled = true;
+                FLUSHER.schedule(this::onTimer, maxLatencyMillis, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw (IOException)new InterruptedIOException("Interrupted while waiting for the bulk buffer").initCause(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs a task on the flusher threads, e.g. to seal data which is still pending in a writer.
+     * The task must not block, otherwise it holds up the flushes of all indexers.
+     * It should queue documents with {@link #offer(byte[])}.
+     */
+    public static void schedule(@Nonnull Runnable task, long delayMillis) {
+        FLUSHER.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends all queued documents which can be delivered now.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            long lost;
+            lock.lock();
+            try {
+                if (!closed) {
+                    closed = true;
+                    closedAt = System.nanoTime();
+                }
+                notFull.signalAll();
+                lost = dropped;
+            } finally {
+                lock.unlock();
+            }
+            if (lost > 0) {
+                LOGGER.log(Level.WARNING, "{0} log events for {1} have been dropped",
+                        new Object[] {lost, dao.getDescription()});
+            }
+            closeSpillIfEmpty();
+        }
+    }
+
+    // must be called under lock
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            FLUSHER.execute(this::onFlushRequest);
+        }
+    }
+
+    private void onFlushRequest() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+        } finally {
+            lock.unlock();
+        }
+        backgroundDrain();
+    }
+
+    private void onTimer() {
+        lock.lock();
+        try {
+            timerScheduled = false;
+        } finally {
+            lock.unlock();
+        }
+        backgroundDrain();
+    }
+
+    private void backgroundDrain() {
+        try {
+            drain();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed to send log data to " + dao.getDescription(), ex);
+        }
+    }
+
+    private void drain() throws IOException {
+        long retryDelayMillis;
+        synchronized (sendLock) {
+            retryDelayMillis = deliver();
+        }
+        if (retryDelayMillis >= 0) {
+            scheduleRetry(retryDelayMillis);
+        }
+    }
+
+    /**
+     * Sends everything which can be delivered now, oldest first.
+     * Every batch gets a single attempt. After a transient failure the batch goes back to the head
+     * and the thread is released until the backoff elapses, so that a failing endpoint does not
+     * hold up the flusher threads.
+     * @return Delay before the next attempt, {@code -1} if nothing is pending
+     */
+    // must be called under sendLock
+    private long deliver() throws IOException {
+        abandonIfExpired();
+        spillOverflow();
+        if (backingOff) {
+            long wait = backoffUntil - System.nanoTime();
+            if (wait > 0) {
+                return TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+            }
+            backingOff = false;
+        }
+        boolean delivering = true;
+        if (retryHead != null) {
+            retryHead = attempt(retryHead);
+            delivering = retryHead == null;
+        }
+        if (delivering && spill != null) {
+            List<byte[]> batch;
+            while ((batch = spill.peek()) != null) {
+                List<byte[]> remaining = attempt(batch);
+                if (remaining != batch) {
+                    // Part of the batch may be in Elasticsearch now, only keep the rest
+                    spill.remove();
+                    retryHead = remaining;
+                }
+                if (remaining != null) {
+                    delivering = false;
+                    break;
+                }
+            }
+        }
+        // Batches are only spilled once the retries are exhausted or the circuit is open
+        while (true) {
+            if (spillOverflow()) {
+                // The overflow is older than the rest of the buffer
+                delivering = false;
+            }
+            if (!delivering && (spill == null || backingOff)) {
+                break;
+            }
+            List<byte[]> batch = takeBatch();
+            if (batch.isEmpty()) {
+                break;
+            }
+            if (delivering) {
+                List<byte[]> remaining = attempt(batch);
+                if (remaining == null) {
+                    signalNotFull();
+                    continue;
+                }
+                delivering = false;
+                batch = remaining;
+                if (backingOff) {
+                    requeue(batch);
+                    break;
+                }
+            }
+            if (spill != null) {
+                // Once anything is spilled, newer batches must queue behind it to keep the order
+                spill(batch);
+                signalNotFull();
+            } else {
+                requeue(batch);
+            }
+        }
+        setUndelivered(!delivering || retryHead != null || (spill != null && !spill.isEmpty()));
+        if (backingOff) {
+            return Math.max(TimeUnit.NANOSECONDS.toMillis(backoffUntil - System.nanoTime()) + 1, 0);
+        }
+        boolean pending = retryHead != null || (spill != null && !spill.isEmpty()) || hasQueued();
+        return pending ? retryIntervalMillis : -1;
+    }
+
+    /**
+     * Stops retrying the documents held in memory once the indexer has been closed for too long.
+     * They are handed over to the spill queue, or dropped if there is none.
+     */
+    // must be called under sendLock
+    private void abandonIfExpired() {
+        int abandoned;
+        lock.lock();
+        try {
+            if (!closed || System.nanoTime() - closedAt < TimeUnit.MILLISECONDS.toNanos(CLOSED_RETRY_MILLIS)) {
+                return;
+            }
+            ArrayDeque<byte[]> documents = new ArrayDeque<>();
+            if (retryHead != null) {
+                // It has left the spill queue already, so it goes to the tail now
+                documents.addAll(retryHead);
+                retryHead = null;
+            }
+            documents.addAll(overflow);
+            documents.addAll(queue);
+            overflow.clear();
+            queue.clear();
+            queuedBytes = 0;
+            abandoned = documents.size();
+            if (abandoned == 0) {
+                return;
+            }
+            backingOff = false;
+            failedAttempts = 0;
+            if (spill != null) {
+                // Spilled by spillOverflow() right after
+                overflow.addAll(documents);
+            }
+        } finally {
+            lock.unlock();
+        }
+        LOGGER.log(Level.WARNING, "{0} {1} log events for {2}, which could not be delivered after the writer was closed",
+                new Object[] {spill != null ? "Spilling" : "Dropping", abandoned, dao.getDescription()});
+    }
+
+    /**
+     * Checks whether documents for the Elasticsearch endpoint are waiting for a retry or in a spill queue in this JVM.
+     * Logs read in the meantime may be incomplete even if they have settled.
+     * Once the documents have been delivered, the cached logs of the endpoint are invalidated.
+     */
+    public static boolean hasUndelivered(@Nonnull ElasticSearchDao dao) {
+        return UNDELIVERED.containsKey(dao.getRootUri());
+    }
+
+    // must be called under sendLock
+    private void setUndelivered(boolean undelivered) {
+        if (undelivered == this.undelivered) {
+            return;
+        }
+        this.undelivered = undelivered;
+        String endpoint = dao.getRootUri();
+        if (undelivered) {
+            UNDELIVERED.computeIfAbsent(endpoint, k -> new AtomicInteger()).incrementAndGet();
+        } else {
+            UNDELIVERED.computeIfPresent(endpoint, (k, count) -> count.decrementAndGet() > 0 ? count : null);
+            // Logs which have been cached while the documents were pending may miss them
+            LogCache.get().invalidateAll(endpoint + "/");
+        }
+    }
+
+    /**
+     * Sends the batch once.
+     * @return Documents which still have to be delivered, {@code null} if the batch is done.
+     *         It is the batch itself if nothing has been sent, e.g. because the circuit breaker is open
+     */
+    // must be called under sendLock
+    @CheckForNull
+    private List<byte[]> attempt(@Nonnull List<byte[]> batch) {
+        // Documents which cannot be encoded would fail every attempt, so they are dropped before the request
+        List<byte[]> documents = writeBody(batch);
+        if (documents.isEmpty()) {
+            return null;
+        }
+        if (!breaker.allowRequest()) {
+            return batch;
+        }
+        BulkResult result = null;
+        try {
+            result = send();
+        } catch (IOException ex) {
+            if (!RetryPolicy.isRetryable(ex)) {
+                LOGGER.log(Level.WARNING, "Dropping " + documents.size() + " log events rejected by "
+                        + dao.getDescription(), ex);
+                onDropped(documents.size());
+                return null;
+            }
+            return retryLater(documents, ex);
+        } catch (RuntimeException ex) {
+            // E.g. a response which cannot be parsed, it is unknown which documents have arrived
+            return retryLater(documents, new IOException("Cannot read the bulk response of " + dao.getDescription(), ex));
+        } finally {
+            // Every outcome is recorded, otherwise a failed probe would leave the breaker half-open
+            if (result != null) {
+                breaker.recordSuccess();
+            } else {
+                breaker.recordFailure();
+            }
+        }
+
+        if (result.getRejected() > 0) {
+            LOGGER.log(Level.WARNING, "{0} log events have been rejected by {1}: {2}",
+                    new Object[] {result.getRejected(), dao.getDescription(), result.getFirstError()});
+        }
+        List<Integer> failed = result.getRetryableFailures();
+        if (failed.isEmpty()) {
+            failedAttempts = 0;
+            return null;
+        }
+        List<byte[]> retry = new ArrayList<>(failed.size());
+        for (int index : failed) {
+            retry.add(documents.get(index));
+        }
+        return retryLater(retry, null);
+    }
+
+    /**
+     * Backs off after a transient failure.
+     * Once the retries are exhausted, the documents wait for the retry interval or get spilled.
+     */
+    // must be called under sendLock
+    @Nonnull
+    private List<byte[]> retryLater(@Nonnull List<byte[]> remaining, @CheckForNull IOException cause) {
+        if (retryPolicy.canRetry(failedAttempts)) {
+            backingOff = true;
+            backoffUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryPolicy.backoffMillis(failedAttempts));
+            failedAttempts++;
+            LOGGER.log(Level.FINE, "Failed to send log data to " + dao.getDescription() + ", backing off", cause);
+        } else {
+            failedAttempts = 0;
+            LOGGER.log(Level.WARNING, "Failed to send log data to " + dao.getDescription()
+                    + (spill != null ? ", spilling it to the disk until the connection recovers"
+                                     : ", will retry later"), cause);
+        }
+        return remaining;
+    }
+
+    // must be called under sendLock
+    private void spill(@Nonnull List<byte[]> batch) throws IOException {
+        assert spill != null;
+        if (!spill.append(batch)) {
+            LOGGER.log(Level.WARNING, "Spill queue for {0} is full, dropping {1} log events",
+                    new Object[] {dao.getDescription(), batch.size()});
+            onDropped(batch.size());
+        }
+    }
+
+    /**
+     * Hands the full buffer over to the flusher, which spills it.
+     * A batch which is being sent is older than the buffer, and it may get spilled once the request fails.
+     * Only the flusher knows when that is, so that it keeps the spilled batches in order.
+     */
+    // must be called under lock
+    private void spillBuffer() {
+        overflow.addAll(queue);
+        queue.clear();
+        queuedBytes = 0;
+        scheduleFlush();
+    }
+
+    /**
+     * Spills the documents handed over by {@link #spillBuffer()}, in batches of the usual size.
+     * @return {@code true} if anything has been spilled
+     */
+    // must be called under sendLock
+    private boolean spillOverflow() throws IOException {
+        if (spill == null) {
+            return false;
+        }
+        List<byte[]> documents;
+        lock.lock();
+        try {
+            if (overflow.isEmpty()) {
+                return false;
+            }
+            documents = new ArrayList<>(overflow);
+            overflow.clear();
+        } finally {
+            lock.unlock();
+        }
+        List<byte[]> batch = new ArrayList<>(Math.min(documents.size(), maxDocuments));
+        long batchBytes = 0;
+        for (byte[] document : documents) {
+            batch.add(document);
+            batchBytes += document.length;
+            if (batch.size() >= maxDocuments || batchBytes >= maxBytes) {
+                spill(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            spill(batch);
+        }
+        return true;
+    }
+
+    private void onDropped(int count) {
+        lock.lock();
+        try {
+            if (dropped == 0) {
+                LOGGER.log(Level.WARNING, "Cannot deliver log data to {0} fast enough, dropping log events ({1} policy)",
+                        new Object[] {dao.getDescription(), backpressurePolicy});
+            }
+            dropped += count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void scheduleRetry(long delayMillis) {
+        lock.lock();
+        try {
+            if (retryScheduled) {
+                return;
+            }
+            retryScheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        FLUSHER.schedule(this::onRetry, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void onRetry() {
+        lock.lock();
+        try {
+            retryScheduled = false;
+        } finally {
+            lock.unlock();
+        }
+        backgroundDrain();
+        try {
+            closeSpillIfEmpty();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed to close spill queue for " + dao.getDescription(), ex);
+        }
+    }
+
+    private void closeSpillIfEmpty() throws IOException {
+        if (spill == null) {
+            return;
+        }
+        boolean isClosed;
+        lock.lock();
+        try {
+            isClosed = closed;
+        } finally {
+            lock.unlock();
+        }
+        synchronized (sendLock) {
+            // Batches which are backing off in memory may still need to be spilled
+            if (isClosed && spill.isEmpty() && retryHead == null && !hasQueued()) {
+                spill.close();
+            }
+        }
+    }
+
+    private boolean hasQueued() {
+        lock.lock();
+        try {
+            return !queue.isEmpty() || !overflow.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nonnull
+    private List<byte[]> takeBatch() {
+        lock.lock();
+        try {
+            List<byte[]> batch = new ArrayList<>(Math.min(queue.size(), maxDocuments));
+            long batchBytes = 0;
+            while (!queue.isEmpty() && batch.size() < maxDocuments && batchBytes < maxBytes) {
+                byte[] document = queue.poll();
+                batch.add(document);
+                batchBytes += document.length;
+            }
+            queuedBytes -= batchBytes;
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up writers waiting for space once a batch has left the buffer for good.
+     */
+    private void signalNotFull() {
+        lock.lock();
+        try {
+            blockTimedOut = false;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts an undelivered batch back to the head of the buffer.
+     */
+    private void requeue(@Nonnull List<byte[]> batch) {
+        lock.lock();
+        try {
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                byte[] document = batch.get(i);
+                if (!overflow.isEmpty()) {
+                    overflow.addFirst(document);
+                    continue;
+                }
+                queue.addFirst(document);
+                queuedBytes += document.length;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a single {@code _bulk} request with the body written by {@link #writeBody(List)}.
+     */
+    // must be called under sendLock
+    @Nonnull
+    private BulkResult send() throws IOException {
+        byte[] data;
+        int length;
+        if (smile != null) {
+            data = smile.array();
+            length = smile.size();
+        } else {
+            data = body.array();
+            length = body.size();
+        }
+        if (gzip != null) {
+            gzip.encode(data, 0, length);
+            return dao.pushBulk(gzip.array(), gzip.size(), encoding, true);
+        }
+        return dao.pushBulk(data, length, encoding, false);
+    }
+
+    /**
+     * Writes the action line which precedes every document in the request body.
+     */
+    private void writeAction(@Nonnull JsonBuffer out) {
+        out.startObject().name(action).startObject();
+        if (routing != null) {
+            out.name("routing").value(routing);
+        }
+        out.endObject().endObject().newLine();
+    }
+
+    /**
+     * Writes the request body for the batch.
+     * @return Documents in the body, in the order of the bulk response items.
+     *         Documents which cannot be encoded are dropped
+     */
+    // must be called under sendLock
+    @Nonnull
+    private List<byte[]> writeBody(@Nonnull List<byte[]> batch) {
+        if (smile != null) {
+            return writeSmileBody(batch);
+        }
+        body.reset();
+        for (byte[] document : batch) {
+            writeAction(body);
+            body.raw(document, 0, document.length).newLine();
+        }
+        return batch;
+    }
+
+    // must be called under sendLock
+    @Nonnull
+    private List<byte[]> writeSmileBody(@Nonnull List<byte[]> batch) {
+        assert smile != null && actionLine != null;
+        smile.reset();
+        List<byte[]> documents = batch;
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] document = batch.get(i);
+            int mark = smile.size();
+            try {
+                smile.writeDocument(actionLine, 0, actionLine.length);
+                smile.writeDocument(document, 0, document.length);
+            } catch (IOException ex) {
+                // Malformed input, retrying would not help
+                smile.truncate(mark);
+                LOGGER.log(Level.WARNING, "Dropping a log event for " + dao.getDescription()
+                        + " which cannot be encoded", ex);
+                onDropped(1);
+                if (documents == batch) {
+                    documents = new ArrayList<>(batch.subList(0, i));
+                }
+                continue;
+            }
+            if (documents != batch) {
+                documents.add(document);
+            }
+        }
+        return documents;
+    }
+}
@@ -0,0 +1,92 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per-document outcome of a {@code _bulk} request.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class BulkResult {
+
+    public static final BulkResult SUCCESS = new BulkResult(Collections.emptyList(), 0, null);
+
+    @Nonnull
+    private final List<Integer> retryableFailures;
+    private final int rejected;
+    @CheckForNull
+    private final String firstError;
+
+    private BulkResult(@Nonnull List<Integer> retryableFailures, int rejected, @CheckForNull String firstError) {
+        this.retryableFailures = retryableFailures;
+        this.rejected = rejected;
+        this.firstError = firstError;
+    }
+
+    /**
+     * Parses the {@code _bulk} response body.
+     */
+    @Nonnull
+    public static BulkResult parse(@Nonnull String response) {
+        JSONObject json = JSONObject.fromObject(response);
+        if (!json.optBoolean("errors")) {
+            return SUCCESS;
+        }
+        JSONArray items = json.optJSONArray("items");
+        if (items == null) {
+            return SUCCESS;
+        }
+        List<Integer> retryable = new ArrayList<>();
+        int rejected = 0;
+        String firstError = null;
+        for (int i = 0; i < items.size(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            for (Object action : item.values()) {
+                JSONObject result = (JSONObject) action;
+                int status = result.optInt("status", 200);
+                if (status < 300) {
+                    continue;
+                }
+                if (RetryPolicy.isRetryableStatus(status)) {
+                    retryable.add(i);
+                } else {
+                    rejected++;
+                    if (firstError == null) {
+                        firstError = result.optString("error");
+                    }
+                }
+            }
+        }
+        return new BulkResult(retryable, rejected, firstError);
+    }
+
+    /**
+     * @return Indexes of documents in the request which may be retried
+     */
+    @Nonnull
+    public List<Integer> getRetryableFailures() {
+        return retryableFailures;
+    }
+
+    /**
+     * @return Number of documents which have been rejected permanently, e.g. due to mapping errors
+     */
+    public int getRejected() {
+        return rejected;
+    }
+
+    @CheckForNull
+    public String getFirstError() {
+        return firstError;
+    }
+}
@@ -0,0 +1,171 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import hudson.console.ConsoleNote;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Packs consecutive lines into a single chunk document.
+ * <p>
+ * The chunk message is the lines joined by {@code \n}, so it renders exactly like the separate lines would.
+ * Annotation positions are relative to the chunk message.
+ * The {@code lineOffsets} and {@code lineTimestamps} members keep the position and the time of every line.
+ * Only lines with the same event data get into the same chunk.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class ChunkBuilder {
+
+    private final int maxLines;
+    private final int maxBytes;
+
+    private final JsonBuffer text = new JsonBuffer(4096);
+    private final JsonBuffer notes = new JsonBuffer();
+    private final JSONConsoleNotes.NoteScan scan = new JSONConsoleNotes.NoteScan();
+    private int[] lineOffsets = new int[64];
+    private long[] lineTimestamps = new long[64];
+    private int lines;
+    private int length;
+    private boolean hasNotes;
+    @CheckForNull
+    private Map<String, Serializable> data;
+    @CheckForNull
+    private final NoteDictionary dictionary;
+
+    public ChunkBuilder(int maxLines, int maxBytes) {
+        this(maxLines, maxBytes, null);
+    }
+
+    /**
+     * @param dictionary If not {@code null}, long notes are written as references to its documents
+     */
+    public ChunkBuilder(int maxLines, int maxBytes, @CheckForNull NoteDictionary dictionary) {
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+        this.dictionary = dictionary;
+    }
+
+    public boolean isEmpty() {
+        return lines == 0;
+    }
+
+    /**
+     * @return {@code true} if the chunk reached one of its limits and should be sealed
+     */
+    public boolean isFull() {
+        return lines >= maxLines || text.size() >= maxBytes;
+    }
+
+    /**
+     * Checks whether a line with the specified event data may be appended to the chunk.
+     */
+    public boolean accepts(@CheckForNull Map<String, Serializable> data) {
+        return lines == 0 || Objects.equals(this.data, data);
+    }
+
+    /**
+     * @return Event data of the lines in the chunk
+     */
+    @CheckForNull
+    public Map<String, Serializable> getData() {
+        return data;
+    }
+
+    /**
+     * @return Timestamp of the first line
+     */
+    public long getFirstTimestamp() {
+        return lines > 0 ? lineTimestamps[0] : 0;
+    }
+
+    public void append(@Nonnull String line, @CheckForNull Map<String, Serializable> data, long timestamp) {
+        int position = startLine(data, timestamp);
+        length += JSONConsoleNotes.appendText(line, text);
+        if (line.contains(ConsoleNote.PREAMBLE_STR)) {
+            appendNotes();
+            JSONConsoleNotes.appendNotes(line, position, notes, dictionary);
+        }
+    }
+
+    /**
+     * Appends a UTF-8 encoded line.
+     */
+    public void append(@Nonnull byte[] b, int off, int len, @CheckForNull Map<String, Serializable> data, long timestamp) {
+        int position = startLine(data, timestamp);
+        boolean lineHasNotes = scan.scan(b, off, len);
+        length += JSONConsoleNotes.appendText(b, off, len, text, scan);
+        if (lineHasNotes) {
+            appendNotes();
+            JSONConsoleNotes.appendNotes(b, position, notes, dictionary, scan);
+        }
+    }
+
+    /**
+     * Writes the chunk members into an open document object and resets the builder.
+     */
+    public void writeTo(@Nonnull JsonBuffer dest) {
+        text.endString();
+        dest.name("message").rawValue(text.array(), 0, text.size());
+        if (hasNotes) {
+            notes.endArray();
+            dest.name("annotations").rawValue(notes.array(), 0, notes.size());
+        }
+        dest.name("lines").value(lines);
+        dest.name("lineOffsets").startArray();
+        for (int i = 0; i < lines; i++) {
+            dest.value(lineOffsets[i]);
+        }
+        dest.endArray();
+        dest.name("lineTimestamps").startArray();
+        for (int i = 0; i < lines; i++) {
+            dest.value(lineTimestamps[i]);
+        }
+        dest.endArray();
+        reset();
+    }
+
+    private void reset() {
+        text.reset();
+        notes.reset();
+        lines = 0;
+        length = 0;
+        hasNotes = false;
+        data = null;
+    }
+
+    /**
+     * @return Position of the new line in the chunk message
+     */
+    private int startLine(@CheckForNull Map<String, Serializable> data, long timestamp) {
+        if (lines == 0) {
+            text.startString();
+            this.data = data;
+        } else {
+            text.appendEscaped("\n", 0, 1);
+            length++;
+        }
+        if (lines == lineOffsets.length) {
+            lineOffsets = Arrays.copyOf(lineOffsets, lines * 2);
+            lineTimestamps = Arrays.copyOf(lineTimestamps, lines * 2);
+        }
+        lineOffsets[lines] = length;
+        lineTimestamps[lines] = timestamp;
+        lines++;
+        return length;
+    }
+
+    private void appendNotes() {
+        if (!hasNotes) {
+            notes.startArray();
+            hasNotes = true;
+        }
+    }
+}
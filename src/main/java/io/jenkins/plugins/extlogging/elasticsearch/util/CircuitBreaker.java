@@ -0,0 +1,105 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops requests to an Elasticsearch endpoint after a series of failures.
+ * Breakers are shared by all writers in the JVM which target the same endpoint, see {@link ElasticSearchDao#getRootUri()},
+ * so that daily indices or other keys of the endpoint see the same outage and do not add up breakers.
+ * <p>
+ * After {@code failureThreshold} consecutive failures the breaker opens, and requests are not sent
+ * for {@code openMillis}. Then a single probe request is let through. Its success closes the breaker,
+ * and its failure opens it again.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    @Nonnull
+    private final String endpoint;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    CircuitBreaker(@Nonnull String endpoint, int failureThreshold, long openMillis) {
+        this.endpoint = endpoint;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Gets the breaker for the DAO endpoint.
+     * The thresholds are taken from the first caller for the endpoint.
+     */
+    @Nonnull
+    public static CircuitBreaker forDao(@Nonnull ElasticSearchDao dao, int failureThreshold, long openMillis) {
+        return BREAKERS.computeIfAbsent(dao.getRootUri(),
+                endpoint -> new CircuitBreaker(endpoint, failureThreshold, openMillis));
+    }
+
+    /**
+     * Checks whether a request may be sent now.
+     * Once the open period expires, only the first caller gets {@code true} until the probe completes.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= openMillis) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return {@code true} if requests are currently rejected
+     */
+    public synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            LOGGER.log(Level.INFO, "Connection to {0} has recovered", endpoint);
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                LOGGER.log(Level.WARNING, "{0} consecutive requests to {1} have failed, suspending requests for {2} ms",
+                        new Object[] {failures, endpoint, openMillis});
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+}
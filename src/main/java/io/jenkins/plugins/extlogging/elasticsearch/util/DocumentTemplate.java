@@ -0,0 +1,72 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Metadata which is the same for all events of a writer, e.g. job and build identifiers.
+ * The entries are serialized once and copied into every document,
+ * event data entries with the same keys are skipped.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class DocumentTemplate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final DocumentTemplate EMPTY = new DocumentTemplate(Collections.<String, String>emptyMap());
+
+    @Nonnull
+    private final LinkedHashMap<String, String> data;
+
+    /**
+     * Encoded {@link #data} members. Rebuilt after deserialization on the agent.
+     */
+    @CheckForNull
+    private transient volatile byte[] encodedData;
+
+    public DocumentTemplate(@Nonnull Map<String, String> data) {
+        this.data = new LinkedHashMap<>(data);
+    }
+
+    @Nonnull
+    public Map<String, String> getData() {
+        return Collections.unmodifiableMap(data);
+    }
+
+    /**
+     * Checks whether the event data entry is already provided by the template.
+     */
+    public boolean containsData(@Nonnull String key) {
+        return data.containsKey(key);
+    }
+
+    /**
+     * Writes the constant data members into the open {@code data} object.
+     */
+    public void writeData(@Nonnull JsonBuffer dest) {
+        byte[] encoded = encodedData;
+        if (encoded == null) {
+            JsonBuffer buffer = new JsonBuffer();
+            buffer.startObject();
+            for (Map.Entry<String, String> entry : data.entrySet()) {
+                buffer.name(entry.getKey()).value(entry.getValue());
+            }
+            buffer.endObject();
+            // Strip the braces
+            encoded = buffer.size() > 2
+                    ? Arrays.copyOfRange(buffer.array(), 1, buffer.size() - 1) : new byte[0];
+            encodedData = encoded;
+        }
+        dest.rawMembers(encoded);
+    }
+}
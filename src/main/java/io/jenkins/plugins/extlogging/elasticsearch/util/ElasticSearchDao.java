@@ -27,20 +27,25 @@ package io.jenkins.plugins.extlogging.elasticsearch.util;
 
 import com.google.common.collect.Range;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 
 import static com.google.common.collect.Ranges.closedOpen;
@@ -69,6 +74,20 @@ public class ElasticSearchDao implements Serializable {
     @CheckForNull
     private transient HttpClientBuilder clientBuilder;
 
+    /**
+     * Client built from the custom {@link #clientBuilder}, if any.
+     * Otherwise the client is looked up in {@link SharedHttpClients},
+     * so that a deserialized DAO reuses the pool of its JVM.
+     */
+    @CheckForNull
+    private transient CloseableHttpClient customClient;
+
+    /**
+     * Key of the shared client, computed once per DAO instance.
+     */
+    @CheckForNull
+    private transient SharedHttpClients.Key clientKey;
+
     @CheckForNull
     private transient String auth;
 
@@ -95,12 +114,32 @@ public class ElasticSearchDao implements Serializable {
         clientBuilder = factory;
     }
 
+    /**
+     * @deprecated Use {@link #getHttpClient()}, which reuses pooled connections
+     */
+    @Deprecated
     @Nonnull
     public HttpClientBuilder getClientBuilder() {
-        if (clientBuilder == null) {
-            clientBuilder = HttpClientBuilder.create();
+        return clientBuilder != null ? clientBuilder : HttpClientBuilder.create();
+    }
+
+    /**
+     * Gets HTTP client for the Elasticsearch endpoint.
+     * @return Long-lived client. It must not be closed by callers,
+     *         and response entities must be consumed to return connections to the pool.
+     */
+    @Nonnull
+    public synchronized CloseableHttpClient getHttpClient() {
+        if (clientBuilder != null) {
+            if (customClient == null) {
+                customClient = clientBuilder.build();
+            }
+            return customClient;
+        }
+        if (clientKey == null) {
+            clientKey = SharedHttpClients.getKey(this);
         }
-        return clientBuilder;
+        return SharedHttpClients.get(clientKey);
     }
 
     public URI getUri() {
@@ -132,6 +171,80 @@ public class ElasticSearchDao implements Serializable {
         return uri.getPath();
     }
 
+    /**
+     * Gets the index name, i.e. the first segment of the key.
+     * @return Index name or {@code null} if the key is empty
+     */
+    @CheckForNull
+    public String getIndex() {
+        String path = StringUtils.strip(uri.getPath(), "/");
+        if (StringUtils.isEmpty(path)) {
+            return null;
+        }
+        int slash = path.indexOf('/');
+        return slash == -1 ? path : path.substring(0, slash);
+    }
+
+    /**
+     * Creates a DAO for another index on the same endpoint.
+     * The rest of the key and the credentials are kept, and so is the HTTP client.
+     * @param index Index name, replaces the first segment of the key
+     */
+    @Nonnull
+    public ElasticSearchDao withIndex(@Nonnull String index) {
+        String path = StringUtils.stripStart(uri.getRawPath(), "/");
+        int slash = path.indexOf('/');
+        String rest = slash == -1 ? "" : path.substring(slash);
+        return withUri(URI.create(getRootUri() + "/" + index + rest));
+    }
+
+    /**
+     * Creates a DAO for the index of the key without the mapping type,
+     * for the typeless APIs of Elasticsearch 7 and newer.
+     * Single documents are then indexed with the {@code _doc} endpoint, see {@link #push(byte[], int, String)}.
+     * @return DAO of the index, or this DAO if the key has no type
+     */
+    @Nonnull
+    public ElasticSearchDao withoutType() {
+        String index = getIndex();
+        if (index == null || StringUtils.strip(uri.getPath(), "/").equals(index)) {
+            return this;
+        }
+        return withUri(URI.create(getRootUri() + "/" + index));
+    }
+
+    /**
+     * Creates a DAO for another key on the same endpoint.
+     * The credentials and the HTTP client are kept.
+     * @throws IllegalArgumentException The URI points to another endpoint
+     */
+    @Nonnull
+    public ElasticSearchDao withUri(@Nonnull URI uri) {
+        if (!getRootUri().equals(uri.getScheme() + "://" + uri.getRawAuthority())) {
+            throw new IllegalArgumentException(uri + " is not on the endpoint " + getRootUri());
+        }
+        ElasticSearchDao dao = new ElasticSearchDao(uri, username, password);
+        dao.setMimeType(mimeType);
+        synchronized (this) {
+            if (clientBuilder != null) {
+                dao.clientBuilder = clientBuilder;
+                dao.customClient = getHttpClient();
+            } else {
+                // Same endpoint and credentials
+                dao.clientKey = clientKey;
+            }
+        }
+        return dao;
+    }
+
+    /**
+     * Gets the endpoint URI without the key, for APIs which are not bound to an index.
+     */
+    @Nonnull
+    public String getRootUri() {
+        return uri.getScheme() + "://" + uri.getRawAuthority();
+    }
+
     public String getMimeType() {
         return this.mimeType;
     }
@@ -148,14 +261,16 @@ public class ElasticSearchDao implements Serializable {
         return auth;
     }
 
-    HttpPost getHttpPost(String data) {
-        HttpPost postRequest = new HttpPost(uri);
+    HttpPost getHttpPost(byte[] data, int length, @CheckForNull String routing) {
+        // A key without a type is an index, its documents are indexed with the typeless endpoint
+        String target = StringUtils.strip(uri.getPath(), "/").equals(getIndex()) ? uri + "/_doc" : uri.toString();
+        HttpPost postRequest = new HttpPost(routing != null ? target + "?routing=" + encode(routing) : target);
         String mimeType = this.getMimeType();
-        // char encoding is set to UTF_8 since this request posts a JSON string
-        StringEntity input = new StringEntity(data, StandardCharsets.UTF_8);
-        mimeType = (mimeType != null) ? mimeType : ContentType.APPLICATION_JSON.toString();
-        input.setContentType(mimeType);
-        postRequest.setEntity(input);
+        // char encoding is always UTF_8, the data is serialized JSON
+        ContentType contentType = mimeType != null
+                ? ContentType.create(mimeType, StandardCharsets.UTF_8) : ContentType.APPLICATION_JSON;
+        postRequest.setEntity(new ByteArrayEntity(data, 0, length, contentType));
+        String auth = getAuth();
         if (auth != null) {
             postRequest.addHeader("Authorization", "Basic " + auth);
         }
@@ -163,17 +278,122 @@ public class ElasticSearchDao implements Serializable {
     }
 
     public void push(String data) throws IOException {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        push(bytes, bytes.length);
+    }
+
+    /**
+     * Indexes a single document.
+     * @param data Buffer with the UTF-8 encoded JSON document
+     * @param length Number of bytes in the buffer to send
+     * @throws IOException Request failure
+     * @throws ElasticsearchResponseException Elasticsearch responded with an error status
+     */
+    public void push(byte[] data, int length) throws IOException {
+        push(data, length, null);
+    }
 
-        HttpPost post = getHttpPost(data);
-        try(CloseableHttpClient httpClient = getClientBuilder().build();
-            CloseableHttpResponse response = httpClient.execute(post)) {
+    /**
+     * Indexes a single document.
+     * If the key has no type, the document is sent to the {@code _doc} endpoint of the index.
+     * @param data Buffer with the UTF-8 encoded JSON document
+     * @param length Number of bytes in the buffer to send
+     * @param routing Shard routing value, {@code null} for the default routing
+     * @throws IOException Request failure
+     * @throws ElasticsearchResponseException Elasticsearch responded with an error status
+     */
+    public void push(byte[] data, int length, @CheckForNull String routing) throws IOException {
 
-            if (!SUCCESS_CODES.contains(response.getStatusLine().getStatusCode())) {
-                throw new IOException(HttpGetWithData.getErrorMessage(uri, response));
+        HttpPost post = getHttpPost(data, length, routing);
+        try(CloseableHttpResponse response = getHttpClient().execute(post)) {
+
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (!SUCCESS_CODES.contains(statusCode)) {
+                throw new ElasticsearchResponseException(statusCode, HttpGetWithData.getErrorMessage(uri, response));
             }
+            EntityUtils.consume(response.getEntity());
         }
     }
 
+    /**
+     * Sends a request body to the {@code _bulk} endpoint.
+     * The body should contain newline-delimited action and document lines.
+     * @param body Buffer with the request body
+     * @param length Number of bytes in the buffer to send
+     * @return Per-document outcome
+     * @throws IOException Request failure
+     * @throws ElasticsearchResponseException Elasticsearch responded with an error status
+     */
+    @Nonnull
+    public BulkResult pushBulk(byte[] body, int length) throws IOException {
+        return pushBulk(body, length, false);
+    }
+
+    /**
+     * Sends a request body to the {@code _bulk} endpoint.
+     * @param body Buffer with the request body
+     * @param length Number of bytes in the buffer to send
+     * @param gzip {@code true} if the body is compressed with gzip
+     * @return Per-document outcome
+     * @throws IOException Request failure
+     * @throws ElasticsearchResponseException Elasticsearch responded with an error status
+     */
+    @Nonnull
+    public BulkResult pushBulk(byte[] body, int length, boolean gzip) throws IOException {
+        return pushBulk(body, length, BulkEncoding.JSON, gzip);
+    }
+
+    /**
+     * Sends a request body to the {@code _bulk} endpoint.
+     * The response is requested in JSON regardless of the request encoding.
+     * @param body Buffer with the request body
+     * @param length Number of bytes in the buffer to send
+     * @param encoding Format of the body
+     * @param gzip {@code true} if the body is compressed with gzip
+     * @return Per-document outcome
+     * @throws IOException Request failure
+     * @throws ElasticsearchResponseException Elasticsearch responded with an error status
+     */
+    @Nonnull
+    public BulkResult pushBulk(byte[] body, int length, @Nonnull BulkEncoding encoding, boolean gzip) throws IOException {
+        HttpPost post = new HttpPost(uri + "/_bulk");
+        ByteArrayEntity entity = new ByteArrayEntity(body, 0, length, encoding.getContentType());
+        if (gzip) {
+            entity.setContentEncoding("gzip");
+        }
+        post.setEntity(entity);
+        post.addHeader("Accept", ContentType.APPLICATION_JSON.getMimeType());
+        String auth = getAuth();
+        if (auth != null) {
+            post.addHeader("Authorization", "Basic " + auth);
+        }
+
+        try(CloseableHttpResponse response = getHttpClient().execute(post)) {
+
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (!SUCCESS_CODES.contains(statusCode)) {
+                throw new ElasticsearchResponseException(statusCode, HttpGetWithData.getErrorMessage(uri, response));
+            }
+
+            final String content;
+            try(InputStream i = response.getEntity().getContent()) {
+                content = IOUtils.toString(i, StandardCharsets.UTF_8);
+            }
+            return BulkResult.parse(content);
+        }
+    }
+
+    /**
+     * Encodes a query parameter value.
+     */
+    @Nonnull
+    public static String encode(@Nonnull String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
 
     public String getDescription()
     {
@@ -0,0 +1,83 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request bodies into the gzip format.
+ * The deflater and the output buffer are reused for all bodies, so compression does not allocate per request.
+ * The native memory of the deflater is released once the encoder is garbage collected.
+ * Not thread-safe.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class GzipEncoder {
+
+    private static final String PROPERTY_PREFIX = GzipEncoder.class.getName();
+    /**
+     * Compression level. Console logs compress well even at the fastest level.
+     */
+    private static final int LEVEL = Integer.getInteger(PROPERTY_PREFIX + ".level", Deflater.BEST_SPEED);
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final Deflater deflater = new Deflater(LEVEL, true);
+    private final CRC32 crc = new CRC32();
+    private byte[] buf = new byte[8192];
+    private int size;
+
+    /**
+     * Replaces the buffer contents by the compressed data.
+     */
+    public void encode(@Nonnull byte[] b, int off, int len) {
+        deflater.reset();
+        crc.reset();
+        crc.update(b, off, len);
+        size = 0;
+        ensureCapacity(HEADER.length);
+        System.arraycopy(HEADER, 0, buf, 0, HEADER.length);
+        size = HEADER.length;
+
+        deflater.setInput(b, off, len);
+        deflater.finish();
+        while (!deflater.finished()) {
+            ensureCapacity(1024);
+            size += deflater.deflate(buf, size, buf.length - size);
+        }
+
+        ensureCapacity(8);
+        writeIntLE((int) crc.getValue());
+        writeIntLE(len);
+    }
+
+    /**
+     * @return Internal buffer, valid up to {@link #size()}
+     */
+    @Nonnull
+    public byte[] array() {
+        return buf;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void writeIntLE(int value) {
+        buf[size++] = (byte) value;
+        buf[size++] = (byte) (value >>> 8);
+        buf[size++] = (byte) (value >>> 16);
+        buf[size++] = (byte) (value >>> 24);
+    }
+
+    private void ensureCapacity(int free) {
+        if (buf.length - size < free) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + free));
+        }
+    }
+}
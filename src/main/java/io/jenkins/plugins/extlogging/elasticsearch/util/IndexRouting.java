@@ -0,0 +1,64 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import javax.annotation.Nonnull;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Defines which index receives the documents of a build.
+ * The configured index name is the base, see {@link ElasticSearchDao#getIndex()}.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public enum IndexRouting {
+    /**
+     * All documents go to the configured index.
+     */
+    FIXED,
+    /**
+     * Documents go to the index of the UTC day when the build was scheduled, e.g. {@code logs-2018.06.01}.
+     * All documents of a build stay in one index, so readers search only that index,
+     * and old logs are removed by deleting whole indices.
+     */
+    DAILY,
+    /**
+     * The configured index is a data stream, which is rolled over by its lifecycle policy.
+     * Documents are written with the {@code create} action.
+     * Readers restrict the search to the build time range, so that backing indices outside of it are skipped.
+     */
+    DATA_STREAM;
+
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyy.MM.dd").withZone(ZoneOffset.UTC);
+
+    /**
+     * Gets the DAO for the documents of a build.
+     * @param dao DAO of the configured index
+     * @param buildTimestamp Time when the build was scheduled, see {@code Run#getTimeInMillis()}
+     */
+    @Nonnull
+    public ElasticSearchDao forBuild(@Nonnull ElasticSearchDao dao, long buildTimestamp) {
+        String index = dao.getIndex();
+        if (this != DAILY || index == null) {
+            return dao;
+        }
+        return dao.withIndex(index + "-" + DAY.format(Instant.ofEpochMilli(buildTimestamp)));
+    }
+
+    /**
+     * @return Patterns of the indices which may receive documents
+     */
+    @Nonnull
+    public String getIndexPattern(@Nonnull String index) {
+        return this == DAILY ? index + "-*" : index;
+    }
+
+    /**
+     * @return Action of the {@code _bulk} API for new documents
+     */
+    @Nonnull
+    public String getBulkAction() {
+        // Data streams are append-only
+        return this == DATA_STREAM ? "create" : "index";
+    }
+}
@@ -0,0 +1,235 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import io.jenkins.plugins.extlogging.elasticsearch.ElasticsearchWriterConfiguration;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Composable index template for the log index.
+ * Without it, dynamic mapping indexes the identifiers as analyzed text and indexes the console note payloads,
+ * which costs indexing CPU and disk space, and makes the log queries slower.
+ * <ul>
+ *     <li>{@code data.*} strings are mapped as {@code keyword}, so the log queries are exact term lookups</li>
+ *     <li>{@code seq} is a {@code long}, it is used for sorting and range filters</li>
+ *     <li>{@code annotations} are only kept in {@code _source}, they are never searched</li>
+ *     <li>{@code noteId} of note dictionary documents is a {@code keyword}, the {@code note} is only kept in {@code _source}</li>
+ *     <li>{@code writer} is a {@code keyword}, {@code line} and {@code offset} are {@code long}s.
+ *     They are the unique tiebreaker of the log order, so they need doc values.
+ *     The writer is sorted on its {@code writer.keyword} subfield, which dynamic mapping creates as well,
+ *     so that indices created without the template, e.g. before it was installed, can be sorted the same way</li>
+ *     <li>{@code @version} is neither indexed nor has doc values</li>
+ * </ul>
+ * With {@link IndexRouting#DATA_STREAM}, the template creates the data stream.
+ * The template applies only to indices created after it was installed.
+ * Requires Elasticsearch 7.8 or newer.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class IndexTemplate {
+
+    private static final Logger LOGGER = Logger.getLogger(IndexTemplate.class.getName());
+
+    private static final String PROPERTY_PREFIX = IndexTemplate.class.getName();
+    /**
+     * Priority of the template. Must differ from the priorities of other templates matching the index.
+     */
+    private static final int PRIORITY = Integer.getInteger(PROPERTY_PREFIX + ".priority", 200);
+
+    /**
+     * Time after a failed installation during which writers do not try to install the template again.
+     */
+    private static final long RETRY_MILLIS = Long.getLong(PROPERTY_PREFIX + ".retryMillis", 5 * 60 * 1000);
+
+    /**
+     * Installed templates by their URIs, so that every template is sent once per JVM unless it changes.
+     */
+    private static final ConcurrentMap<String, String> INSTALLED = new ConcurrentHashMap<>();
+
+    /**
+     * {@link System#nanoTime()} before which the template is not installed, by the template URIs.
+     * It is set when an installation starts, so that concurrent writers do not send it as well,
+     * and kept when the installation fails.
+     */
+    private static final ConcurrentMap<String, Long> NEXT_ATTEMPT = new ConcurrentHashMap<>();
+
+    @Nonnull
+    private final String index;
+    @Nonnull
+    private final IndexRouting routing;
+    @CheckForNull
+    private final String refreshInterval;
+    @CheckForNull
+    private final String codec;
+
+    /**
+     * @param index Index name
+     * @param routing Routing of the documents to indices
+     * @param refreshInterval Value of {@code index.refresh_interval}, {@code null} to keep the default
+     * @param codec Value of {@code index.codec}, {@code null} to keep the default
+     */
+    public IndexTemplate(@Nonnull String index, @Nonnull IndexRouting routing,
+                         @CheckForNull String refreshInterval, @CheckForNull String codec) {
+        this.index = index;
+        this.routing = routing;
+        this.refreshInterval = refreshInterval;
+        this.codec = codec;
+    }
+
+    @Nonnull
+    public String getName() {
+        return "jenkins-logs-" + index;
+    }
+
+    public void writeTo(@Nonnull JsonBuffer json) {
+        json.startObject();
+        json.name("index_patterns").startArray().value(routing.getIndexPattern(index)).endArray();
+        if (routing == IndexRouting.DATA_STREAM) {
+            json.name("data_stream").startObject().endObject();
+        }
+        json.name("priority").value(PRIORITY);
+        json.name("template").startObject();
+
+        json.name("settings").startObject();
+        if (refreshInterval != null) {
+            json.name("index.refresh_interval").value(refreshInterval);
+        }
+        if (codec != null) {
+            json.name("index.codec").value(codec);
+        }
+        json.endObject();
+
+        json.name("mappings").startObject();
+        json.name("dynamic_templates").startArray()
+                .startObject().name("data_strings").startObject()
+                    .name("path_match").value("data.*")
+                    .name("match_mapping_type").value("string")
+                    .name("mapping").startObject()
+                        .name("type").value("keyword")
+                        .name("ignore_above").value(1024)
+                    .endObject()
+                .endObject().endObject()
+                .endArray();
+        json.name("properties").startObject();
+        json.name("message").startObject()
+                .name("type").value("text")
+                .name("norms").value(false)
+                .endObject();
+        json.name("annotations").startObject()
+                .name("type").value("object")
+                .name("enabled").value(false)
+                .endObject();
+        json.name("seq").startObject().name("type").value("long").endObject();
+        json.name(NoteDictionary.ID_KEY).startObject().name("type").value("keyword").endObject();
+        writeUnindexed(json, NoteDictionary.NOTE_KEY, "keyword");
+        json.name("writer").startObject()
+                .name("type").value("keyword")
+                .name("doc_values").value(false)
+                .name("fields").startObject()
+                    .name("keyword").startObject().name("type").value("keyword").endObject()
+                .endObject()
+                .endObject();
+        json.name("line").startObject().name("type").value("long").endObject();
+        json.name("offset").startObject().name("type").value("long").endObject();
+        json.name("@timestamp").startObject().name("type").value("date").endObject();
+        json.name("@buildTimestamp").startObject().name("type").value("date").endObject();
+        writeUnindexed(json, "@version", "keyword");
+        json.endObject();
+        json.endObject();
+
+        json.endObject();
+        json.endObject();
+    }
+
+    private static void writeUnindexed(@Nonnull JsonBuffer json, @Nonnull String field, @Nonnull String type) {
+        json.name(field).startObject()
+                .name("type").value(type)
+                .name("index").value(false)
+                .name("doc_values").value(false)
+                .endObject();
+    }
+
+    @Override
+    public String toString() {
+        JsonBuffer json = new JsonBuffer(1024);
+        writeTo(json);
+        return json.toString();
+    }
+
+    /**
+     * Installs the template for the index of the DAO, unless it is disabled or already installed by this JVM.
+     * The template is installed by the first writer, so that it applies to the index created by its documents.
+     * Failures are logged, documents are then indexed with the dynamic mappings.
+     * Writers do not try again for {@link #RETRY_MILLIS}, so that they do not wait for an unavailable Elasticsearch,
+     * and neither do they while another writer is installing the template.
+     */
+    public static void ensureInstalled(@Nonnull ElasticSearchDao dao, @Nonnull ElasticsearchWriterConfiguration config) {
+        if (!config.isIndexTemplate()) {
+            return;
+        }
+        String index = dao.getIndex();
+        if (index == null) {
+            return;
+        }
+        IndexTemplate template = new IndexTemplate(index, config.getIndexRouting(), config.getRefreshInterval(), config.getIndexCodec());
+        String uri = dao.getRootUri() + "/_index_template/" + template.getName();
+        String body = template.toString();
+        if (body.equals(INSTALLED.get(uri)) || !claimAttempt(uri)) {
+            return;
+        }
+        try {
+            install(dao, URI.create(uri), body);
+            INSTALLED.put(uri, body);
+            NEXT_ATTEMPT.remove(uri);
+            LOGGER.log(Level.FINE, "Installed index template {0}", uri);
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Failed to install index template " + uri
+                    + ", documents are indexed with dynamic mappings. Next attempt in " + RETRY_MILLIS + "ms", ex);
+        }
+    }
+
+    /**
+     * @return {@code true} if the caller should install the template now
+     */
+    private static boolean claimAttempt(@Nonnull String uri) {
+        long now = System.nanoTime();
+        Long next = NEXT_ATTEMPT.get(uri);
+        if (next != null && now - next < 0) {
+            return false;
+        }
+        Long deadline = now + TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS);
+        return next == null ? NEXT_ATTEMPT.putIfAbsent(uri, deadline) == null : NEXT_ATTEMPT.replace(uri, next, deadline);
+    }
+
+    private static void install(@Nonnull ElasticSearchDao dao, @Nonnull URI uri, @Nonnull String body) throws IOException {
+        HttpPut put = new HttpPut(uri);
+        put.setEntity(new ByteArrayEntity(body.getBytes(StandardCharsets.UTF_8), ContentType.APPLICATION_JSON));
+        String auth = dao.getAuth();
+        if (auth != null) {
+            put.addHeader("Authorization", "Basic " + auth);
+        }
+        try(CloseableHttpResponse response = dao.getHttpClient().execute(put)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                throw new ElasticsearchResponseException(statusCode, HttpGetWithData.getErrorMessage(uri, response));
+            }
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+}
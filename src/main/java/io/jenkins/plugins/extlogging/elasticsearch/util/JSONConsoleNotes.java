@@ -4,6 +4,10 @@ import hudson.console.ConsoleNote;
 import java.io.IOException;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.kohsuke.accmod.Restricted;
@@ -25,23 +29,41 @@ public class JSONConsoleNotes {
 
     public static void parseToJSON(byte[] b, int len, Charset charset, JSONObject dest) {
         assert len > 0 && len <= b.length;
-        int eol = len;
-        while (eol > 0) {
-            byte c = b[eol - 1];
-            if (c == '\n' || c == '\r') {
-                eol--;
-            } else {
-                break;
-            }
+        int eol = trimEOL(b, 0, len);
+        if (!isAsciiCompatible(charset)) {
+            parseToJSON(new String(b, 0, eol, charset), dest);
+            return;
         }
-        String line = new String(b, 0, eol, charset);
-        parseToJSON(line, dest);
+        NoteScan scan = new NoteScan();
+        if (!scan.scan(b, 0, eol)) {
+            // Shortcut for the common case that we have no notes.
+            dest.put(MESSAGE_KEY, new String(b, 0, eol, charset));
+            return;
+        }
+        // The markers are ASCII, so the text between them and the notes are decoded separately
+        StringBuilder buf = new StringBuilder(eol);
+        JSONArray annotations = new JSONArray();
+        int pos = 0;
+        for (int i = 0; i < scan.count; i++) {
+            int preamble = scan.getPreamble(i);
+            int endOfPreamble = preamble + ConsoleNote.PREAMBLE.length;
+            int postamble = scan.getPostamble(i);
+            buf.append(new String(b, pos, preamble - pos, charset));
+
+            JSONObject annotation = new JSONObject();
+            annotation.put(POSITION_KEY, buf.length());
+            annotation.put(NOTE_KEY, new String(b, endOfPreamble, postamble - endOfPreamble, charset));
+            annotations.add(annotation);
+            pos = postamble + ConsoleNote.POSTAMBLE.length;
+        }
+        buf.append(new String(b, pos, eol - pos, charset)); // append tail
+        dest.put(MESSAGE_KEY, buf.toString());
+        dest.put(ANNOTATIONS_KEY, annotations);
     }
 
     public static void parseToJSON(String line, JSONObject dest) {
 
-        // Would be more efficient to do searches at the byte[] level, but too much bother for now,
-        // especially since there is no standard library method to do offset searches like String has.
+        // Raw output should rather go through writeJSON(byte[], int, int, JsonBuffer), which searches at the byte[] level.
         if (!line.contains(ConsoleNote.PREAMBLE_STR)) {
             // Shortcut for the common case that we have no notes.
             dest.put(MESSAGE_KEY, line);
@@ -75,10 +97,305 @@ public class JSONConsoleNotes {
         }
     }
 
+    /**
+     * Streaming counterpart of {@link #parseToJSON(String, JSONObject)}.
+     * Writes the {@code message} and, if there are any notes, {@code annotations} members
+     * into an open JSON object without building intermediate strings.
+     */
+    public static void writeJSON(String line, JsonBuffer dest) {
+        writeJSON(line, dest, null);
+    }
+
+    /**
+     * @param dictionary If not {@code null}, long notes are written as references to its documents
+     */
+    public static void writeJSON(String line, JsonBuffer dest, @CheckForNull NoteDictionary dictionary) {
+        dest.name(MESSAGE_KEY).startString();
+        appendText(line, dest);
+        dest.endString();
+        if (line.contains(ConsoleNote.PREAMBLE_STR)) {
+            dest.name(ANNOTATIONS_KEY).startArray();
+            appendNotes(line, 0, dest, dictionary);
+            dest.endArray();
+        }
+    }
+
+    /**
+     * Byte-level counterpart of {@link #writeJSON(String, JsonBuffer)} for UTF-8 encoded lines.
+     * Nothing is decoded: the text is escaped from the original bytes,
+     * and annotation positions are counted in UTF-16 units as they would be in the decoded message.
+     * @param b Buffer with the UTF-8 encoded line, without the line terminator
+     * @param off Offset of the line in the buffer
+     * @param len Length of the line
+     */
+    public static void writeJSON(byte[] b, int off, int len, JsonBuffer dest) {
+        writeJSON(b, off, len, dest, null);
+    }
+
+    /**
+     * @param dictionary If not {@code null}, long notes are written as references to its documents
+     */
+    public static void writeJSON(byte[] b, int off, int len, JsonBuffer dest, @CheckForNull NoteDictionary dictionary) {
+        writeJSON(b, off, len, dest, dictionary, new NoteScan());
+    }
+
+    /**
+     * @param scan Scan state reused for the lines of a writer
+     */
+    public static void writeJSON(byte[] b, int off, int len, JsonBuffer dest, @CheckForNull NoteDictionary dictionary,
+                                 @Nonnull NoteScan scan) {
+        dest.name(MESSAGE_KEY).startString();
+        if (!scan.scan(b, off, len)) {
+            // Shortcut for the common case that we have no notes, positions are not needed.
+            dest.appendEscaped(b, off, len).endString();
+            return;
+        }
+        appendText(b, off, len, dest, scan);
+        dest.endString();
+        dest.name(ANNOTATIONS_KEY).startArray();
+        appendNotes(b, 0, dest, dictionary, scan);
+        dest.endArray();
+    }
+
+    /**
+     * Appends the text of the line without notes to an open string value.
+     * @return Length of the appended text in UTF-16 units
+     */
+    public static int appendText(String line, JsonBuffer dest) {
+        int pos = 0;
+        int length = 0;
+        int preamble = line.indexOf(ConsoleNote.PREAMBLE_STR);
+        while (preamble != -1) {
+            int postamble = line.indexOf(ConsoleNote.POSTAMBLE_STR, preamble + ConsoleNote.PREAMBLE_STR.length());
+            if (postamble == -1) {
+                // Malformed; stop here.
+                break;
+            }
+            dest.appendEscaped(line, pos, preamble);
+            length += preamble - pos;
+            pos = postamble + ConsoleNote.POSTAMBLE_STR.length();
+            preamble = line.indexOf(ConsoleNote.PREAMBLE_STR, pos);
+        }
+        dest.appendEscaped(line, pos, line.length()); // append tail
+        return length + line.length() - pos;
+    }
+
+    /**
+     * Appends the notes of the line as annotation objects to an open array.
+     * @param basePosition Position of the line start in the message
+     */
+    public static void appendNotes(String line, int basePosition, JsonBuffer dest) {
+        appendNotes(line, basePosition, dest, null);
+    }
+
+    /**
+     * @param dictionary If not {@code null}, long notes are written as references to its documents
+     */
+    public static void appendNotes(String line, int basePosition, JsonBuffer dest, @CheckForNull NoteDictionary dictionary) {
+        int pos = 0;
+        int position = basePosition;
+        int preamble = line.indexOf(ConsoleNote.PREAMBLE_STR);
+        while (preamble != -1) {
+            int endOfPreamble = preamble + ConsoleNote.PREAMBLE_STR.length();
+            int postamble = line.indexOf(ConsoleNote.POSTAMBLE_STR, endOfPreamble);
+            if (postamble == -1) {
+                break;
+            }
+            position += preamble - pos;
+            dest.startObject().name(POSITION_KEY).value(position);
+            if (dictionary != null) {
+                dictionary.writeNote(line.substring(endOfPreamble, postamble), dest);
+            } else {
+                dest.name(NOTE_KEY).startString().appendEscaped(line, endOfPreamble, postamble).endString();
+            }
+            dest.endObject();
+            pos = postamble + ConsoleNote.POSTAMBLE_STR.length();
+            preamble = line.indexOf(ConsoleNote.PREAMBLE_STR, pos);
+        }
+    }
+
+    /**
+     * Byte-level counterpart of {@link #appendText(String, JsonBuffer)} for UTF-8 encoded lines.
+     * It records the positions of the notes in the scan, see {@link #appendNotes(byte[], int, JsonBuffer, NoteDictionary, NoteScan)}.
+     * @param scan Scan of the line, see {@link NoteScan#scan(byte[], int, int)}
+     * @return Length of the appended text in UTF-16 units
+     */
+    public static int appendText(byte[] b, int off, int len, JsonBuffer dest, @Nonnull NoteScan scan) {
+        int pos = off;
+        int length = 0;
+        for (int i = 0; i < scan.count; i++) {
+            int preamble = scan.getPreamble(i);
+            dest.appendEscaped(b, pos, preamble - pos);
+            length += Utf8.utf16Length(b, pos, preamble - pos);
+            scan.setPosition(i, length);
+            pos = scan.getPostamble(i) + ConsoleNote.POSTAMBLE.length;
+        }
+        int end = off + len;
+        dest.appendEscaped(b, pos, end - pos); // append tail
+        return length + Utf8.utf16Length(b, pos, end - pos);
+    }
+
+    /**
+     * Byte-level counterpart of {@link #appendNotes(String, int, JsonBuffer, NoteDictionary)} for UTF-8 encoded lines.
+     * Must be called after {@link #appendText(byte[], int, int, JsonBuffer, NoteScan)} for the same line and scan.
+     * @param basePosition Position of the line start in the message
+     * @param dictionary If not {@code null}, long notes are written as references to its documents
+     */
+    public static void appendNotes(byte[] b, int basePosition, JsonBuffer dest, @CheckForNull NoteDictionary dictionary,
+                                   @Nonnull NoteScan scan) {
+        for (int i = 0; i < scan.count; i++) {
+            int endOfPreamble = scan.getPreamble(i) + ConsoleNote.PREAMBLE.length;
+            int postamble = scan.getPostamble(i);
+            dest.startObject().name(POSITION_KEY).value(basePosition + scan.getPosition(i));
+            if (dictionary != null) {
+                dictionary.writeNote(b, endOfPreamble, postamble - endOfPreamble, dest);
+            } else {
+                dest.name(NOTE_KEY).value(b, endOfPreamble, postamble - endOfPreamble);
+            }
+            dest.endObject();
+        }
+    }
+
+    /**
+     * Removes notes from the line in place.
+     * @return New length of the line
+     */
+    public static int removeNotes(byte[] b, int off, int len) {
+        int end = off + len;
+        int preamble = indexOf(b, off, end, ConsoleNote.PREAMBLE);
+        if (preamble == -1) {
+            return len;
+        }
+        int write = preamble;
+        int pos = preamble;
+        while (preamble != -1) {
+            int postamble = indexOf(b, preamble + ConsoleNote.PREAMBLE.length, end, ConsoleNote.POSTAMBLE);
+            if (postamble == -1) {
+                // Malformed; keep the rest as is.
+                break;
+            }
+            System.arraycopy(b, pos, b, write, preamble - pos);
+            write += preamble - pos;
+            pos = postamble + ConsoleNote.POSTAMBLE.length;
+            preamble = indexOf(b, pos, end, ConsoleNote.PREAMBLE);
+        }
+        System.arraycopy(b, pos, b, write, end - pos);
+        write += end - pos;
+        return write - off;
+    }
+
+    /**
+     * Notes found in a UTF-8 encoded line, so that the line is searched for the markers only once.
+     * Instances are reused for the lines of a writer, they are not thread-safe.
+     */
+    public static final class NoteScan {
+
+        /**
+         * Offset of the preamble, offset of the postamble and position in the message of every note.
+         */
+        private int[] notes = new int[0];
+        private int count;
+
+        /**
+         * Finds the notes of a line. A note without a postamble ends the scan, it is kept in the text.
+         * @return {@code true} if the line contains a preamble.
+         *         Like the {@link String} counterparts, such lines get an {@code annotations} member even if all notes are malformed
+         */
+        public boolean scan(byte[] b, int off, int len) {
+            count = 0;
+            int end = off + len;
+            int preamble = indexOf(b, off, end, ConsoleNote.PREAMBLE);
+            boolean found = preamble != -1;
+            while (preamble != -1) {
+                int postamble = indexOf(b, preamble + ConsoleNote.PREAMBLE.length, end, ConsoleNote.POSTAMBLE);
+                if (postamble == -1) {
+                    // Malformed; stop here.
+                    break;
+                }
+                if (notes.length < (count + 1) * 3) {
+                    notes = Arrays.copyOf(notes, Math.max(24, notes.length * 2));
+                }
+                notes[count * 3] = preamble;
+                notes[count * 3 + 1] = postamble;
+                count++;
+                preamble = indexOf(b, postamble + ConsoleNote.POSTAMBLE.length, end, ConsoleNote.PREAMBLE);
+            }
+            return found;
+        }
+
+        int getPreamble(int i) {
+            return notes[i * 3];
+        }
+
+        int getPostamble(int i) {
+            return notes[i * 3 + 1];
+        }
+
+        int getPosition(int i) {
+            return notes[i * 3 + 2];
+        }
+
+        void setPosition(int i, int position) {
+            notes[i * 3 + 2] = position;
+        }
+    }
+
+    /**
+     * Finds a note marker in a byte buffer.
+     * Both markers start with the ESC character, which is rare in regular output,
+     * so candidates are found with a single byte comparison.
+     * @return Index of the marker or {@code -1}
+     */
+    static int indexOf(byte[] b, int from, int end, byte[] marker) {
+        byte first = marker[0];
+        int last = end - marker.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (b[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < marker.length; j++) {
+                if (b[i + j] != marker[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return Length of the line without trailing line terminators
+     */
+    static int trimEOL(byte[] b, int off, int len) {
+        int eol = off + len;
+        while (eol > off) {
+            byte c = b[eol - 1];
+            if (c == '\n' || c == '\r') {
+                eol--;
+            } else {
+                break;
+            }
+        }
+        return eol - off;
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        return StandardCharsets.UTF_8.equals(charset)
+                || StandardCharsets.US_ASCII.equals(charset)
+                || StandardCharsets.ISO_8859_1.equals(charset);
+    }
+
+    /**
+     * Writes the message of a document with its notes reinserted.
+     * Chunk documents need no special handling: their lines are joined by newlines,
+     * and annotation positions are relative to the whole chunk message.
+     */
     public static void jsonToMessage(Writer w, JSONObject json) throws IOException {
-        //TODO: change for ES5
-        // String message = json.getString(MESSAGE_KEY);
-        String message = json.getJSONArray(MESSAGE_KEY).getString(0);
+        // Stored fields are returned as arrays, _source keeps the plain value
+        Object rawMessage = json.get(MESSAGE_KEY);
+        String message = rawMessage instanceof JSONArray
+                ? ((JSONArray) rawMessage).getString(0) : json.getString(MESSAGE_KEY);
         JSONArray annotations = json.optJSONArray(ANNOTATIONS_KEY);
         if (annotations == null) {
             w.write(message);
@@ -86,6 +403,10 @@ public class JSONConsoleNotes {
             int pos = 0;
             for (Object o : annotations) {
                 JSONObject annotation = (JSONObject) o;
+                if (!annotation.has(NOTE_KEY)) {
+                    // Reference to a note dictionary document, cannot be resolved here
+                    continue;
+                }
                 int position = annotation.getInt(POSITION_KEY);
                 String note = annotation.getString(NOTE_KEY);
                 w.write(message, pos, position - pos);
@@ -99,6 +420,42 @@ public class JSONConsoleNotes {
         w.write('\n');
     }
 
+    /**
+     * Counterpart of {@link #jsonToMessage(Writer, JSONObject)} for hits read by {@link SearchPager}.
+     */
+    public static void writeMessage(Writer w, LogHit hit) throws IOException {
+        writeMessage(w, hit, null);
+    }
+
+    /**
+     * @param notes Resolves references to note dictionary documents. Unresolved notes are omitted
+     */
+    public static void writeMessage(Writer w, LogHit hit, @CheckForNull NoteResolver notes) throws IOException {
+        String message = hit.getMessage();
+        if (message == null) {
+            message = "";
+        }
+        int pos = 0;
+        for (int i = 0; i < hit.getAnnotationCount(); i++) {
+            String note = hit.getNote(i);
+            if (note == null) {
+                String ref = hit.getNoteRef(i);
+                note = notes != null && ref != null ? notes.get(ref) : null;
+                if (note == null) {
+                    continue;
+                }
+            }
+            int position = Math.min(Math.max(hit.getPosition(i), pos), message.length());
+            w.write(message, pos, position - pos);
+            w.write(ConsoleNote.PREAMBLE_STR);
+            w.write(note);
+            w.write(ConsoleNote.POSTAMBLE_STR);
+            pos = position;
+        }
+        w.write(message, pos, message.length() - pos);
+        w.write('\n');
+    }
+
     private JSONConsoleNotes() {}
 
 }
\ No newline at end of file
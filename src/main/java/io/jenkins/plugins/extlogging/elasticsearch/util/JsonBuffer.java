@@ -0,0 +1,468 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer which serializes JSON directly to UTF-8.
+ * It is intended to be reused: {@link #reset()} keeps the allocated array,
+ * so steady-state serialization does not allocate.
+ * <p>
+ * Commas between object members and array elements are inserted automatically.
+ * The nesting depth is limited to 64 levels.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class JsonBuffer {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] REPLACEMENT_CHARACTER = {(byte) 0xEF, (byte) 0xBF, (byte) 0xBD};
+    private static final int MAX_DEPTH = 64;
+
+    private byte[] buf;
+    private int count;
+
+    /**
+     * Bit per nesting level, set if the current container already has an element.
+     */
+    private long hasElements;
+    private int depth;
+    /**
+     * Set after a member name, so that the value does not get a comma.
+     */
+    private boolean afterName;
+
+    public JsonBuffer() {
+        this(256);
+    }
+
+    public JsonBuffer(int initialCapacity) {
+        buf = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * Discards the content, but keeps the allocated memory.
+     */
+    @Nonnull
+    public JsonBuffer reset() {
+        count = 0;
+        depth = 0;
+        hasElements = 0;
+        afterName = false;
+        return this;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return Internal array. Only the first {@link #size()} bytes are valid
+     */
+    @Nonnull
+    public byte[] array() {
+        return buf;
+    }
+
+    @Nonnull
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    public void writeTo(@Nonnull OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, count, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    @Nonnull
+    public JsonBuffer startObject() {
+        beforeValue();
+        writeByte('{');
+        push();
+        return this;
+    }
+
+    @Nonnull
+    public JsonBuffer endObject() {
+        pop();
+        writeByte('}');
+        return this;
+    }
+
+    @Nonnull
+    public JsonBuffer startArray() {
+        beforeValue();
+        writeByte('[');
+        push();
+        return this;
+    }
+
+    @Nonnull
+    public JsonBuffer endArray() {
+        pop();
+        writeByte(']');
+        return this;
+    }
+
+    /**
+     * Writes an object member name.
+     */
+    @Nonnull
+    public JsonBuffer name(@Nonnull String name) {
+        beforeValue();
+        writeQuoted(name);
+        writeByte(':');
+        afterName = true;
+        return this;
+    }
+
+    @Nonnull
+    public JsonBuffer value(@Nonnull String value) {
+        beforeValue();
+        writeQuoted(value);
+        return this;
+    }
+
+    @Nonnull
+    public JsonBuffer value(long value) {
+        beforeValue();
+        writeLong(value);
+        return this;
+    }
+
+    @Nonnull
+    public JsonBuffer value(boolean value) {
+        beforeValue();
+        writeBytes(value ? TRUE : FALSE);
+        return this;
+    }
+
+    @Nonnull
+    public JsonBuffer nullValue() {
+        beforeValue();
+        writeBytes(NULL);
+        return this;
+    }
+
+    /**
+     * Writes a string value from UTF-8 bytes, without decoding it.
+     * Malformed sequences are replaced by {@code U+FFFD}.
+     */
+    @Nonnull
+    public JsonBuffer value(@Nonnull byte[] utf8, int offset, int length) {
+        beforeValue();
+        writeByte('"');
+        appendEscaped(utf8, offset, length);
+        writeByte('"');
+        return this;
+    }
+
+    /**
+     * Writes a timestamp as an ISO 8601 string in UTC, e.g. {@code 2018-06-20T12:34:56.789Z}.
+     */
+    @Nonnull
+    public JsonBuffer timestampValue(long epochMillis) {
+        beforeValue();
+        writeByte('"');
+        appendTimestamp(epochMillis);
+        writeByte('"');
+        return this;
+    }
+
+    /**
+     * Starts a string value which is assembled from several parts.
+     * @see #appendEscaped(String, int, int)
+     * @see #appendEscaped(byte[], int, int)
+     * @see #endString()
+     */
+    @Nonnull
+    public JsonBuffer startString() {
+        beforeValue();
+        writeByte('"');
+        return this;
+    }
+
+    @Nonnull
+    public JsonBuffer endString() {
+        writeByte('"');
+        return this;
+    }
+
+    /**
+     * Writes pre-serialized JSON as a value, e.g. a cached fragment.
+     */
+    @Nonnull
+    public JsonBuffer rawValue(@Nonnull byte[] json) {
+        return rawValue(json, 0, json.length);
+    }
+
+    @Nonnull
+    public JsonBuffer rawValue(@Nonnull byte[] json, int offset, int length) {
+        beforeValue();
+        raw(json, offset, length);
+        return this;
+    }
+
+    /**
+     * Writes pre-serialized members into the open object, e.g. {@code "a":1,"b":2}.
+     * Further members get separated properly.
+     */
+    @Nonnull
+    public JsonBuffer rawMembers(@Nonnull byte[] members) {
+        if (members.length > 0) {
+            beforeValue();
+            writeBytes(members);
+        }
+        return this;
+    }
+
+    /**
+     * Writes bytes as is, without any separators.
+     * It is up to the caller to keep the output valid.
+     */
+    @Nonnull
+    public JsonBuffer raw(@Nonnull byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buf, count, length);
+        count += length;
+        return this;
+    }
+
+    /**
+     * Terminates a line of newline-delimited JSON, and starts a new top-level value.
+     */
+    @Nonnull
+    public JsonBuffer newLine() {
+        writeByte('\n');
+        hasElements = 0;
+        depth = 0;
+        afterName = false;
+        return this;
+    }
+
+    /**
+     * Appends characters of a string value with JSON escaping.
+     */
+    @Nonnull
+    public JsonBuffer appendEscaped(@Nonnull String s, int start, int end) {
+        ensureCapacity(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                appendAscii(c);
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                buf[count++] = (byte) (0xC0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                ensureCapacity(4);
+                buf[count++] = (byte) (0xF0 | (cp >> 18));
+                buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                writeBytes(REPLACEMENT_CHARACTER);
+            } else {
+                ensureCapacity(3);
+                buf[count++] = (byte) (0xE0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends UTF-8 bytes of a string value with JSON escaping.
+     * Malformed sequences are replaced by {@code U+FFFD}.
+     */
+    @Nonnull
+    public JsonBuffer appendEscaped(@Nonnull byte[] utf8, int offset, int length) {
+        ensureCapacity(length);
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int b = utf8[i] & 0xFF;
+            if (b < 0x80) {
+                appendAscii((char) b);
+                i++;
+                continue;
+            }
+            int sequence = Utf8.sequenceLength(utf8, i, end);
+            if (sequence > 0) {
+                raw(utf8, i, sequence);
+                i += sequence;
+            } else {
+                writeBytes(REPLACEMENT_CHARACTER);
+                i++;
+            }
+        }
+        return this;
+    }
+
+    private void appendAscii(char c) {
+        if (c >= 0x20 && c != '"' && c != '\\') {
+            ensureCapacity(1);
+            buf[count++] = (byte) c;
+            return;
+        }
+        ensureCapacity(6);
+        buf[count++] = '\\';
+        switch (c) {
+            case '"':
+                buf[count++] = '"';
+                break;
+            case '\\':
+                buf[count++] = '\\';
+                break;
+            case '\n':
+                buf[count++] = 'n';
+                break;
+            case '\r':
+                buf[count++] = 'r';
+                break;
+            case '\t':
+                buf[count++] = 't';
+                break;
+            case '\b':
+                buf[count++] = 'b';
+                break;
+            case '\f':
+                buf[count++] = 'f';
+                break;
+            default:
+                buf[count++] = 'u';
+                buf[count++] = '0';
+                buf[count++] = '0';
+                buf[count++] = HEX[(c >> 4) & 0xF];
+                buf[count++] = HEX[c & 0xF];
+        }
+    }
+
+    private void appendTimestamp(long epochMillis) {
+        long days = Math.floorDiv(epochMillis, 86400000L);
+        int millisOfDay = (int) Math.floorMod(epochMillis, 86400000L);
+
+        // Civil date from the day number, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        ensureCapacity(24);
+        appendDigits((int) year, 4);
+        buf[count++] = '-';
+        appendDigits(month, 2);
+        buf[count++] = '-';
+        appendDigits(day, 2);
+        buf[count++] = 'T';
+        appendDigits(millisOfDay / 3600000, 2);
+        buf[count++] = ':';
+        appendDigits(millisOfDay / 60000 % 60, 2);
+        buf[count++] = ':';
+        appendDigits(millisOfDay / 1000 % 60, 2);
+        buf[count++] = '.';
+        appendDigits(millisOfDay % 1000, 3);
+        buf[count++] = 'Z';
+    }
+
+    private void appendDigits(int value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buf[count + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeBytes(Long.toString(value).getBytes());
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buf[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            buf[count + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    private void writeQuoted(@Nonnull String s) {
+        writeByte('"');
+        appendEscaped(s, 0, s.length());
+        writeByte('"');
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            long bit = 1L << (depth - 1);
+            if ((hasElements & bit) != 0) {
+                writeByte(',');
+            } else {
+                hasElements |= bit;
+            }
+        }
+    }
+
+    private void push() {
+        if (depth >= MAX_DEPTH) {
+            throw new IllegalStateException("JSON nesting is too deep");
+        }
+        depth++;
+        hasElements &= ~(1L << (depth - 1));
+    }
+
+    private void pop() {
+        if (depth == 0) {
+            throw new IllegalStateException("No open JSON container");
+        }
+        depth--;
+        afterName = false;
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+
+    private void writeBytes(@Nonnull byte[] bytes) {
+        raw(bytes, 0, bytes.length);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + extra));
+        }
+    }
+}
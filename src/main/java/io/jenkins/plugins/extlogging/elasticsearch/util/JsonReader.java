@@ -0,0 +1,480 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Pull parser for UTF-8 encoded JSON.
+ * Values are read token by token from the stream, so memory use does not depend on the size of the document.
+ * Values which are not needed can be skipped without decoding them.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class JsonReader implements Closeable {
+
+    public enum Token {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT
+    }
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    @Nonnull
+    private final InputStream in;
+    private final byte[] buf = new byte[8192];
+    private int pos;
+    private int limit;
+
+    private int[] stack = new int[32];
+    private int depth = 1;
+    private Token peeked;
+
+    private final StringBuilder text = new StringBuilder();
+
+    public JsonReader(@Nonnull InputStream in) {
+        this.in = in;
+        stack[0] = EMPTY_DOCUMENT;
+    }
+
+    @Nonnull
+    public Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+        int state = stack[depth - 1];
+        int c;
+        switch (state) {
+            case EMPTY_ARRAY:
+                stack[depth - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return peeked = Token.END_ARRAY;
+                }
+                return peeked = readValue(c);
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return peeked = Token.END_ARRAY;
+                }
+                expect(c, ',');
+                return peeked = readValue(nextNonWhitespace());
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    return peeked = Token.END_OBJECT;
+                }
+                if (state == NONEMPTY_OBJECT) {
+                    expect(c, ',');
+                    c = nextNonWhitespace();
+                }
+                expect(c, '"');
+                stack[depth - 1] = DANGLING_NAME;
+                return peeked = Token.NAME;
+            case DANGLING_NAME:
+                expect(nextNonWhitespace(), ':');
+                stack[depth - 1] = NONEMPTY_OBJECT;
+                return peeked = readValue(nextNonWhitespace());
+            case EMPTY_DOCUMENT:
+                stack[depth - 1] = NONEMPTY_DOCUMENT;
+                return peeked = readValue(nextNonWhitespace());
+            default:
+                c = nextNonWhitespace();
+                if (c != -1) {
+                    throw syntaxError("Unexpected content after the document");
+                }
+                return peeked = Token.END_DOCUMENT;
+        }
+    }
+
+    public void beginObject() throws IOException {
+        consume(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        consume(Token.END_OBJECT);
+        depth--;
+    }
+
+    public void beginArray() throws IOException {
+        consume(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        consume(Token.END_ARRAY);
+        depth--;
+    }
+
+    /**
+     * @return {@code true} if the current object or array has more elements
+     */
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    @Nonnull
+    public String nextName() throws IOException {
+        consume(Token.NAME);
+        readString();
+        return text.toString();
+    }
+
+    /**
+     * Reads a string value. Numbers are returned in their literal form.
+     */
+    @Nonnull
+    public String nextString() throws IOException {
+        Token token = peek();
+        if (token == Token.STRING) {
+            peeked = null;
+            readString();
+        } else if (token == Token.NUMBER) {
+            peeked = null;
+            readLiteral();
+        } else {
+            throw syntaxError("Expected a string but was " + token);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Reads a number. Numeric strings are accepted as well.
+     */
+    public long nextLong() throws IOException {
+        String value = nextString();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            try {
+                return (long) Double.parseDouble(value);
+            } catch (NumberFormatException ex2) {
+                throw syntaxError("Expected a number but was " + value);
+            }
+        }
+    }
+
+    public boolean nextBoolean() throws IOException {
+        consume(Token.BOOLEAN);
+        readLiteral();
+        return "true".contentEquals(text);
+    }
+
+    public void nextNull() throws IOException {
+        consume(Token.NULL);
+        readLiteral();
+    }
+
+    /**
+     * Skips the next value, including nested objects and arrays.
+     */
+    public void skipValue() throws IOException {
+        int nested = 0;
+        do {
+            Token token = peek();
+            peeked = null;
+            switch (token) {
+                case BEGIN_OBJECT:
+                    push(EMPTY_OBJECT);
+                    nested++;
+                    break;
+                case BEGIN_ARRAY:
+                    push(EMPTY_ARRAY);
+                    nested++;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    depth--;
+                    nested--;
+                    break;
+                case NAME:
+                case STRING:
+                    skipString();
+                    break;
+                case NUMBER:
+                case BOOLEAN:
+                case NULL:
+                    readLiteral();
+                    break;
+                default:
+                    throw syntaxError("Unexpected end of the document");
+            }
+        } while (nested > 0);
+    }
+
+    /**
+     * Copies the next value to the buffer, e.g. to send it back in another request.
+     * Numbers keep their literal form.
+     */
+    public void copyValue(@Nonnull JsonBuffer dest) throws IOException {
+        int nested = 0;
+        do {
+            Token token = peek();
+            switch (token) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    dest.startObject();
+                    nested++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    dest.startArray();
+                    nested++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    dest.endObject();
+                    nested--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    dest.endArray();
+                    nested--;
+                    break;
+                case NAME:
+                    dest.name(nextName());
+                    break;
+                case STRING:
+                    dest.value(nextString());
+                    break;
+                case NUMBER:
+                    dest.rawValue(nextString().getBytes(StandardCharsets.US_ASCII));
+                    break;
+                case BOOLEAN:
+                    dest.value(nextBoolean());
+                    break;
+                case NULL:
+                    nextNull();
+                    dest.nullValue();
+                    break;
+                default:
+                    throw syntaxError("Unexpected end of the document");
+            }
+        } while (nested > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void consume(@Nonnull Token expected) throws IOException {
+        Token token = peek();
+        if (token != expected) {
+            throw syntaxError("Expected " + expected + " but was " + token);
+        }
+        peeked = null;
+    }
+
+    private void push(int state) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = state;
+    }
+
+    @Nonnull
+    private Token readValue(int c) throws IOException {
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                return Token.STRING;
+            case 't':
+            case 'f':
+                pos--;
+                return Token.BOOLEAN;
+            case 'n':
+                pos--;
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    pos--;
+                    return Token.NUMBER;
+                }
+                throw syntaxError(c == -1 ? "Unexpected end of the document" : "Unexpected character " + (char) c);
+        }
+    }
+
+    /**
+     * Reads the rest of a string, the opening quote is already consumed.
+     */
+    private void readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                text.append(readEscape());
+            } else if (c < 0x80) {
+                if (c == -1) {
+                    throw syntaxError("Unterminated string");
+                }
+                text.append((char) c);
+            } else {
+                readMultiByte(c);
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                readEscape();
+            } else if (c == -1) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit == -1) {
+                        throw syntaxError("Malformed unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                // Surrogate pairs are escaped as two units, which are appended one by one
+                return (char) value;
+            default:
+                throw syntaxError("Malformed escape sequence");
+        }
+    }
+
+    private void readMultiByte(int b0) throws IOException {
+        int length;
+        int codePoint;
+        if (b0 >= 0xC2 && b0 < 0xE0) {
+            length = 1;
+            codePoint = b0 & 0x1F;
+        } else if (b0 >= 0xE0 && b0 < 0xF0) {
+            length = 2;
+            codePoint = b0 & 0x0F;
+        } else if (b0 >= 0xF0 && b0 < 0xF5) {
+            length = 3;
+            codePoint = b0 & 0x07;
+        } else {
+            text.append('\uFFFD');
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            int b = read();
+            if ((b & 0xC0) != 0x80) {
+                if (b != -1) {
+                    // Not a continuation, process it as the next character
+                    pos--;
+                }
+                text.append('\uFFFD');
+                return;
+            }
+            codePoint = (codePoint << 6) | (b & 0x3F);
+        }
+        if (Character.isValidCodePoint(codePoint)) {
+            text.appendCodePoint(codePoint);
+        } else {
+            text.append('\uFFFD');
+        }
+    }
+
+    private void readLiteral() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '-' || c == '+' || c == '.' || c == 'E') {
+                text.append((char) c);
+            } else {
+                if (c != -1) {
+                    pos--;
+                }
+                return;
+            }
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            int c = read();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+
+    private void expect(int c, char expected) throws IOException {
+        if (c != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+    }
+
+    /**
+     * Reads the next byte. A byte which has just been read may be pushed back with {@code pos--}.
+     */
+    private int read() throws IOException {
+        if (pos == limit) {
+            int read = in.read(buf, 0, buf.length);
+            if (read <= 0) {
+                pos = limit = 0;
+                return -1;
+            }
+            pos = 0;
+            limit = read;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    @Nonnull
+    private IOException syntaxError(@Nonnull String message) {
+        return new IOException("Malformed JSON: " + message);
+    }
+}
@@ -0,0 +1,283 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Least-recently-used cache of logs which can no longer change, i.e. logs of finished builds.
+ * Logs are kept outside of the heap in direct buffers, so a large cache does not add to the garbage collection load.
+ * The total size of the cached logs is bounded, the least recently read logs are evicted first.
+ * A single log may take at most a quarter of the cache, larger logs are not cached.
+ * The statistics are available over JMX, see {@link LogCacheMXBean}.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class LogCache implements LogCacheMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(LogCache.class.getName());
+
+    /**
+     * JMX name of the cache statistics.
+     */
+    public static final String OBJECT_NAME = "io.jenkins.plugins.extlogging.elasticsearch:type=LogCache";
+
+    private static final LogCache INSTANCE = new LogCache();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            LOGGER.log(Level.WARNING, "Failed to register the log cache statistics over JMX", ex);
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxSize;
+    private long size;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    @Nonnull
+    public static LogCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the size limit of the cache and evicts logs beyond it.
+     * It is applied when the reader configuration changes, see {@code ElasticsearchGlobalConfiguration#setReader}.
+     * @param maxSize Limit in bytes, {@code 0} disables caching
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        evict();
+    }
+
+    @Override
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return Maximum size of a single cached log in bytes
+     */
+    public synchronized long getMaxEntrySize() {
+        return maxSize / 4;
+    }
+
+    /**
+     * Gets the cached log and records a hit or a miss.
+     */
+    @CheckForNull
+    public synchronized Entry lookup(@Nonnull String key) {
+        if (maxSize == 0) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return entry;
+    }
+
+    public synchronized void put(@Nonnull String key, @Nonnull Entry entry) {
+        if (entry.size() > getMaxEntrySize()) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            size -= previous.size();
+        }
+        size += entry.size();
+        evict();
+    }
+
+    public synchronized void invalidate(@Nonnull String key) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            size -= previous.size();
+        }
+    }
+
+    /**
+     * Removes the logs whose keys start with the prefix, e.g. all logs of an Elasticsearch endpoint.
+     */
+    public synchronized void invalidateAll(@Nonnull String keyPrefix) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (entry.getKey().startsWith(keyPrefix)) {
+                size -= entry.getValue().size();
+                it.remove();
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().size();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Total size of the cached logs in bytes
+     */
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("LogCache[entries=%d, size=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                entries.size(), size, maxSize, hits, misses, evictions);
+    }
+
+    /**
+     * Cached log.
+     */
+    public static final class Entry {
+
+        @Nonnull
+        private final ByteBuffer data;
+        private final long end;
+
+        Entry(@Nonnull byte[] b, int len, long end) {
+            this.data = ByteBuffer.allocateDirect(len);
+            this.data.put(b, 0, len).flip();
+            this.end = end;
+        }
+
+        public int size() {
+            return data.capacity();
+        }
+
+        /**
+         * @return Offset after the end of the log
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        public void writeTo(@Nonnull OutputStream out) throws IOException {
+            ByteBuffer src = data.duplicate();
+            byte[] buf = new byte[Math.min(8192, Math.max(src.remaining(), 1))];
+            while (src.hasRemaining()) {
+                int len = Math.min(buf.length, src.remaining());
+                src.get(buf, 0, len);
+                out.write(buf, 0, len);
+            }
+        }
+    }
+
+    /**
+     * Copies the log while it is written, so that it may be cached or shared once it is complete.
+     * Copying stops as soon as the log gets larger than a cache entry may be.
+     */
+    public static final class Recorder extends OutputStream {
+
+        @Nonnull
+        private final OutputStream out;
+        private final long limit;
+        private byte[] buf = new byte[8192];
+        private int count;
+        private boolean overflow;
+
+        public Recorder(@Nonnull OutputStream out, long limit) {
+            this.out = out;
+            this.limit = Math.min(limit, Integer.MAX_VALUE - 8);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            record(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            record(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private void record(byte[] b, int off, int len) {
+            if (overflow) {
+                return;
+            }
+            if (count + (long) len > limit) {
+                overflow = true;
+                buf = null;
+                return;
+            }
+            if (count + len > buf.length) {
+                buf = Arrays.copyOf(buf, (int) Math.min(limit, Math.max(buf.length * 2L, count + (long) len)));
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        /**
+         * @param end Offset after the end of the log
+         * @return Entry with the recorded log, {@code null} if it was too large
+         */
+        @CheckForNull
+        public Entry toEntry(long end) {
+            return overflow ? null : new Entry(buf, count, end);
+        }
+
+        /**
+         * @return Copy of the recorded log, {@code null} if it was too large
+         */
+        @CheckForNull
+        public byte[] toByteArray() {
+            return overflow ? null : Arrays.copyOf(buf, count);
+        }
+    }
+}
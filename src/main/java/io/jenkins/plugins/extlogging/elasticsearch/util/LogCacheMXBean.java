@@ -0,0 +1,41 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Statistics of the {@link LogCache}, exposed over JMX as {@link LogCache#OBJECT_NAME},
+ * so that the cache size can be tuned by its hit rate.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public interface LogCacheMXBean {
+
+    /**
+     * @return Number of log reads served from the cache
+     */
+    long getHits();
+
+    /**
+     * @return Number of cacheable log reads which were not in the cache
+     */
+    long getMisses();
+
+    /**
+     * @return Number of logs removed to stay within the size limit
+     */
+    long getEvictions();
+
+    /**
+     * @return Total size of the cached logs in bytes
+     */
+    long getSize();
+
+    /**
+     * @return Size limit of the cache in bytes
+     */
+    long getMaxSize();
+
+    int getEntryCount();
+}
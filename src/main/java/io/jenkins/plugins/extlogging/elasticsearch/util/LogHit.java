@@ -0,0 +1,250 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Log document read from a search response.
+ * A single instance is reused for all hits of a response, so only the current hit is kept in memory.
+ * Both the {@code fields} and the {@code _source} representation of a document are supported.
+ * Dictionary documents of {@link NoteDictionary} are read as hits with a note id and no message.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class LogHit {
+
+    @CheckForNull
+    private String message;
+    private long seq;
+    private int annotations;
+    private int[] positions = new int[8];
+    private String[] notes = new String[8];
+    private String[] refs = new String[8];
+    @CheckForNull
+    private String noteId;
+    @CheckForNull
+    private String dictionaryNote;
+    private final JsonBuffer sort = new JsonBuffer(128);
+
+    /**
+     * @return Message without notes, {@code null} if the document has none
+     */
+    @CheckForNull
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return Sequence number of the document, {@code -1} if it was written without one
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    public int getAnnotationCount() {
+        return annotations;
+    }
+
+    /**
+     * @return Position of the annotation in the message, in UTF-16 units
+     */
+    public int getPosition(int annotation) {
+        return positions[annotation];
+    }
+
+    /**
+     * @return Serialized note, {@code null} if the annotation refers to a dictionary document
+     */
+    @CheckForNull
+    public String getNote(int annotation) {
+        return notes[annotation];
+    }
+
+    /**
+     * @return Id of the dictionary document with the note, {@code null} if the note is stored in place
+     */
+    @CheckForNull
+    public String getNoteRef(int annotation) {
+        return refs[annotation];
+    }
+
+    /**
+     * @return Note id if the hit is a dictionary document, {@code null} otherwise
+     */
+    @CheckForNull
+    public String getNoteId() {
+        return noteId;
+    }
+
+    /**
+     * @return Serialized note if the hit is a dictionary document, {@code null} otherwise
+     */
+    @CheckForNull
+    public String getDictionaryNote() {
+        return dictionaryNote;
+    }
+
+    /**
+     * Copies the hit, e.g. to process it after the next hit has been read.
+     * Sort values are not copied.
+     */
+    @Nonnull
+    public LogHit copy() {
+        LogHit copy = new LogHit();
+        copy.message = message;
+        copy.seq = seq;
+        copy.annotations = annotations;
+        copy.positions = Arrays.copyOf(positions, Math.max(annotations, 1));
+        copy.notes = Arrays.copyOf(notes, Math.max(annotations, 1));
+        copy.refs = Arrays.copyOf(refs, Math.max(annotations, 1));
+        copy.noteId = noteId;
+        copy.dictionaryNote = dictionaryNote;
+        return copy;
+    }
+
+    /**
+     * @return Sort values of the hit as a JSON array, for {@code search_after}. Empty if the hit has none
+     */
+    @Nonnull
+    public JsonBuffer getSort() {
+        return sort;
+    }
+
+    /**
+     * Reads the next hit object from the response.
+     */
+    void read(@Nonnull JsonReader reader) throws IOException {
+        message = null;
+        seq = -1;
+        annotations = 0;
+        noteId = null;
+        dictionaryNote = null;
+        sort.reset();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("fields".equals(name) || "_source".equals(name)) {
+                readDocument(reader);
+            } else if ("sort".equals(name)) {
+                reader.copyValue(sort);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readDocument(@Nonnull JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("message".equals(name)) {
+                message = readFirstString(reader);
+            } else if ("seq".equals(name)) {
+                seq = readFirstLong(reader);
+            } else if ("annotations".equals(name) && reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                readAnnotations(reader);
+            } else if (NoteDictionary.ID_KEY.equals(name)) {
+                noteId = readFirstString(reader);
+            } else if (NoteDictionary.NOTE_KEY.equals(name)) {
+                dictionaryNote = readFirstString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readAnnotations(@Nonnull JsonReader reader) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            int position = -1;
+            String note = null;
+            String ref = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("position".equals(name)) {
+                    position = (int) reader.nextLong();
+                } else if (NoteDictionary.NOTE_KEY.equals(name)) {
+                    note = reader.nextString();
+                } else if (NoteDictionary.REF_KEY.equals(name)) {
+                    ref = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (position >= 0 && (note != null || ref != null)) {
+                addAnnotation(position, note, ref);
+            }
+        }
+        reader.endArray();
+    }
+
+    private void addAnnotation(int position, @CheckForNull String note, @CheckForNull String ref) {
+        if (annotations == positions.length) {
+            positions = Arrays.copyOf(positions, annotations * 2);
+            notes = Arrays.copyOf(notes, annotations * 2);
+            refs = Arrays.copyOf(refs, annotations * 2);
+        }
+        positions[annotations] = position;
+        notes[annotations] = note;
+        refs[annotations] = ref;
+        annotations++;
+    }
+
+    /**
+     * Stored fields are returned as arrays, {@code _source} keeps the plain value.
+     */
+    @CheckForNull
+    private static String readFirstString(@Nonnull JsonReader reader) throws IOException {
+        JsonReader.Token token = reader.peek();
+        if (token != JsonReader.Token.BEGIN_ARRAY) {
+            if (token == JsonReader.Token.NULL) {
+                reader.nextNull();
+                return null;
+            }
+            return reader.nextString();
+        }
+        String value = null;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (value == null && reader.peek() == JsonReader.Token.STRING) {
+                value = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        return value;
+    }
+
+    private static long readFirstLong(@Nonnull JsonReader reader) throws IOException {
+        JsonReader.Token token = reader.peek();
+        if (token == JsonReader.Token.NUMBER || token == JsonReader.Token.STRING) {
+            return reader.nextLong();
+        }
+        long value = -1;
+        if (token == JsonReader.Token.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (value == -1 && reader.peek() == JsonReader.Token.NUMBER) {
+                    value = reader.nextLong();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endArray();
+        } else {
+            reader.skipValue();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,134 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the query selecting the documents of a log.
+ * All clauses are exact {@code term} matches in the filter context, so nothing is scored
+ * and Elasticsearch may cache the clauses.
+ * Values are written through {@link JsonBuffer}, so they are always escaped properly.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class LogQuery {
+
+    private final Map<String, String> data = new LinkedHashMap<>();
+    private long fromSeq;
+    private long toSeq;
+    private long fromTimestamp;
+    private long toTimestamp;
+    private final List<String> noteIds = new ArrayList<>();
+
+    /**
+     * Matches documents with the value in their event data.
+     * @param key Key in the {@code data} object, e.g. {@code jobId}
+     */
+    @Nonnull
+    public LogQuery data(@Nonnull String key, @Nonnull String value) {
+        data.put(key, value);
+        return this;
+    }
+
+    /**
+     * Matches documents with a sequence number of at least {@code seq}.
+     */
+    @Nonnull
+    public LogQuery fromSeq(long seq) {
+        this.fromSeq = seq;
+        return this;
+    }
+
+    /**
+     * Matches documents with a sequence number below {@code seq}, {@code 0} for no limit.
+     * Documents without a sequence number do not match then.
+     */
+    @Nonnull
+    public LogQuery toSeq(long seq) {
+        this.toSeq = seq;
+        return this;
+    }
+
+    /**
+     * Matches documents with {@code @timestamp} in the range.
+     * Lets Elasticsearch skip the indices which contain only other time ranges.
+     * @param from Start of the range in milliseconds since the epoch
+     * @param to End of the range in milliseconds since the epoch, {@code 0} for a range without an end
+     */
+    @Nonnull
+    public LogQuery timestamp(long from, long to) {
+        this.fromTimestamp = from;
+        this.toTimestamp = to;
+        return this;
+    }
+
+    /**
+     * Matches the note dictionary documents with the ids, see {@link NoteDictionary}.
+     * Replaces the ids of a previous call.
+     */
+    @Nonnull
+    public LogQuery noteIds(@Nonnull Collection<String> ids) {
+        noteIds.clear();
+        noteIds.addAll(ids);
+        return this;
+    }
+
+    public void writeTo(@Nonnull JsonBuffer json) {
+        json.startObject().name("bool").startObject().name("filter").startArray();
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            String field = "data." + entry.getKey();
+            // Indices created before the index template was installed map the IDs as text with a keyword subfield.
+            // A term query on a missing field is rewritten to match nothing, so the fallback is cheap.
+            json.startObject().name("bool").startObject()
+                    .name("should").startArray()
+                    .startObject().name("term").startObject().name(field).value(entry.getValue()).endObject().endObject()
+                    .startObject().name("term").startObject().name(field + ".keyword").value(entry.getValue()).endObject().endObject()
+                    .endArray()
+                    .name("minimum_should_match").value(1)
+                    .endObject().endObject();
+        }
+        if (fromSeq > 0 || toSeq > 0) {
+            json.startObject().name("range").startObject().name("seq").startObject();
+            if (fromSeq > 0) {
+                json.name("gte").value(fromSeq);
+            }
+            if (toSeq > 0) {
+                json.name("lt").value(toSeq);
+            }
+            json.endObject().endObject().endObject();
+        }
+        if (!noteIds.isEmpty()) {
+            json.startObject().name("terms").startObject().name(NoteDictionary.ID_KEY).startArray();
+            for (String id : noteIds) {
+                json.value(id);
+            }
+            json.endArray().endObject().endObject();
+        }
+        if (fromTimestamp > 0 || toTimestamp > 0) {
+            json.startObject().name("range").startObject().name("@timestamp").startObject();
+            if (fromTimestamp > 0) {
+                json.name("gte").value(fromTimestamp);
+            }
+            if (toTimestamp > 0) {
+                json.name("lte").value(toTimestamp);
+            }
+            json.name("format").value("epoch_millis").endObject().endObject().endObject();
+        }
+        json.endArray().endObject().endObject();
+    }
+
+    @Override
+    public String toString() {
+        JsonBuffer json = new JsonBuffer(256);
+        writeTo(json);
+        return json.toString();
+    }
+}
@@ -0,0 +1,145 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes every distinct console note of a writer once, as a dictionary document.
+ * Annotations of the log documents refer to the dictionary document by the note id in the {@code ref} member
+ * instead of repeating the serialized note in the {@code note} member.
+ * The id is derived from the note contents, so all writers of a build agree on it without coordination.
+ * <p>
+ * Dictionary documents have the {@code noteId} and {@code note} members and no event data,
+ * so the log queries never match them. They are read back by {@link NoteResolver}.
+ * Short notes are not worth a reference and are always written in place.
+ * Not thread-safe.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class NoteDictionary {
+
+    private static final String PROPERTY_PREFIX = NoteDictionary.class.getName();
+    /**
+     * Number of notes remembered by a writer. A note which is forgotten gets written again on its next use.
+     */
+    private static final int MAX_ENTRIES = Integer.getInteger(PROPERTY_PREFIX + ".maxEntries", 1000);
+
+    /**
+     * Notes shorter than this are written in place.
+     */
+    static final int MIN_LENGTH = 64;
+
+    public static final String ID_KEY = "noteId";
+    public static final String NOTE_KEY = "note";
+    public static final String REF_KEY = "ref";
+
+    /**
+     * Bytes of the SHA-256 digest used in the id. 120 bits make collisions within an index practically impossible.
+     */
+    private static final int ID_BYTES = 15;
+
+    private final Map<String, String> ids = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final List<String> pendingIds = new ArrayList<>();
+    private final List<String> pendingNotes = new ArrayList<>();
+    private final MessageDigest digest;
+    private final JsonBuffer document = new JsonBuffer(1024);
+
+    public NoteDictionary() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform must support it
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Writes the note member of an open annotation object, either the note itself or the reference to it.
+     * @param note Serialized note, as it appears between the note markers
+     */
+    public void writeNote(@Nonnull String note, @Nonnull JsonBuffer dest) {
+        if (note.length() < MIN_LENGTH) {
+            dest.name(NOTE_KEY).value(note);
+            return;
+        }
+        String id = ids.get(note);
+        if (id == null) {
+            id = createId(note);
+            ids.put(note, id);
+            pendingIds.add(id);
+            pendingNotes.add(note);
+        }
+        dest.name(REF_KEY).value(id);
+    }
+
+    /**
+     * Byte-level counterpart of {@link #writeNote(String, JsonBuffer)}.
+     */
+    public void writeNote(@Nonnull byte[] b, int off, int len, @Nonnull JsonBuffer dest) {
+        if (len < MIN_LENGTH) {
+            dest.name(NOTE_KEY).value(b, off, len);
+            return;
+        }
+        writeNote(new String(b, off, len, StandardCharsets.UTF_8), dest);
+    }
+
+    /**
+     * @return {@code true} if there are notes without a dictionary document yet
+     */
+    public boolean hasPending() {
+        return !pendingIds.isEmpty();
+    }
+
+    /**
+     * Creates the dictionary documents of the notes referenced for the first time since the last call.
+     * They must be queued before the documents which refer to them.
+     * @param buildTimestamp Time of the event which referenced the notes
+     * @return Serialized documents
+     */
+    @Nonnull
+    public List<byte[]> takeDocuments(long buildTimestamp) {
+        if (pendingIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<byte[]> documents = new ArrayList<>(pendingIds.size());
+        for (int i = 0; i < pendingIds.size(); i++) {
+            document.reset().startObject()
+                    .name(ID_KEY).value(pendingIds.get(i))
+                    .name(NOTE_KEY).value(pendingNotes.get(i))
+                    .name("@buildTimestamp").timestampValue(buildTimestamp)
+                    .name("@timestamp").timestampValue(System.currentTimeMillis())
+                    .name("@version").value(1)
+                    .endObject();
+            documents.add(document.toByteArray());
+        }
+        pendingIds.clear();
+        pendingNotes.clear();
+        return documents;
+    }
+
+    @Nonnull
+    private String createId(@Nonnull String note) {
+        byte[] hash = digest.digest(note.getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, ID_BYTES));
+    }
+}
@@ -0,0 +1,156 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves note references of log documents, see {@link NoteDictionary}.
+ * Notes are kept in a small cache for the lifetime of the resolver, which should be a single log request.
+ * Missing notes are collected with {@link #isResolved(LogHit)} and fetched in a single search
+ * by {@link #fetchMissing()}, e.g. once per page, so that no search is started while another response is read.
+ * Notes which cannot be found are remembered as missing until the end of the request.
+ * Not thread-safe.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class NoteResolver {
+
+    private static final String PROPERTY_PREFIX = NoteResolver.class.getName();
+    /**
+     * Number of notes kept by a resolver.
+     */
+    private static final int MAX_ENTRIES = Integer.getInteger(PROPERTY_PREFIX + ".maxEntries", 1000);
+    /**
+     * Number of notes requested by a single search.
+     */
+    private static final int MAX_IDS_PER_SEARCH = 1000;
+
+    private static final String SOURCE = "[\"" + NoteDictionary.ID_KEY + "\",\"" + NoteDictionary.NOTE_KEY + "\"]";
+    /**
+     * Sorted by the id only, so that a page continues after the last id and skips its copies from other writers.
+     */
+    private static final String SORT = "[{\"" + NoteDictionary.ID_KEY + "\":{\"order\":\"asc\"}}]";
+
+    @Nonnull
+    private final ElasticSearchDao dao;
+    @Nonnull
+    private final LogQuery query;
+    private boolean ignoreUnavailable;
+    @CheckForNull
+    private String routing;
+
+    /**
+     * Notes by their ids, {@code null} values for notes which are not found.
+     */
+    private final Map<String, String> notes = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final Set<String> missing = new LinkedHashSet<>();
+
+    /**
+     * @param dao DAO of the index with the documents of the log
+     * @param query Query restricting the search to the documents of the log, without event data clauses.
+     *              The note ids get added to it
+     */
+    public NoteResolver(@Nonnull ElasticSearchDao dao, @Nonnull LogQuery query) {
+        this.dao = dao;
+        this.query = query;
+    }
+
+    /**
+     * @see SearchPager#setIgnoreUnavailable(boolean)
+     */
+    public void setIgnoreUnavailable(boolean ignoreUnavailable) {
+        this.ignoreUnavailable = ignoreUnavailable;
+    }
+
+    /**
+     * @see SearchPager#setRouting(String)
+     */
+    public void setRouting(@CheckForNull String routing) {
+        this.routing = routing;
+    }
+
+    /**
+     * Checks whether all notes of the hit are available, and records those which are not.
+     */
+    public boolean isResolved(@Nonnull LogHit hit) {
+        boolean resolved = true;
+        for (int i = 0; i < hit.getAnnotationCount(); i++) {
+            String ref = hit.getNoteRef(i);
+            if (ref != null && !notes.containsKey(ref)) {
+                missing.add(ref);
+                resolved = false;
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Checks whether all notes of the hit have been found, after {@link #fetchMissing()}.
+     */
+    public boolean isAvailable(@Nonnull LogHit hit) {
+        for (int i = 0; i < hit.getAnnotationCount(); i++) {
+            String ref = hit.getNoteRef(i);
+            if (ref != null && notes.get(ref) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Note of the reference, {@code null} if it is not available
+     */
+    @CheckForNull
+    public String get(@Nonnull String ref) {
+        return notes.get(ref);
+    }
+
+    /**
+     * Fetches the notes recorded by {@link #isResolved(LogHit)}.
+     */
+    public void fetchMissing() throws IOException {
+        while (!missing.isEmpty()) {
+            List<String> ids = new ArrayList<>(Math.min(missing.size(), MAX_IDS_PER_SEARCH));
+            for (String id : missing) {
+                if (ids.size() == MAX_IDS_PER_SEARCH) {
+                    break;
+                }
+                ids.add(id);
+            }
+            missing.removeAll(ids);
+            for (String id : ids) {
+                notes.put(id, null);
+            }
+            // Every writer of the build stores the note, so there may be several documents per id, see SORT
+            SearchPager pager = new SearchPager(dao, query.noteIds(ids).toString(), SOURCE, "[]", SORT, ids.size(), null);
+            pager.setIgnoreUnavailable(ignoreUnavailable);
+            pager.setRouting(routing);
+            pager.forEach(hit -> {
+                String id = hit.getNoteId();
+                String note = hit.getDictionaryNote();
+                if (id != null && note != null) {
+                    notes.put(id, note);
+                }
+                return true;
+            });
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shares a single Elasticsearch read between concurrent readers of the same log range.
+ * The read runs on its own thread and fills a shared buffer, which every reader streams to its output at its own pace,
+ * so a slow client holds up neither the read nor the other readers.
+ * Readers which arrive while it is in flight, or shortly after it completed, join it instead of sending
+ * the same query again. So the read load depends on the number of watched logs, not on the number of watchers.
+ * <p>
+ * Results up to {@link #MAX_RESULT_BYTES} are kept whole. Beyond that, the buffer keeps only what the slowest reader
+ * has not written yet, up to the same size, and no other reader can join anymore. A reader which blocks the read
+ * for longer than {@link #STALL_MILLIS} is then dropped, and so is a reader which waits for the read
+ * for longer than that. Their reads fail.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class ReadCoalescer {
+
+    private static final String PROPERTY_PREFIX = ReadCoalescer.class.getName();
+    /**
+     * Time for which a completed read is reused by follow-up reads. A negative value disables sharing.
+     */
+    private static final long TTL_MILLIS = Long.getLong(PROPERTY_PREFIX + ".ttlMillis", 1000);
+    private static final int MAX_RESULT_BYTES = Integer.getInteger(PROPERTY_PREFIX + ".maxResultBytes", 1024 * 1024);
+    private static final long STALL_MILLIS = Long.getLong(PROPERTY_PREFIX + ".stallMillis", 60000);
+
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Elasticsearch shared log read"));
+
+    private static final ReadCoalescer INSTANCE = new ReadCoalescer();
+
+    /**
+     * Reads the log range into the output.
+     */
+    public interface Read {
+
+        /**
+         * @return Offset to continue from
+         */
+        long writeTo(@Nonnull OutputStream out) throws IOException;
+    }
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    @Nonnull
+    public static ReadCoalescer get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Performs the read, or joins an identical one.
+     * @param key Identifies the log and the range, e.g. the log key and the start offset
+     * @return Offset to continue from
+     */
+    public long read(@Nonnull String key, @Nonnull OutputStream out, @Nonnull Read read) throws IOException {
+        if (TTL_MILLIS < 0) {
+            return read.writeTo(out);
+        }
+        while (true) {
+            long now = System.currentTimeMillis();
+            Flight flight = new Flight();
+            Flight current = flights.putIfAbsent(key, flight);
+            boolean started = current == null;
+            Reader reader;
+            if (started) {
+                flights.values().removeIf(f -> f.isExpired(now));
+                // Joins first, so that the buffer is kept for it
+                reader = flight.join();
+                start(key, flight, read);
+                current = flight;
+            } else if (current.isExpired(now)) {
+                flights.remove(key, current);
+                continue;
+            } else {
+                reader = current.join();
+            }
+            if (reader == null) {
+                // Too large to be joined
+                return read.writeTo(out);
+            }
+            try {
+                return current.copyTo(reader, out);
+            } catch (IOException ex) {
+                if (started || !current.isFailed() || reader.position > 0) {
+                    throw ex;
+                }
+                // Nothing has been written yet, so it can be read again
+                return read.writeTo(out);
+            }
+        }
+    }
+
+    private void start(@Nonnull String key, @Nonnull Flight flight, @Nonnull Read read) {
+        // Reads are subject to the permissions of the reader which started them
+        Authentication authentication = Jenkins.getAuthentication();
+        READERS.execute(() -> {
+            try (ACLContext ignored = ACL.as(authentication)) {
+                flight.complete(read.writeTo(new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[] {(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+                        flight.append(b, off, len);
+                    }
+                }), null);
+            } catch (IOException ex) {
+                flight.complete(0, ex);
+            } catch (RuntimeException | Error ex) {
+                flight.complete(0, new IOException("Shared log read failed", ex));
+                throw ex;
+            } finally {
+                if (!flight.isReusable()) {
+                    flights.remove(key, flight);
+                }
+            }
+        });
+    }
+
+    private static final class Reader {
+
+        /**
+         * Bytes written to the output so far.
+         */
+        private long position;
+        /**
+         * Time when the reader started writing its last chunk.
+         */
+        private long progressAt = System.currentTimeMillis();
+        private boolean dropped;
+    }
+
+    private static final class Flight {
+
+        /**
+         * Bytes of the result from {@link #base} on.
+         */
+        private byte[] data = new byte[8192];
+        private int size;
+        /**
+         * Position of {@code data[0]} in the result, {@code 0} unless the result was too large to keep it whole.
+         */
+        private long base;
+        private final List<Reader> readers = new ArrayList<>();
+        private boolean done;
+        @CheckForNull
+        private IOException failure;
+        private long end;
+        /**
+         * {@code 0} while in flight.
+         */
+        private volatile long completedAt;
+        private volatile boolean reusable;
+
+        /**
+         * @return Reader starting at the beginning of the result, {@code null} if it is not buffered anymore
+         */
+        @CheckForNull
+        synchronized Reader join() {
+            if (base > 0) {
+                return null;
+            }
+            Reader reader = new Reader();
+            readers.add(reader);
+            return reader;
+        }
+
+        synchronized void append(@Nonnull byte[] b, int off, int len) throws IOException {
+            if (base + size + len > MAX_RESULT_BYTES) {
+                makeRoom(len);
+            }
+            if (data.length - size < len) {
+                data = Arrays.copyOf(data, Math.max(size + len, data.length * 2));
+            }
+            System.arraycopy(b, off, data, size, len);
+            size += len;
+            notifyAll();
+        }
+
+        /**
+         * Drops what all readers have written, waiting for the slowest one if it is not enough.
+         */
+        // must be called under the lock
+        private void makeRoom(int len) throws IOException {
+            while (true) {
+                Reader slowest = null;
+                for (Reader reader : readers) {
+                    if (slowest == null || reader.position < slowest.position) {
+                        slowest = reader;
+                    }
+                }
+                if (slowest == null) {
+                    throw new IOException("Nobody reads the shared log read anymore");
+                }
+                int written = (int) (slowest.position - base);
+                if (written > 0) {
+                    System.arraycopy(data, written, data, 0, size - written);
+                    size -= written;
+                    base += written;
+                }
+                if (size == 0 || size + len <= MAX_RESULT_BYTES) {
+                    return;
+                }
+                long wait = slowest.progressAt + STALL_MILLIS - System.currentTimeMillis();
+                if (wait <= 0) {
+                    slowest.dropped = true;
+                    readers.remove(slowest);
+                    notifyAll();
+                    continue;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the readers of a shared log read");
+                }
+            }
+        }
+
+        synchronized void complete(long end, @CheckForNull IOException failure) {
+            this.end = end;
+            this.failure = failure;
+            this.done = true;
+            this.reusable = failure == null && base == 0 && size <= MAX_RESULT_BYTES;
+            this.completedAt = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        /**
+         * Streams the result to the output as it arrives.
+         * @return Offset to continue from
+         */
+        long copyTo(@Nonnull Reader reader, @Nonnull OutputStream out) throws IOException {
+            while (true) {
+                byte[] chunk;
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + STALL_MILLIS;
+                    while (!done && !reader.dropped && reader.position == base + size) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            leave(reader);
+                            throw new IOException("Timed out waiting for a shared log read");
+                        }
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException ex) {
+                            leave(reader);
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for a shared log read");
+                        }
+                    }
+                    if (reader.dropped) {
+                        throw new IOException("Too slow to follow a shared log read");
+                    }
+                    if (reader.position == base + size) {
+                        leave(reader);
+                        if (failure != null) {
+                            throw new IOException("Shared log read failed", failure);
+                        }
+                        return end;
+                    }
+                    chunk = Arrays.copyOfRange(data, (int) (reader.position - base), size);
+                    reader.progressAt = System.currentTimeMillis();
+                }
+                // Do not hold the lock while writing to a slow client
+                try {
+                    out.write(chunk);
+                } catch (IOException | RuntimeException ex) {
+                    synchronized (this) {
+                        leave(reader);
+                    }
+                    throw ex;
+                }
+                synchronized (this) {
+                    reader.position += chunk.length;
+                    notifyAll();
+                }
+            }
+        }
+
+        // must be called under the lock
+        private void leave(@Nonnull Reader reader) {
+            readers.remove(reader);
+            notifyAll();
+        }
+
+        synchronized boolean isFailed() {
+            return failure != null;
+        }
+
+        boolean isReusable() {
+            return reusable;
+        }
+
+        boolean isExpired(long now) {
+            long completed = completedAt;
+            return completed != 0 && (!reusable || now - completed > TTL_MILLIS);
+        }
+    }
+}
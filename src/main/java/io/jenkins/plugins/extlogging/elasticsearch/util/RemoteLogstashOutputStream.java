@@ -23,28 +23,58 @@
  */
 package io.jenkins.plugins.extlogging.elasticsearch.util;
 
-import hudson.console.ConsoleNote;
 import hudson.console.LineTransformationOutputStream;
 import io.jenkins.plugins.extlogging.api.util.MaskSecretsOutputStream;
 import io.jenkins.plugins.extlogging.elasticsearch.ElasticsearchEventWriter;
 
+import javax.annotation.CheckForNull;
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
+/**
+ * Passes lines of the build output to {@link ElasticsearchEventWriter} as byte slices.
+ * Notes are stripped and whitespace is trimmed in place, the line is never decoded here.
+ * The output is expected to be UTF-8 encoded.
+ * Every line carries the event data of the stream, e.g. the {@code stepId} of a step log,
+ * so that it is found by the same queries as the lines written as events.
+ */
 public class RemoteLogstashOutputStream extends LineTransformationOutputStream {
 
     final ElasticsearchEventWriter logstash;
-    final String prefix;
+    @CheckForNull
+    private final Map<String, Serializable> data;
 
     private static final Logger LOGGER = Logger.getLogger(RemoteLogstashOutputStream.class.getName());
 
-    public RemoteLogstashOutputStream(ElasticsearchEventWriter logstash, String prefix) {
+    /**
+     * @since TODO
+     */
+    public RemoteLogstashOutputStream(ElasticsearchEventWriter logstash) {
+        this(logstash, (Map<String, Serializable>) null);
+    }
+
+    /**
+     * @param data Event data of every line
+     * @since TODO
+     */
+    public RemoteLogstashOutputStream(ElasticsearchEventWriter logstash, @CheckForNull Map<String, Serializable> data) {
         super();
         this.logstash = logstash;
-        this.prefix = prefix;
+        this.data = data;
+    }
+
+    /**
+     * @deprecated The prefix is applied by {@link ElasticsearchEventWriter} itself,
+     *             use {@link #RemoteLogstashOutputStream(ElasticsearchEventWriter)}
+     */
+    @Deprecated
+    public RemoteLogstashOutputStream(ElasticsearchEventWriter logstash, String prefix) {
+        this(logstash);
     }
 
     
@@ -55,17 +85,30 @@ public class RemoteLogstashOutputStream extends LineTransformationOutputStream {
     @Override
     protected void eol(byte[] b, int len) throws IOException {
         try {
-            this.flush();
             if (!logstash.isConnectionBroken()) {
-                String line = new String(b, 0, len).trim();
-                line = ConsoleNote.removeNotes(line);
-                logstash.writeMessage(prefix + line);
+                // Strip notes before trimming, a note at the start of the line begins with ESC
+                len = JSONConsoleNotes.removeNotes(b, 0, len);
+                int start = 0;
+                while (start < len && isWhitespace(b[start])) {
+                    start++;
+                }
+                while (len > start && isWhitespace(b[len - 1])) {
+                    len--;
+                }
+                logstash.writeLine(b, start, len - start, data);
             }
         } catch (Throwable ex) {
             LOGGER.log(Level.SEVERE, "BOOM", ex);
         }
     }
 
+    /**
+     * Same as {@link String#trim()}, bytes of multi-byte UTF-8 sequences are never whitespace.
+     */
+    private static boolean isWhitespace(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,88 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed request should be retried, and how long to wait before it.
+ * Delays grow exponentially and use "full jitter", so that writers which failed together
+ * do not retry together.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class RetryPolicy {
+
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    public RetryPolicy(int maxRetries, long initialBackoffMillis, long maxBackoffMillis) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = Math.max(initialBackoffMillis, maxBackoffMillis);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Checks whether the failure is transient.
+     * Connection failures and {@code 429}, {@code 502}, {@code 503}, {@code 504} responses are retryable.
+     */
+    public static boolean isRetryable(@Nonnull IOException ex) {
+        if (ex instanceof ElasticsearchResponseException) {
+            return isRetryableStatus(((ElasticsearchResponseException) ex).getStatusCode());
+        }
+        if (ex instanceof SocketTimeoutException || ex instanceof ConnectTimeoutException) {
+            return true;
+        }
+        // Otherwise it is a connection failure, unless the thread has been interrupted
+        return !(ex instanceof InterruptedIOException);
+    }
+
+    public static boolean isRetryableStatus(int statusCode) {
+        return statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * @param attempt Number of the failed attempt, starting from {@code 0}
+     * @return {@code true} if another attempt is allowed
+     */
+    public boolean canRetry(int attempt) {
+        return attempt < maxRetries;
+    }
+
+    /**
+     * Computes a randomized delay before the next attempt.
+     * @param attempt Number of the failed attempt, starting from {@code 0}
+     */
+    public long backoffMillis(int attempt) {
+        long ceiling = initialBackoffMillis << Math.min(attempt, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffMillis) {
+            ceiling = maxBackoffMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Sleeps before the next attempt.
+     * @throws InterruptedIOException The thread has been interrupted
+     */
+    public void backoff(int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(backoffMillis(attempt));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException)new InterruptedIOException("Interrupted during retry backoff").initCause(ex);
+        }
+    }
+}
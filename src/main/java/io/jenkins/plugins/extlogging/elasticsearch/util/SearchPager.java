@@ -0,0 +1,327 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads all hits of a query page by page.
+ * Pages are requested with {@code search_after} on a stable sort, so the cost of a page does not grow with its depth
+ * as it does with {@code from}/{@code size} offsets.
+ * Optionally, all pages are read from a single point-in-time.
+ * <p>
+ * Hits carry only the requested {@code _source} members, doc values and sort values.
+ * Other hit and response metadata, e.g. {@code _id}, {@code _index} and {@code _score}, is removed by {@code filter_path}.
+ * Both {@code _source} filtering and {@code docvalue_fields} are supported by all Elasticsearch versions since 5.0,
+ * unlike the {@code fields} option, which also cannot return unmapped members like console notes.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class SearchPager {
+
+    private static final Logger LOGGER = Logger.getLogger(SearchPager.class.getName());
+
+    /**
+     * Response members used by the pager, everything else is not sent by Elasticsearch.
+     */
+    private static final String FILTER_PATH = "pit_id,hits.hits._source,hits.hits.fields,hits.hits.sort";
+
+    /**
+     * Receives hits in the sort order.
+     */
+    public interface HitHandler {
+
+        /**
+         * @param hit Search hit
+         * @return {@code false} to stop reading
+         */
+        boolean onHit(@Nonnull LogHit hit) throws IOException;
+
+        /**
+         * Called after all hits of a page have been processed, e.g. to flush the output.
+         * @return {@code false} to stop reading
+         */
+        default boolean onPageEnd() throws IOException {
+            return true;
+        }
+    }
+
+    @Nonnull
+    private final ElasticSearchDao dao;
+    @Nonnull
+    private final byte[] query;
+    @Nonnull
+    private final byte[] source;
+    @Nonnull
+    private final byte[] docValueFields;
+    @Nonnull
+    private final byte[] sort;
+    private final int pageSize;
+    @CheckForNull
+    private final String pointInTimeKeepAlive;
+    private boolean requestCache;
+    private boolean ignoreUnavailable;
+    @CheckForNull
+    private String routing;
+
+    /**
+     * @param dao Elasticsearch access
+     * @param query Query clause, JSON object
+     * @param source Members of {@code _source} to retrieve, JSON array
+     * @param docValueFields Fields to retrieve from doc values, JSON array
+     * @param sort Sort definition, JSON array. Must define a total order, otherwise hits may be skipped on page boundaries
+     * @param pageSize Number of hits per request
+     * @param pointInTimeKeepAlive If not {@code null}, pages are read from a point-in-time kept alive for this time
+     */
+    public SearchPager(@Nonnull ElasticSearchDao dao, @Nonnull String query, @Nonnull String source,
+                       @Nonnull String docValueFields, @Nonnull String sort,
+                       int pageSize, @CheckForNull String pointInTimeKeepAlive) {
+        this.dao = dao;
+        this.query = query.getBytes(StandardCharsets.UTF_8);
+        this.source = source.getBytes(StandardCharsets.UTF_8);
+        this.docValueFields = docValueFields.getBytes(StandardCharsets.UTF_8);
+        this.sort = sort.getBytes(StandardCharsets.UTF_8);
+        this.pageSize = pageSize;
+        this.pointInTimeKeepAlive = pointInTimeKeepAlive;
+    }
+
+    /**
+     * Opts in to the shard request cache, which otherwise caches only requests without hits.
+     * Should be used only for data which does not change anymore.
+     * Not used for point-in-time reads.
+     */
+    public void setRequestCache(boolean requestCache) {
+        this.requestCache = requestCache;
+    }
+
+    /**
+     * Treats a missing index as an empty one, e.g. an index which gets created by the first write.
+     */
+    public void setIgnoreUnavailable(boolean ignoreUnavailable) {
+        this.ignoreUnavailable = ignoreUnavailable;
+    }
+
+    /**
+     * Searches only the shard of the routing value.
+     * @param routing Routing value used by the writers, {@code null} to search all shards
+     */
+    public void setRouting(@CheckForNull String routing) {
+        this.routing = routing;
+    }
+
+    /**
+     * Passes all hits to the handler, page by page.
+     * Responses are parsed while they are received, so only the current hit is kept in memory.
+     * @return Number of processed hits
+     */
+    public long forEach(@Nonnull HitHandler handler) throws IOException {
+        Page page = new Page(pointInTimeKeepAlive != null ? openPointInTime() : null);
+        try {
+            JsonBuffer body = new JsonBuffer();
+            byte[] searchAfter = null;
+            long total = 0;
+            while (true) {
+                writeRequest(body, searchAfter, page.pointInTime);
+                search(body, page, handler);
+                total += page.hits;
+                if (!handler.onPageEnd() || page.stopped || page.hits < pageSize) {
+                    return total;
+                }
+                searchAfter = page.hit.getSort().toByteArray();
+            }
+        } finally {
+            if (page.pointInTime != null) {
+                closePointInTime(page.pointInTime);
+            }
+        }
+    }
+
+    private void writeRequest(@Nonnull JsonBuffer body, @CheckForNull byte[] searchAfter, @CheckForNull String pointInTime) {
+        body.reset().startObject()
+                .name("size").value(pageSize)
+                .name("track_total_hits").value(false)
+                .name("query").rawValue(query)
+                .name("_source").startObject().name("includes").rawValue(source).endObject()
+                .name("docvalue_fields").rawValue(docValueFields)
+                .name("sort").rawValue(sort);
+        if (searchAfter != null) {
+            body.name("search_after").rawValue(searchAfter);
+        }
+        if (pointInTime != null) {
+            body.name("pit").startObject()
+                    .name("id").value(pointInTime)
+                    .name("keep_alive").value(pointInTimeKeepAlive)
+                    .endObject();
+        }
+        body.endObject();
+    }
+
+    private void search(@Nonnull JsonBuffer body, @Nonnull Page page, @Nonnull HitHandler handler) throws IOException {
+        // A point-in-time already identifies the index
+        String uri = page.pointInTime != null ? dao.getRootUri() + "/_search?filter_path=" + FILTER_PATH
+                : dao.getUri() + "/_search?filter_path=" + FILTER_PATH + getSearchParameters();
+        HttpGetWithData request = new HttpGetWithData(uri);
+        request.setEntity(new ByteArrayEntity(body.array(), 0, body.size(), ContentType.APPLICATION_JSON));
+        // Console logs compress well, Elasticsearch compresses the response unless it is disabled there
+        request.setHeader("Accept-Encoding", "gzip");
+        page.hits = 0;
+        try(CloseableHttpResponse response = execute(request);
+            JsonReader reader = new JsonReader(getContent(response))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("pit_id".equals(name)) {
+                    page.pointInTime = reader.nextString();
+                } else if ("hits".equals(name)) {
+                    readHits(reader, page, handler);
+                    if (page.stopped) {
+                        // Drop the connection rather than reading the rest of the response
+                        request.abort();
+                        return;
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+        }
+    }
+
+    private void readHits(@Nonnull JsonReader reader, @Nonnull Page page, @Nonnull HitHandler handler) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"hits".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                page.hit.read(reader);
+                page.hits++;
+                if (!handler.onHit(page.hit)) {
+                    page.stopped = true;
+                    return;
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Gets the response content, decompressing it while it is read.
+     * The default client decompresses responses itself and removes the {@code Content-Encoding} header,
+     * custom clients may not.
+     */
+    @Nonnull
+    private static InputStream getContent(@Nonnull CloseableHttpResponse response) throws IOException {
+        InputStream content = response.getEntity().getContent();
+        Header encoding = response.getFirstHeader("Content-Encoding");
+        if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+            return new GZIPInputStream(content, 8192);
+        }
+        return content;
+    }
+
+    @Nonnull
+    private String getSearchParameters() {
+        StringBuilder parameters = new StringBuilder();
+        if (requestCache) {
+            parameters.append("&request_cache=true");
+        }
+        if (ignoreUnavailable) {
+            parameters.append("&ignore_unavailable=true");
+        }
+        if (routing != null) {
+            parameters.append("&routing=").append(ElasticSearchDao.encode(routing));
+        }
+        return parameters.toString();
+    }
+
+    @Nonnull
+    private String openPointInTime() throws IOException {
+        String index = dao.getIndex();
+        if (index == null) {
+            throw new IOException("Cannot open a point-in-time, the index is not configured: " + dao.getUri());
+        }
+        HttpPost request = new HttpPost(dao.getRootUri() + "/" + index + "/_pit?keep_alive=" + pointInTimeKeepAlive
+                + (ignoreUnavailable ? "&ignore_unavailable=true" : "")
+                + (routing != null ? "&routing=" + ElasticSearchDao.encode(routing) : ""));
+        try(CloseableHttpResponse response = execute(request);
+            InputStream i = response.getEntity().getContent()) {
+            return JSONObject.fromObject(IOUtils.toString(i, StandardCharsets.UTF_8)).getString("id");
+        }
+    }
+
+    private void closePointInTime(@Nonnull String pointInTime) {
+        JsonBuffer body = new JsonBuffer().startObject().name("id").value(pointInTime).endObject();
+        HttpEntityEnclosingRequestBase request = new HttpEntityEnclosingRequestBase() {
+            @Override
+            public String getMethod() {
+                return "DELETE";
+            }
+        };
+        request.setURI(URI.create(dao.getRootUri() + "/_pit"));
+        request.setEntity(new ByteArrayEntity(body.toByteArray(), ContentType.APPLICATION_JSON));
+        try {
+            execute(request).close();
+        } catch (IOException ex) {
+            // It expires anyway
+            LOGGER.log(Level.FINE, "Failed to close point-in-time", ex);
+        }
+    }
+
+    /**
+     * @return Response with a successful status. Must be closed by the caller
+     */
+    @Nonnull
+    private CloseableHttpResponse execute(@Nonnull HttpRequestBase request) throws IOException {
+        String auth = dao.getAuth();
+        if (auth != null) {
+            request.addHeader("Authorization", "Basic " + auth);
+        }
+        CloseableHttpResponse response = dao.getHttpClient().execute(request);
+        if (response.getStatusLine().getStatusCode() != 200) {
+            try {
+                throw new ElasticsearchResponseException(response.getStatusLine().getStatusCode(),
+                        HttpGetWithData.getErrorMessage(dao.getUri(), response));
+            } finally {
+                response.close();
+            }
+        }
+        return response;
+    }
+
+    /**
+     * State of the current page.
+     */
+    private static final class Page {
+        @CheckForNull
+        String pointInTime;
+        final LogHit hit = new LogHit();
+        int hits;
+        boolean stopped;
+
+        Page(@CheckForNull String pointInTime) {
+            this.pointInTime = pointInTime;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps one long-lived pooled HTTP client per Elasticsearch endpoint and credentials in the JVM.
+ * Clients are shared by all writers and readers talking to the same endpoint.
+ * Idle and expired connections are evicted by the client itself.
+ * A client which has not been used for {@link #MAX_UNUSED_MILLIS}, e.g. because the credentials have been changed,
+ * is closed and removed. It gets created again on its next use.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class SharedHttpClients {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedHttpClients.class.getName());
+
+    private static final String PROPERTY_PREFIX = SharedHttpClients.class.getName();
+    private static final int MAX_CONNECTIONS_TOTAL = Integer.getInteger(PROPERTY_PREFIX + ".maxConnectionsTotal", 50);
+    private static final int MAX_CONNECTIONS_PER_ROUTE = Integer.getInteger(PROPERTY_PREFIX + ".maxConnectionsPerRoute", 10);
+    private static final long KEEP_ALIVE_MILLIS = Long.getLong(PROPERTY_PREFIX + ".keepAliveMillis", 60000);
+    private static final long MAX_IDLE_MILLIS = Long.getLong(PROPERTY_PREFIX + ".maxIdleMillis", 30000);
+    private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger(PROPERTY_PREFIX + ".connectTimeoutMillis", 10000);
+    private static final int SOCKET_TIMEOUT_MILLIS = Integer.getInteger(PROPERTY_PREFIX + ".socketTimeoutMillis", 60000);
+    /**
+     * Time after which an unused client is closed.
+     */
+    private static final long MAX_UNUSED_MILLIS = Long.getLong(PROPERTY_PREFIX + ".maxUnusedMillis", 3600000);
+
+    private static final ConcurrentMap<Key, Entry> CLIENTS = new ConcurrentHashMap<>();
+    /**
+     * Time of the next check for unused clients.
+     */
+    private static final AtomicLong NEXT_CLEANUP = new AtomicLong();
+
+    private SharedHttpClients() {}
+
+    /**
+     * Gets the key of the client for the endpoint of the specified DAO.
+     * Computing it involves hashing the password, so callers should keep it.
+     * @param dao DAO, may be a deserialized copy
+     */
+    @Nonnull
+    public static Key getKey(@Nonnull ElasticSearchDao dao) {
+        return new Key(dao.getUri(), dao.getUsername(), dao.getPassword());
+    }
+
+    /**
+     * Gets a shared client.
+     * @param key Key from {@link #getKey(ElasticSearchDao)}
+     * @return Shared client. It must not be closed by callers
+     */
+    @Nonnull
+    public static CloseableHttpClient get(@Nonnull Key key) {
+        long now = System.currentTimeMillis();
+        long cleanup = NEXT_CLEANUP.get();
+        if (now >= cleanup && NEXT_CLEANUP.compareAndSet(cleanup, now + MAX_UNUSED_MILLIS / 10)) {
+            closeUnused(now - MAX_UNUSED_MILLIS);
+        }
+        while (true) {
+            Entry entry = CLIENTS.computeIfAbsent(key, k -> new Entry(create()));
+            CloseableHttpClient client = entry.use(now);
+            if (client != null) {
+                return client;
+            }
+            // Closed concurrently as unused
+            CLIENTS.remove(key, entry);
+        }
+    }
+
+    private static void closeUnused(long usedBefore) {
+        for (Map.Entry<Key, Entry> e : CLIENTS.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.closeIfUnused(usedBefore)) {
+                CLIENTS.remove(e.getKey(), entry);
+            }
+        }
+    }
+
+    @Nonnull
+    private static CloseableHttpClient create() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(CONNECT_TIMEOUT_MILLIS)
+                .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+                .build();
+
+        return HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? keepAlive : KEEP_ALIVE_MILLIS;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(MAX_IDLE_MILLIS, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    private static final class Entry {
+
+        @Nonnull
+        private final CloseableHttpClient client;
+        private long lastUsed;
+        private boolean closed;
+
+        Entry(@Nonnull CloseableHttpClient client) {
+            this.client = client;
+        }
+
+        /**
+         * @return Client, {@code null} if it has been closed
+         */
+        @CheckForNull
+        synchronized CloseableHttpClient use(long now) {
+            if (closed) {
+                return null;
+            }
+            lastUsed = Math.max(lastUsed, now);
+            return client;
+        }
+
+        synchronized boolean closeIfUnused(long usedBefore) {
+            if (closed || lastUsed >= usedBefore) {
+                return closed;
+            }
+            closed = true;
+            try {
+                client.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, "Failed to close an unused HTTP client", ex);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Client key: endpoint and credentials.
+     * Password is kept only as a digest.
+     */
+    public static final class Key {
+
+        private final String scheme;
+        private final String host;
+        private final int port;
+        @CheckForNull
+        private final String username;
+        @CheckForNull
+        private final String passwordDigest;
+
+        Key(@Nonnull URI uri, @CheckForNull String username, @CheckForNull String password) {
+            this.scheme = uri.getScheme();
+            this.host = uri.getHost();
+            this.port = uri.getPort();
+            this.username = username;
+            this.passwordDigest = StringUtils.isNotBlank(password) ? DigestUtils.sha256Hex(password) : null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return port == key.port
+                    && Objects.equals(scheme, key.scheme)
+                    && Objects.equals(host, key.host)
+                    && Objects.equals(username, key.username)
+                    && Objects.equals(passwordDigest, key.passwordDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(scheme, host, port, username, passwordDigest);
+        }
+    }
+}
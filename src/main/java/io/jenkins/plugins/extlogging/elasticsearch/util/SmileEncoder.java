@@ -0,0 +1,521 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes documents in the Smile binary format for {@link BulkEncoding#SMILE} requests.
+ * Documents are transcoded from their serialized JSON form in a single pass:
+ * string bytes are copied with a length prefix, only escape sequences get decoded,
+ * and integers are written as zigzag variable-length integers.
+ * Every document starts with the Smile header and ends with the end-of-content marker,
+ * which separates the documents of a {@code _bulk} request.
+ * Shared names and shared string values are not used.
+ * Not thread-safe.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class SmileEncoder {
+
+    private static final byte[] HEADER = {':', ')', '\n', 0};
+
+    private static final int TOKEN_EMPTY_STRING = 0x20;
+    private static final int TOKEN_NULL = 0x21;
+    private static final int TOKEN_FALSE = 0x22;
+    private static final int TOKEN_TRUE = 0x23;
+    private static final int TOKEN_INT_32 = 0x24;
+    private static final int TOKEN_INT_64 = 0x25;
+    private static final int TOKEN_FLOAT_64 = 0x29;
+    private static final int TOKEN_LONG_NAME = 0x34;
+    private static final int PREFIX_TINY_ASCII = 0x40;
+    private static final int PREFIX_SHORT_ASCII = 0x60;
+    private static final int PREFIX_TINY_UNICODE = 0x80;
+    private static final int PREFIX_SHORT_UNICODE = 0xA0;
+    private static final int PREFIX_SMALL_INT = 0xC0;
+    private static final int TOKEN_LONG_ASCII = 0xE0;
+    private static final int TOKEN_LONG_UNICODE = 0xE4;
+    private static final int PREFIX_ASCII_NAME = 0x80;
+    private static final int PREFIX_UNICODE_NAME = 0xC0;
+    private static final int START_ARRAY = 0xF8;
+    private static final int END_ARRAY = 0xF9;
+    private static final int START_OBJECT = 0xFA;
+    private static final int END_OBJECT = 0xFB;
+    private static final int END_STRING = 0xFC;
+    private static final int END_OF_CONTENT = 0xFF;
+
+    /**
+     * U+FFFD in UTF-8.
+     */
+    private static final byte[] REPLACEMENT_CHARACTER = {(byte) 0xEF, (byte) 0xBF, (byte) 0xBD};
+
+    private byte[] buf = new byte[8192];
+    private int size;
+
+    /**
+     * Unescaped bytes of the current string.
+     */
+    private byte[] text = new byte[256];
+    private int textLength;
+    private boolean textAscii;
+
+    private final byte[] groups = new byte[10];
+
+    private byte[] in;
+    private int pos;
+    private int end;
+
+    @Nonnull
+    public SmileEncoder reset() {
+        size = 0;
+        return this;
+    }
+
+    /**
+     * @return Internal buffer, valid up to {@link #size()}
+     */
+    @Nonnull
+    public byte[] array() {
+        return buf;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Discards the data written after an earlier {@link #size()}, e.g. the action line of a document
+     * which cannot be encoded.
+     */
+    public void truncate(int size) {
+        if (size < 0 || size > this.size) {
+            throw new IllegalArgumentException("Cannot truncate " + this.size + " bytes to " + size);
+        }
+        this.size = size;
+    }
+
+    /**
+     * Appends a document.
+     * @param json Buffer with the document in the JSON format
+     * @throws IOException The document is not valid JSON
+     */
+    public void writeDocument(@Nonnull byte[] json, int offset, int length) throws IOException {
+        int start = size;
+        in = json;
+        pos = offset;
+        end = offset + length;
+        try {
+            writeRaw(HEADER, 0, HEADER.length);
+            skipWhitespace();
+            writeValue();
+            skipWhitespace();
+            if (pos != end) {
+                throw syntaxError("Unexpected content after the document");
+            }
+            writeByte(END_OF_CONTENT);
+        } catch (IOException | RuntimeException ex) {
+            size = start;
+            throw ex;
+        } finally {
+            in = null;
+        }
+    }
+
+    private void writeValue() throws IOException {
+        if (pos == end) {
+            throw syntaxError("Unexpected end of the document");
+        }
+        int c = in[pos];
+        switch (c) {
+            case '{':
+                pos++;
+                writeObject();
+                break;
+            case '[':
+                pos++;
+                writeArray();
+                break;
+            case '"':
+                pos++;
+                readString();
+                writeText();
+                break;
+            case 't':
+                expectLiteral("true");
+                writeByte(TOKEN_TRUE);
+                break;
+            case 'f':
+                expectLiteral("false");
+                writeByte(TOKEN_FALSE);
+                break;
+            case 'n':
+                expectLiteral("null");
+                writeByte(TOKEN_NULL);
+                break;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    writeNumber();
+                } else {
+                    throw syntaxError("Unexpected character '" + (char) c + "'");
+                }
+        }
+    }
+
+    private void writeObject() throws IOException {
+        writeByte(START_OBJECT);
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            writeByte(END_OBJECT);
+            return;
+        }
+        while (true) {
+            expect('"');
+            readString();
+            writeName();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            writeValue();
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+                skipWhitespace();
+                continue;
+            }
+            expect('}');
+            writeByte(END_OBJECT);
+            return;
+        }
+    }
+
+    private void writeArray() throws IOException {
+        writeByte(START_ARRAY);
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            writeByte(END_ARRAY);
+            return;
+        }
+        while (true) {
+            writeValue();
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+                skipWhitespace();
+                continue;
+            }
+            expect(']');
+            writeByte(END_ARRAY);
+            return;
+        }
+    }
+
+    private void writeName() {
+        if (textLength == 0) {
+            writeByte(TOKEN_EMPTY_STRING);
+        } else if (textAscii && textLength <= 64) {
+            writeByte(PREFIX_ASCII_NAME + textLength - 1);
+            writeRaw(text, 0, textLength);
+        } else if (!textAscii && textLength >= 2 && textLength <= 57) {
+            writeByte(PREFIX_UNICODE_NAME + textLength - 2);
+            writeRaw(text, 0, textLength);
+        } else {
+            writeByte(TOKEN_LONG_NAME);
+            writeRaw(text, 0, textLength);
+            writeByte(END_STRING);
+        }
+    }
+
+    private void writeText() {
+        if (textLength == 0) {
+            writeByte(TOKEN_EMPTY_STRING);
+        } else if (textAscii && textLength <= 32) {
+            writeByte(PREFIX_TINY_ASCII + textLength - 1);
+            writeRaw(text, 0, textLength);
+        } else if (textAscii && textLength <= 64) {
+            writeByte(PREFIX_SHORT_ASCII + textLength - 33);
+            writeRaw(text, 0, textLength);
+        } else if (!textAscii && textLength >= 2 && textLength <= 33) {
+            writeByte(PREFIX_TINY_UNICODE + textLength - 2);
+            writeRaw(text, 0, textLength);
+        } else if (!textAscii && textLength >= 34 && textLength <= 65) {
+            writeByte(PREFIX_SHORT_UNICODE + textLength - 34);
+            writeRaw(text, 0, textLength);
+        } else {
+            writeByte(textAscii ? TOKEN_LONG_ASCII : TOKEN_LONG_UNICODE);
+            writeRaw(text, 0, textLength);
+            writeByte(END_STRING);
+        }
+    }
+
+    private void writeNumber() throws IOException {
+        int start = pos;
+        boolean integral = true;
+        while (pos < end) {
+            int c = in[pos];
+            if (c == '.' || c == 'e' || c == 'E' || c == '+') {
+                integral = false;
+            } else if (c != '-' && (c < '0' || c > '9')) {
+                break;
+            }
+            pos++;
+        }
+        int digits = pos - start - (in[start] == '-' ? 1 : 0);
+        if (integral && digits > 0 && digits <= 18) {
+            long value = 0;
+            for (int i = pos - digits; i < pos; i++) {
+                int c = in[i];
+                if (c < '0' || c > '9') {
+                    throw syntaxError("Malformed number");
+                }
+                value = value * 10 + (c - '0');
+            }
+            writeLong(in[start] == '-' ? -value : value);
+            return;
+        }
+        String number = new String(in, start, pos - start, StandardCharsets.US_ASCII);
+        if (integral) {
+            try {
+                writeLong(Long.parseLong(number));
+                return;
+            } catch (NumberFormatException ex) {
+                // Out of the long range, Elasticsearch maps it as a floating point number anyway
+            }
+        }
+        double value;
+        try {
+            value = Double.parseDouble(number);
+        } catch (NumberFormatException ex) {
+            throw syntaxError("Malformed number");
+        }
+        writeByte(TOKEN_FLOAT_64);
+        long bits = Double.doubleToRawLongBits(value);
+        for (int shift = 63; shift >= 0; shift -= 7) {
+            writeByte((int) (bits >>> shift) & 0x7F);
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value >= -16 && value <= 15) {
+            writeByte(PREFIX_SMALL_INT + (int) zigzag(value));
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            writeByte(TOKEN_INT_32);
+            writeVInt(zigzag(value));
+        } else {
+            writeByte(TOKEN_INT_64);
+            writeVInt(zigzag(value));
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Writes 7 bits per byte, most significant first. The last byte carries 6 bits and has the high bit set.
+     */
+    private void writeVInt(long value) {
+        int last = 0x80 | (int) (value & 0x3F);
+        value >>>= 6;
+        int count = 0;
+        while (value != 0) {
+            groups[count++] = (byte) (value & 0x7F);
+            value >>>= 7;
+        }
+        ensureCapacity(count + 1);
+        while (count > 0) {
+            buf[size++] = groups[--count];
+        }
+        buf[size++] = (byte) last;
+    }
+
+    /**
+     * Reads the string after the opening quote into {@link #text}.
+     */
+    private void readString() throws IOException {
+        textLength = 0;
+        textAscii = true;
+        while (true) {
+            if (pos == end) {
+                throw syntaxError("Unterminated string");
+            }
+            int c = in[pos++] & 0xFF;
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                readEscape();
+            } else if (c < 0x80) {
+                appendText(c);
+            } else if (c >= 0xF8) {
+                // Never valid in UTF-8, and 0xFC would terminate a long Smile string
+                appendText(REPLACEMENT_CHARACTER);
+            } else {
+                textAscii = false;
+                appendText(c);
+            }
+        }
+    }
+
+    private void readEscape() throws IOException {
+        if (pos == end) {
+            throw syntaxError("Unterminated string");
+        }
+        int c = in[pos++];
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                appendText(c);
+                break;
+            case 'b':
+                appendText('\b');
+                break;
+            case 'f':
+                appendText('\f');
+                break;
+            case 'n':
+                appendText('\n');
+                break;
+            case 'r':
+                appendText('\r');
+                break;
+            case 't':
+                appendText('\t');
+                break;
+            case 'u':
+                int codePoint = readHex();
+                if (Character.isHighSurrogate((char) codePoint) && pos + 1 < end && in[pos] == '\\' && in[pos + 1] == 'u') {
+                    int mark = pos;
+                    pos += 2;
+                    int low = readHex();
+                    if (Character.isLowSurrogate((char) low)) {
+                        codePoint = Character.toCodePoint((char) codePoint, (char) low);
+                    } else {
+                        pos = mark;
+                    }
+                }
+                appendCodePoint(codePoint);
+                break;
+            default:
+                throw syntaxError("Invalid escape sequence");
+        }
+    }
+
+    private int readHex() throws IOException {
+        if (end - pos < 4) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(in[pos++], 16);
+            if (digit < 0) {
+                throw syntaxError("Invalid escape sequence");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private void appendCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            appendText(codePoint);
+            return;
+        }
+        if (Character.isSurrogate((char) codePoint) && codePoint <= 0xFFFF) {
+            // Unpaired surrogate
+            appendText(REPLACEMENT_CHARACTER);
+            return;
+        }
+        textAscii = false;
+        if (codePoint < 0x800) {
+            appendText(0xC0 | (codePoint >> 6));
+        } else if (codePoint < 0x10000) {
+            appendText(0xE0 | (codePoint >> 12));
+            appendText(0x80 | ((codePoint >> 6) & 0x3F));
+        } else {
+            appendText(0xF0 | (codePoint >> 18));
+            appendText(0x80 | ((codePoint >> 12) & 0x3F));
+            appendText(0x80 | ((codePoint >> 6) & 0x3F));
+        }
+        appendText(0x80 | (codePoint & 0x3F));
+    }
+
+    private void appendText(int b) {
+        if (textLength == text.length) {
+            text = Arrays.copyOf(text, text.length * 2);
+        }
+        text[textLength++] = (byte) b;
+    }
+
+    private void appendText(@Nonnull byte[] bytes) {
+        textAscii = false;
+        for (byte b : bytes) {
+            appendText(b);
+        }
+    }
+
+    private int peek() throws IOException {
+        if (pos == end) {
+            throw syntaxError("Unexpected end of the document");
+        }
+        return in[pos];
+    }
+
+    private void expect(char c) throws IOException {
+        if (peek() != c) {
+            throw syntaxError("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private void expectLiteral(@Nonnull String literal) throws IOException {
+        if (end - pos < literal.length()) {
+            throw syntaxError("Unexpected end of the document");
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (in[pos + i] != literal.charAt(i)) {
+                throw syntaxError("Unexpected literal");
+            }
+        }
+        pos += literal.length();
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            int c = in[pos];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    @Nonnull
+    private IOException syntaxError(@Nonnull String message) {
+        return new IOException("Malformed JSON: " + message + " at offset " + pos);
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buf[size++] = (byte) b;
+    }
+
+    private void writeRaw(@Nonnull byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, size, len);
+        size += len;
+    }
+
+    private void ensureCapacity(int free) {
+        if (buf.length - size < free) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + free));
+        }
+    }
+}
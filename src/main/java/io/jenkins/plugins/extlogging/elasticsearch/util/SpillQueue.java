@@ -0,0 +1,456 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only disk queue for batches which could not be delivered to Elasticsearch.
+ * Batches are stored in memory-mapped segment files and read back in the order they were appended.
+ * <p>
+ * Each record is prefixed by its length. Consumed records get their length negated in place,
+ * so that a queue reopened on the same directory skips them. A zero length marks the end of a segment.
+ * <p>
+ * A queue holds a lock on its directory while it is open, so that a queue left behind by another process
+ * can be claimed with {@link #claim(File, int, int, SyncPolicy)} once that process is gone.
+ * All queues of the JVM share a disk budget, see {@link #MAX_TOTAL_BYTES}.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class SpillQueue implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(SpillQueue.class.getName());
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.spill");
+    private static final int HEADER_SIZE = 4;
+    private static final String LOCK_FILE = "queue.lock";
+    private static final String ATTRIBUTES_FILE = "queue.properties";
+
+    /**
+     * Maximum disk space taken by the segments of all spill queues in the JVM.
+     * Batches are dropped once it is exhausted.
+     */
+    private static final long MAX_TOTAL_BYTES = Long.getLong(SpillQueue.class.getName() + ".maxTotalBytes",
+            1024L * 1024 * 1024);
+    private static final AtomicLong TOTAL_BYTES = new AtomicLong();
+
+    /**
+     * Defines when appended data is forced to the storage device.
+     */
+    public enum SyncPolicy {
+        /**
+         * Leave it to the operating system.
+         */
+        NEVER,
+        /**
+         * Force a segment once it is full or closed.
+         */
+        ON_SEGMENT_ROLL,
+        /**
+         * Force after every appended batch.
+         */
+        ALWAYS
+    }
+
+    @Nonnull
+    private final File directory;
+    private final int maxSegments;
+    private final int maxSegmentBytes;
+    @Nonnull
+    private final SyncPolicy syncPolicy;
+
+    @Nonnull
+    private final FileChannel lockChannel;
+    @Nonnull
+    private final FileLock lock;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentId;
+    private int records;
+    private boolean closed;
+
+    /**
+     * Opens the queue in the directory, which is created if needed.
+     * @throws IOException The directory cannot be created, or it is used by another queue
+     */
+    public SpillQueue(@Nonnull File directory, int maxSegments, int maxSegmentBytes, @Nonnull SyncPolicy syncPolicy) throws IOException {
+        this(directory, maxSegments, maxSegmentBytes, syncPolicy, true);
+    }
+
+    private SpillQueue(@Nonnull File directory, int maxSegments, int maxSegmentBytes, @Nonnull SyncPolicy syncPolicy,
+                       boolean create) throws IOException {
+        this.directory = directory;
+        this.maxSegments = maxSegments;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.syncPolicy = syncPolicy;
+        if (create && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spill directory " + directory);
+        }
+        this.lockChannel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock fileLock;
+        try {
+            fileLock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            fileLock = null;
+        } catch (IOException ex) {
+            lockChannel.close();
+            throw ex;
+        }
+        if (fileLock == null) {
+            lockChannel.close();
+            throw new SpillQueueInUseException(directory);
+        }
+        this.lock = fileLock;
+        try {
+            recover();
+        } catch (IOException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens a queue which has been left behind, e.g. by a previous run of the JVM.
+     * @return Queue or {@code null} if the directory is gone or used by another queue
+     */
+    @CheckForNull
+    public static SpillQueue claim(@Nonnull File directory, int maxSegments, int maxSegmentBytes,
+                                   @Nonnull SyncPolicy syncPolicy) throws IOException {
+        if (!directory.isDirectory()) {
+            return null;
+        }
+        try {
+            return new SpillQueue(directory, maxSegments, maxSegmentBytes, syncPolicy, false);
+        } catch (SpillQueueInUseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the directory holds a queue with attributes, i.e. one whose owner has finished setting it up.
+     */
+    public static boolean hasAttributes(@Nonnull File directory) {
+        return new File(directory, ATTRIBUTES_FILE).isFile();
+    }
+
+    /**
+     * Stores attributes with the queue, which allow another process to replay it.
+     */
+    public synchronized void writeAttributes(@Nonnull Properties attributes) throws IOException {
+        File file = new File(directory, ATTRIBUTES_FILE);
+        File tmp = new File(directory, ATTRIBUTES_FILE + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            attributes.store(out, null);
+        }
+        // Readers never see a partially written file
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return Attributes stored with {@link #writeAttributes(Properties)}, empty if there are none
+     */
+    @Nonnull
+    public synchronized Properties readAttributes() throws IOException {
+        Properties attributes = new Properties();
+        File file = new File(directory, ATTRIBUTES_FILE);
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                attributes.load(in);
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Appends a batch of documents to the tail of the queue.
+     * @return {@code false} if the batch does not fit into the configured segment limits
+     */
+    public synchronized boolean append(@Nonnull List<byte[]> batch) throws IOException {
+        // Record header, document count, then length-prefixed documents
+        int size = 2 * HEADER_SIZE;
+        for (byte[] document : batch) {
+            size += HEADER_SIZE + document.length;
+        }
+        // Leave room for the end marker
+        if (size + HEADER_SIZE > maxSegmentBytes) {
+            return false;
+        }
+
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.sealed || tail.writePosition + size + HEADER_SIZE > maxSegmentBytes) {
+            if (tail != null) {
+                tail.seal(syncPolicy != SyncPolicy.NEVER);
+            }
+            if (segments.size() >= maxSegments || !reserve(maxSegmentBytes)) {
+                return false;
+            }
+            try {
+                tail = new Segment(new File(directory, segmentName(nextSegmentId++)), maxSegmentBytes);
+            } catch (IOException ex) {
+                TOTAL_BYTES.addAndGet(-maxSegmentBytes);
+                throw ex;
+            }
+            segments.addLast(tail);
+        }
+
+        MappedByteBuffer buffer = tail.buffer;
+        buffer.position(tail.writePosition + HEADER_SIZE);
+        buffer.putInt(batch.size());
+        for (byte[] document : batch) {
+            buffer.putInt(document.length);
+            buffer.put(document);
+        }
+        // Publish the record by writing its length last
+        buffer.putInt(tail.writePosition, size - HEADER_SIZE);
+        tail.writePosition += size;
+        records++;
+        if (syncPolicy == SyncPolicy.ALWAYS) {
+            buffer.force();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the oldest batch without removing it.
+     * @return Batch or {@code null} if the queue is empty
+     */
+    @CheckForNull
+    public synchronized List<byte[]> peek() {
+        Segment head = head();
+        if (head == null) {
+            return null;
+        }
+        MappedByteBuffer buffer = head.buffer;
+        buffer.position(head.readPosition + HEADER_SIZE);
+        int count = buffer.getInt();
+        List<byte[]> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] document = new byte[buffer.getInt()];
+            buffer.get(document);
+            batch.add(document);
+        }
+        return batch;
+    }
+
+    /**
+     * Removes the oldest batch, previously returned by {@link #peek()}.
+     */
+    public synchronized void remove() throws IOException {
+        Segment head = head();
+        if (head == null) {
+            return;
+        }
+        int length = head.buffer.getInt(head.readPosition);
+        head.buffer.putInt(head.readPosition, -length);
+        head.readPosition += HEADER_SIZE + length;
+        records--;
+        if (head.readPosition >= head.writePosition) {
+            segments.removeFirst();
+            head.delete();
+            TOTAL_BYTES.addAndGet(-head.size);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return records == 0;
+    }
+
+    /**
+     * @return Number of batches in the queue
+     */
+    public synchronized int size() {
+        return records;
+    }
+
+    /**
+     * Closes the queue.
+     * A drained queue is removed from the disk, otherwise it stays there to be claimed later.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments) {
+            segment.seal(syncPolicy != SyncPolicy.NEVER);
+            TOTAL_BYTES.addAndGet(-segment.size);
+        }
+        segments.clear();
+        try {
+            if (records == 0) {
+                // Nobody can claim the queue anymore once the attributes are gone
+                Files.deleteIfExists(new File(directory, ATTRIBUTES_FILE).toPath());
+            }
+            lock.release();
+        } finally {
+            lockChannel.close();
+        }
+        if (records == 0) {
+            // Best effort, the directory is left on the disk if anything remains in it
+            new File(directory, LOCK_FILE).delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Takes space from the disk budget shared by all queues.
+     */
+    private static boolean reserve(long bytes) {
+        while (true) {
+            long total = TOTAL_BYTES.get();
+            if (total + bytes > MAX_TOTAL_BYTES) {
+                LOGGER.log(Level.FINE, "Spill queues have exhausted the disk budget of {0} bytes", MAX_TOTAL_BYTES);
+                return false;
+            }
+            if (TOTAL_BYTES.compareAndSet(total, total + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    @CheckForNull
+    private Segment head() {
+        Segment head = segments.peekFirst();
+        return head != null && head.readPosition < head.writePosition ? head : null;
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            Matcher m = SEGMENT_NAME.matcher(file.getName());
+            if (!m.matches()) {
+                continue;
+            }
+            nextSegmentId = Math.max(nextSegmentId, Long.parseLong(m.group(1)) + 1);
+            Segment segment = new Segment(file, (int)Math.min(file.length(), Integer.MAX_VALUE));
+            segment.recover();
+            if (segment.readPosition < segment.writePosition) {
+                segment.sealed = true;
+                // Recovered data is kept even if it exceeds the budget
+                TOTAL_BYTES.addAndGet(segment.size);
+                segments.addLast(segment);
+                LOGGER.log(Level.INFO, "Recovered {0} undelivered batches from {1}",
+                        new Object[] {segment.pendingRecords, file});
+                records += segment.pendingRecords;
+            } else {
+                segment.delete();
+            }
+        }
+    }
+
+    @Nonnull
+    private static String segmentName(long id) {
+        return String.format("segment-%010d.spill", id);
+    }
+
+    /**
+     * Thrown if the directory is locked by another queue.
+     */
+    private static final class SpillQueueInUseException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        SpillQueueInUseException(@Nonnull File directory) {
+            super("Spill directory " + directory + " is used by another queue");
+        }
+    }
+
+    private static final class Segment {
+
+        @Nonnull
+        private final File file;
+        @Nonnull
+        private final MappedByteBuffer buffer;
+        private final int size;
+        private int writePosition;
+        private int readPosition;
+        private int pendingRecords;
+        private boolean sealed;
+
+        Segment(@Nonnull File file, int size) throws IOException {
+            this.file = file;
+            this.size = size;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                // The mapping stays valid after the channel is closed
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        /**
+         * Restores positions from the record headers.
+         */
+        void recover() {
+            int position = 0;
+            boolean seenPending = false;
+            while (position + HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length == 0) {
+                    break;
+                }
+                if (length > 0) {
+                    if (!seenPending) {
+                        seenPending = true;
+                        readPosition = position;
+                    }
+                    pendingRecords++;
+                }
+                position += HEADER_SIZE + Math.abs(length);
+            }
+            writePosition = position;
+            if (!seenPending) {
+                readPosition = position;
+            }
+        }
+
+        void seal(boolean force) {
+            if (!sealed) {
+                sealed = true;
+                if (force) {
+                    buffer.force();
+                }
+            }
+        }
+
+        void delete() {
+            if (!file.delete()) {
+                // Mapped files cannot be deleted on some platforms until the mapping is collected
+                file.deleteOnExit();
+            }
+        }
+    }
+}
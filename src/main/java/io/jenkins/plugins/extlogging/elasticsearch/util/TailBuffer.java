@@ -0,0 +1,182 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import io.jenkins.plugins.extlogging.elasticsearch.ElasticsearchLogLargeTextProvider;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recent documents of a running build's log in the controller memory.
+ * <p>
+ * Documents become searchable in Elasticsearch only after the index refresh,
+ * so live console reads are served from here and stitched to the search results by sequence number.
+ * Writers on the controller append directly, writers on agents through a remoting proxy of {@link TailSink}.
+ * Documents are kept for {@link #RETENTION_MILLIS} after they arrive, so that the buffer covers the documents
+ * which searches skip as too recent, see {@link ElasticsearchLogLargeTextProvider#LATE_ARRIVAL_MILLIS}.
+ * Buffers are also bounded by size, the oldest documents are dropped first.
+ * Buffers which are not written for a while are discarded.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class TailBuffer implements TailSink {
+
+    private static final String PROPERTY_PREFIX = TailBuffer.class.getName();
+    /**
+     * Time for which documents are kept, at least the time for which searches skip them.
+     */
+    private static final long RETENTION_MILLIS = Math.max(ElasticsearchLogLargeTextProvider.LATE_ARRIVAL_MILLIS,
+            Long.getLong(PROPERTY_PREFIX + ".retentionMillis", 2 * ElasticsearchLogLargeTextProvider.LATE_ARRIVAL_MILLIS));
+    private static final long MAX_BYTES = Long.getLong(PROPERTY_PREFIX + ".maxBytes", 1024 * 1024);
+    private static final long IDLE_MILLIS = Long.getLong(PROPERTY_PREFIX + ".idleMillis", 10 * 60 * 1000);
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final ConcurrentMap<String, TailBuffer> BUFFERS = new ConcurrentHashMap<>();
+
+    /**
+     * Ring of the documents ordered by sequence number, it grows when the retained documents do not fit.
+     */
+    private long[] seqs = new long[INITIAL_CAPACITY];
+    private byte[][] texts = new byte[INITIAL_CAPACITY][];
+    private long[] arrivals = new long[INITIAL_CAPACITY];
+    private int first;
+    private int count;
+    private long bytes;
+    private volatile long lastWrite = System.currentTimeMillis();
+    private final AtomicLong writers = new AtomicLong();
+
+    /**
+     * Gets the buffer of the log, creating it if needed.
+     * @param key Log key, see {@code ElasticsearchLogLargeTextProvider#getLogKey()}
+     */
+    @Nonnull
+    public static TailBuffer forLog(@Nonnull String key) {
+        long now = System.currentTimeMillis();
+        BUFFERS.values().removeIf(b -> now - b.lastWrite > IDLE_MILLIS);
+        return BUFFERS.computeIfAbsent(key, k -> new TailBuffer());
+    }
+
+    /**
+     * @return Buffer of the log, {@code null} if nothing is written to it on this controller
+     */
+    @CheckForNull
+    public static TailBuffer find(@Nonnull String key) {
+        return BUFFERS.get(key);
+    }
+
+    /**
+     * Counts the writers of the log on the controller, including the copies sent to agents,
+     * so that they get distinct sequence number slots, see {@code ElasticsearchEventWriter#nextSeq}.
+     * @return Number of the new writer, starting from {@code 0}
+     */
+    public long nextWriterNumber() {
+        return writers.getAndIncrement();
+    }
+
+    @Override
+    public synchronized void append(long seq, @Nonnull byte[] text) {
+        long now = System.currentTimeMillis();
+        lastWrite = now;
+        if (text.length > MAX_BYTES) {
+            return;
+        }
+        while (count > 0 && (now - arrivals[first] > RETENTION_MILLIS || bytes + text.length > MAX_BYTES)) {
+            bytes -= texts[first].length;
+            texts[first] = null;
+            first = (first + 1) % seqs.length;
+            count--;
+        }
+        if (count == seqs.length) {
+            grow();
+        }
+        // Documents of several writers may arrive slightly out of order
+        int i = count;
+        while (i > 0 && seqs[index(i - 1)] > seq) {
+            seqs[index(i)] = seqs[index(i - 1)];
+            texts[index(i)] = texts[index(i - 1)];
+            arrivals[index(i)] = arrivals[index(i - 1)];
+            i--;
+        }
+        seqs[index(i)] = seq;
+        texts[index(i)] = text;
+        arrivals[index(i)] = now;
+        count++;
+        bytes += text.length;
+    }
+
+    // must be called under the lock
+    private void grow() {
+        int capacity = seqs.length * 2;
+        long[] newSeqs = new long[capacity];
+        byte[][] newTexts = new byte[capacity][];
+        long[] newArrivals = new long[capacity];
+        for (int i = 0; i < count; i++) {
+            newSeqs[i] = seqs[index(i)];
+            newTexts[i] = texts[index(i)];
+            newArrivals[i] = arrivals[index(i)];
+        }
+        seqs = newSeqs;
+        texts = newTexts;
+        arrivals = newArrivals;
+        first = 0;
+    }
+
+    /**
+     * Checks whether the buffer holds all documents from the sequence number on.
+     * Documents may be dropped from the buffer or written before it was created.
+     */
+    public synchronized boolean covers(long fromSeq) {
+        return count > 0 && seqs[first] <= fromSeq;
+    }
+
+    /**
+     * Writes the documents with sequence numbers of at least {@code fromSeq}.
+     * @return Sequence number after the last written document, {@code fromSeq} if there was nothing to write
+     */
+    public long writeTo(long fromSeq, @Nonnull OutputStream out) throws IOException {
+        long end = fromSeq;
+        while (true) {
+            byte[] text;
+            synchronized (this) {
+                // Searched again for every document, the buffer may change in between
+                int i = lowerBound(end);
+                if (i == count) {
+                    return end;
+                }
+                text = texts[index(i)];
+                end = seqs[index(i)] + 1;
+            }
+            // Do not hold the lock while writing to a slow client
+            out.write(text);
+        }
+    }
+
+    /**
+     * @return Position of the first document with a sequence number of at least {@code seq}
+     */
+    // must be called under the lock
+    private int lowerBound(long seq) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (seqs[index(mid)] < seq) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int index(int i) {
+        return (first + i) % seqs.length;
+    }
+}
@@ -0,0 +1,24 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import hudson.remoting.Asynchronous;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives log documents as they are written, see {@link TailBuffer}.
+ * Writers on agents get a remoting proxy, so calls must not wait for the controller.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public interface TailSink {
+
+    /**
+     * @param seq Sequence number of the document
+     * @param text UTF-8 encoded lines of the document with console notes, each line terminated by {@code \n}
+     */
+    @Asynchronous
+    void append(long seq, @Nonnull byte[] text);
+}
@@ -0,0 +1,144 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Helpers for working on UTF-8 encoded bytes without decoding them.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class Utf8 {
+
+    private Utf8() {}
+
+    /**
+     * Validates a single encoded character.
+     * @param bytes Data
+     * @param offset Position of the first byte of the character
+     * @param end End of the data, exclusive
+     * @return Length of a well-formed sequence, or {@code 0} if it is malformed or truncated.
+     *         Overlong encodings, surrogates and code points above {@code U+10FFFF} are malformed.
+     */
+    public static int sequenceLength(@Nonnull byte[] bytes, int offset, int end) {
+        int b0 = bytes[offset] & 0xFF;
+        if (b0 < 0x80) {
+            return 1;
+        }
+        if (b0 < 0xC2) {
+            // Continuation byte or overlong two-byte form
+            return 0;
+        }
+        if (b0 < 0xE0) {
+            return offset + 1 < end && isContinuation(bytes[offset + 1]) ? 2 : 0;
+        }
+        if (b0 < 0xF0) {
+            if (offset + 2 >= end) {
+                return 0;
+            }
+            int b1 = bytes[offset + 1] & 0xFF;
+            if ((b0 == 0xE0 && b1 < 0xA0) || (b0 == 0xED && b1 > 0x9F)) {
+                return 0;
+            }
+            return isContinuation(bytes[offset + 1]) && isContinuation(bytes[offset + 2]) ? 3 : 0;
+        }
+        if (b0 < 0xF5) {
+            if (offset + 3 >= end) {
+                return 0;
+            }
+            int b1 = bytes[offset + 1] & 0xFF;
+            if ((b0 == 0xF0 && b1 < 0x90) || (b0 == 0xF4 && b1 > 0x8F)) {
+                return 0;
+            }
+            return isContinuation(bytes[offset + 1]) && isContinuation(bytes[offset + 2])
+                    && isContinuation(bytes[offset + 3]) ? 4 : 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Counts UTF-16 code units for the bytes, as {@link String#length()} would for the decoded text.
+     * Malformed bytes count as a single replacement character each.
+     */
+    public static int utf16Length(@Nonnull byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int units = 0;
+        int i = offset;
+        while (i < end) {
+            int sequence = bytes[i] >= 0 ? 1 : sequenceLength(bytes, i, end);
+            if (sequence == 0) {
+                units++;
+                i++;
+            } else {
+                units += sequence == 4 ? 2 : 1;
+                i += sequence;
+            }
+        }
+        return units;
+    }
+
+    /**
+     * Counts bytes of the UTF-8 encoded text, as {@link #encode(CharSequence, byte[], int)} writes them.
+     * Unpaired surrogates count as the three bytes of {@code U+FFFD} each, as {@link JsonBuffer} writes them as well.
+     */
+    public static long encodedLength(@Nonnull CharSequence text) {
+        long bytes = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                // Unpaired surrogates are replaced by U+FFFD
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes the text into the buffer.
+     * Unpaired surrogates are replaced by {@code U+FFFD}, as {@link JsonBuffer} does.
+     * @param dest Buffer with room for {@code 3 * text.length()} bytes from {@code offset}
+     * @return Number of bytes written
+     */
+    public static int encode(@Nonnull CharSequence text, @Nonnull byte[] dest, int offset) {
+        int pos = offset;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                dest[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                dest[pos++] = (byte) (0xC0 | (c >> 6));
+                dest[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                dest[pos++] = (byte) (0xF0 | (cp >> 18));
+                dest[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                dest[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                dest[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                if (Character.isSurrogate(c)) {
+                    c = '\uFFFD';
+                }
+                dest[pos++] = (byte) (0xE0 | (c >> 12));
+                dest[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dest[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos - offset;
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+}
@@ -0,0 +1,29 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.junit.Test;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the plugin, i.e. the classes ending with {@code Benchmark}.
+ * It is not run by default, use {@code mvn test -P jmh-benchmark}.
+ * A single benchmark can be selected with {@code -Dbenchmark=NoteScanBenchmark}.
+ * Results are written to {@code target/jmh-report.json}.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(BenchmarkRunner.class.getPackage().getName() + "." + System.getProperty("benchmark", ".*Benchmark"))
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json")
+                .shouldFailOnError(true)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,110 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to encode a bulk request of 1000 log documents, with and without {@link BulkEncoding#SMILE}
+ * and compression. The size of the resulting body is printed once per trial.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BulkEncodingBenchmark {
+
+    private static final String[] WORDS = {
+            "[INFO]", "Building", "workspace", "/var/lib/jenkins/workspace/job", "Tests run: 42, Failures: 0",
+            "+ mvn -B test", "\u00e9t\u00e9", "\u65e5\u672c\u8a9e", "\"quoted\"", "\ttabbed",
+    };
+    private static final byte[] ACTION = "{\"index\":{}}".getBytes(StandardCharsets.UTF_8);
+    private static final int DOCUMENTS = 1000;
+
+    @Param({"JSON", "SMILE"})
+    public BulkEncoding encoding;
+
+    @Param({"false", "true"})
+    public boolean compression;
+
+    private final List<byte[]> documents = new ArrayList<>(DOCUMENTS);
+    private final JsonBuffer body = new JsonBuffer(64 * 1024);
+    private final SmileEncoder smile = new SmileEncoder();
+    private final GzipEncoder gzip = new GzipEncoder();
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        JsonBuffer document = new JsonBuffer(1024);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            StringBuilder message = new StringBuilder();
+            int words = 1 + random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                message.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            document.reset().startObject()
+                    .name("@timestamp").timestampValue(1527854400000L + i)
+                    .name("@buildTimestamp").timestampValue(1527854340000L)
+                    .name("@version").value(1)
+                    .name("data").startObject()
+                    .name("jobId").value("folder/job-" + i % 7)
+                    .name("buildNum").value(i % 300)
+                    .name("host").value("agent-1")
+                    .endObject()
+                    .name("message").value(message.toString())
+                    .name("writer").value("agent-1:" + i % 3)
+                    .name("line").value(i)
+                    .name("seq").value(1527854400000L * 1000 + i)
+                    .endObject();
+            documents.add(document.toByteArray());
+        }
+        System.out.println(encoding + (compression ? " with compression" : "") + ": " + encode() + " bytes");
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        byte[] data;
+        int length;
+        if (encoding == BulkEncoding.SMILE) {
+            smile.reset();
+            for (byte[] document : documents) {
+                smile.writeDocument(ACTION, 0, ACTION.length);
+                smile.writeDocument(document, 0, document.length);
+            }
+            data = smile.array();
+            length = smile.size();
+        } else {
+            body.reset();
+            for (byte[] document : documents) {
+                body.raw(ACTION, 0, ACTION.length).newLine()
+                        .raw(document, 0, document.length).newLine();
+            }
+            data = body.array();
+            length = body.size();
+        }
+        if (compression) {
+            gzip.encode(data, 0, length);
+            return gzip.size();
+        }
+        return length;
+    }
+}
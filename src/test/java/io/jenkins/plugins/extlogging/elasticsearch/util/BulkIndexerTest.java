@@ -0,0 +1,445 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import io.jenkins.plugins.extlogging.elasticsearch.ElasticsearchWriterConfiguration;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public class BulkIndexerTest {
+
+    @Test
+    public void shouldSendBatchesInOrder() throws Exception {
+        StubDao dao = new StubDao("batches");
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setMaxBulkDocuments(3);
+        config.setMaxLatencyMillis(60000);
+        BulkIndexer indexer = new BulkIndexer(dao, config);
+
+        // The first full batch is sent right away, the rest queues up behind it
+        dao.entered = new CountDownLatch(1);
+        dao.release = new CountDownLatch(1);
+        add(indexer, 0, 3);
+        dao.entered.await();
+        add(indexer, 3, 7);
+        dao.release.countDown();
+
+        awaitUntil(() -> dao.getRequests().size() == 3);
+        assertEquals(documents(0, 3), dao.getRequests().get(0));
+        assertEquals(documents(3, 6), dao.getRequests().get(1));
+        assertEquals(documents(6, 7), dao.getRequests().get(2));
+        indexer.close();
+        assertEquals(3, dao.getRequests().size());
+    }
+
+    @Test
+    public void shouldLimitBatchBytes() throws Exception {
+        StubDao dao = new StubDao("bytes");
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setMaxBulkDocuments(100);
+        config.setMaxBulkBytes(2 * document(0).length());
+        config.setMaxLatencyMillis(60000);
+        BulkIndexer indexer = new BulkIndexer(dao, config);
+
+        add(indexer, 0, 4);
+        indexer.close();
+        assertEquals(documents(0, 4), dao.getDelivered());
+        for (List<String> request : dao.getRequests()) {
+            assertTrue("Too many documents in " + request, request.size() <= 2);
+        }
+    }
+
+    @Test
+    public void shouldSendAfterMaxLatency() throws Exception {
+        StubDao dao = new StubDao("latency");
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setMaxBulkDocuments(100);
+        config.setMaxLatencyMillis(50);
+        BulkIndexer indexer = new BulkIndexer(dao, config);
+
+        add(indexer, 0, 2);
+        awaitUntil(() -> dao.getDelivered().size() == 2);
+        assertEquals(documents(0, 2), dao.getDelivered());
+        indexer.close();
+    }
+
+    @Test
+    public void shouldRetryTransientFailures() throws Exception {
+        StubDao dao = new StubDao("retries");
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setMaxRetries(3);
+        config.setInitialBackoffMillis(10);
+        config.setMaxBackoffMillis(20);
+        config.setCircuitBreakerFailureThreshold(10);
+        BulkIndexer indexer = new BulkIndexer(dao, config);
+
+        dao.failures.add(new ElasticsearchResponseException(503, "busy"));
+        dao.failures.add(new ElasticsearchResponseException(429, "too many requests"));
+        add(indexer, 0, 2);
+        indexer.flush();
+        awaitUntil(() -> dao.getDelivered().size() == 2);
+        assertEquals(documents(0, 2), dao.getDelivered());
+        assertEquals(3, dao.attempts);
+        indexer.close();
+    }
+
+    @Test
+    public void shouldDropRejectedBatches() throws Exception {
+        StubDao dao = new StubDao("rejected");
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setMaxBulkDocuments(2);
+        BulkIndexer indexer = new BulkIndexer(dao, config);
+
+        dao.failures.add(new ElasticsearchResponseException(400, "mapper_parsing_exception"));
+        add(indexer, 0, 2);
+        indexer.flush();
+        add(indexer, 2, 4);
+        indexer.close();
+        assertEquals(documents(2, 4), dao.getDelivered());
+        assertEquals(2, dao.attempts);
+    }
+
+    @Test
+    public void shouldDropDocumentsWhichCannotBeEncoded() throws Exception {
+        StubDao dao = new StubDao("malformed");
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setBulkEncoding(BulkEncoding.SMILE);
+        BulkIndexer indexer = new BulkIndexer(dao, config);
+
+        indexer.add(document(0).getBytes(StandardCharsets.UTF_8));
+        indexer.add("{\"message\":".getBytes(StandardCharsets.UTF_8));
+        indexer.add(document(1).getBytes(StandardCharsets.UTF_8));
+        indexer.close();
+        // The valid documents are sent once, without waiting for retries of the malformed one
+        assertEquals(1, dao.attempts);
+        assertFalse(BulkIndexer.hasUndelivered(dao));
+    }
+
+    @Test
+    public void shouldNotSendWhileCircuitIsOpen() throws Exception {
+        StubDao dao = new StubDao("breaker");
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setMaxRetries(0);
+        config.setCircuitBreakerFailureThreshold(1);
+        config.setCircuitBreakerOpenMillis(300);
+        config.setSpillReplayIntervalMillis(20);
+        BulkIndexer indexer = new BulkIndexer(dao, config);
+        CircuitBreaker breaker = CircuitBreaker.forDao(dao, 1, 300);
+
+        dao.failures.add(new ElasticsearchResponseException(503, "busy"));
+        add(indexer, 0, 2);
+        indexer.flush();
+        assertEquals(1, dao.attempts);
+        assertTrue(breaker.isOpen());
+
+        add(indexer, 2, 3);
+        indexer.flush();
+        assertEquals(1, dao.attempts);
+        assertTrue(dao.getDelivered().isEmpty());
+        assertTrue(BulkIndexer.hasUndelivered(dao));
+
+        // A log read in the meantime may be incomplete
+        String key = dao.getUri() + "#job#1";
+        LogCache.get().setMaxSize(1024);
+        LogCache.get().put(key, new LogCache.Entry(new byte[10], 10, 10));
+
+        // The probe after the open period delivers everything in order
+        awaitUntil(() -> dao.getDelivered().size() == 3);
+        assertEquals(documents(0, 3), dao.getDelivered());
+        assertFalse(breaker.isOpen());
+        awaitUntil(() -> !BulkIndexer.hasUndelivered(dao));
+        assertNull(LogCache.get().lookup(key));
+        LogCache.get().setMaxSize(0);
+        indexer.close();
+    }
+
+    @Test
+    public void shouldOpenCircuitAgainIfProbeResponseCannotBeRead() throws Exception {
+        StubDao dao = new StubDao("probe");
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setMaxRetries(0);
+        config.setCircuitBreakerFailureThreshold(1);
+        config.setCircuitBreakerOpenMillis(50);
+        config.setSpillReplayIntervalMillis(20);
+        BulkIndexer indexer = new BulkIndexer(dao, config);
+
+        dao.failures.add(new ElasticsearchResponseException(503, "busy"));
+        dao.failures.add(new IllegalStateException("Malformed bulk response"));
+        add(indexer, 0, 2);
+        indexer.flush();
+        // The failed probe opens the circuit again, and the next one delivers the documents
+        awaitUntil(() -> dao.getDelivered().size() == 2);
+        assertEquals(documents(0, 2), dao.getDelivered());
+        assertEquals(3, dao.attempts);
+        indexer.close();
+    }
+
+    @Test
+    public void shouldStopRetryingAfterClose() throws Exception {
+        StubDao dao = new StubDao("closed");
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setMaxRetries(0);
+        config.setCircuitBreakerFailureThreshold(1);
+        config.setCircuitBreakerOpenMillis(60000);
+        config.setSpillReplayIntervalMillis(20);
+        BulkIndexer indexer = new BulkIndexer(dao, config);
+
+        long closedRetryMillis = BulkIndexer.CLOSED_RETRY_MILLIS;
+        BulkIndexer.CLOSED_RETRY_MILLIS = 100;
+        try {
+            dao.failures.add(new ElasticsearchResponseException(503, "busy"));
+            add(indexer, 0, 2);
+            indexer.close();
+            assertTrue(BulkIndexer.hasUndelivered(dao));
+            // The documents are given up, although the circuit is still open
+            awaitUntil(() -> !BulkIndexer.hasUndelivered(dao));
+            assertEquals(1, dao.attempts);
+        } finally {
+            BulkIndexer.CLOSED_RETRY_MILLIS = closedRetryMillis;
+        }
+    }
+
+    @Test
+    public void shouldDropNewestWhenFull() throws Exception {
+        StubDao dao = new StubDao("dropNewest");
+        BulkIndexer indexer = fillBuffer(dao, BackpressurePolicy.DROP_NEWEST);
+        add(indexer, 3, 4);
+        dao.release.countDown();
+        indexer.close();
+        assertEquals(documents(0, 3), dao.getDelivered());
+    }
+
+    @Test
+    public void shouldDropOldestWhenFull() throws Exception {
+        StubDao dao = new StubDao("dropOldest");
+        BulkIndexer indexer = fillBuffer(dao, BackpressurePolicy.DROP_OLDEST);
+        add(indexer, 3, 4);
+        dao.release.countDown();
+        indexer.close();
+        assertEquals(Arrays.asList(document(0), document(2), document(3)), dao.getDelivered());
+    }
+
+    @Test
+    public void shouldNotQueueOfferWhenFull() throws Exception {
+        StubDao dao = new StubDao("block");
+        BulkIndexer indexer = fillBuffer(dao, BackpressurePolicy.BLOCK);
+        assertFalse(indexer.offer(document(3).getBytes(StandardCharsets.UTF_8)));
+        dao.release.countDown();
+        indexer.close();
+        assertEquals(documents(0, 3), dao.getDelivered());
+    }
+
+    @Test
+    public void shouldStopBlockingAfterMaxBlockTime() throws Exception {
+        StubDao dao = new StubDao("blockTimeout");
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setBackpressurePolicy(BackpressurePolicy.BLOCK);
+        config.setMaxBlockMillis(50);
+        BulkIndexer indexer = fillBuffer(dao, config);
+        // Both give up waiting, the second one right away
+        add(indexer, 3, 5);
+        dao.release.countDown();
+        indexer.close();
+        assertEquals(documents(0, 3), dao.getDelivered());
+    }
+
+    @Test
+    public void shouldReplaySpilledBatchesInOrder() throws Exception {
+        StubDao dao = new StubDao("spill");
+        File directory = Files.createTempDirectory("spill").toFile();
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setMaxBulkDocuments(5);
+        config.setBufferCapacity(10);
+        config.setMaxRetries(0);
+        config.setCircuitBreakerOpenMillis(50);
+        config.setSpillReplayIntervalMillis(20);
+        config.setBackpressurePolicy(BackpressurePolicy.SPILL);
+        config.setSpillDirectory(directory.getPath());
+        BulkIndexer indexer = new BulkIndexer(dao, config);
+
+        // The first request fails after the buffer has overflowed, so both it and the overflow get spilled
+        for (int i = 0; i < 3; i++) {
+            dao.failures.add(new ElasticsearchResponseException(503, "busy"));
+        }
+        dao.entered = new CountDownLatch(1);
+        dao.release = new CountDownLatch(1);
+        add(indexer, 0, 5);
+        dao.entered.await();
+        add(indexer, 5, 100);
+        dao.release.countDown();
+        indexer.close();
+
+        awaitUntil(() -> dao.getDelivered().size() == 100);
+        assertEquals(documents(0, 100), dao.getDelivered());
+        // The spill queue is removed once it has been replayed
+        File endpoint = BulkIndexer.getSpillRoot(dao, config);
+        awaitUntil(() -> endpoint.list().length == 0);
+        assertTrue(endpoint.delete());
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    public void shouldReplaySpillQueuesLeftBehind() throws Exception {
+        StubDao dao = new StubDao("recovery");
+        File directory = Files.createTempDirectory("spill").toFile();
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setSpillEnabled(true);
+        config.setSpillDirectory(directory.getPath());
+
+        // A queue which has not been drained before the previous JVM stopped
+        File endpoint = BulkIndexer.getSpillRoot(dao, config);
+        SpillQueue orphan = new SpillQueue(new File(endpoint, "orphan"), 1, 1024, SpillQueue.SyncPolicy.NEVER);
+        Properties attributes = new Properties();
+        attributes.setProperty("uri", dao.getUri().toString());
+        orphan.writeAttributes(attributes);
+        assertTrue(orphan.append(Collections.singletonList(document(0).getBytes(StandardCharsets.UTF_8))));
+        orphan.close();
+
+        BulkIndexer indexer = new BulkIndexer(dao, config);
+        awaitUntil(() -> dao.getDelivered().size() == 1);
+        assertEquals(documents(0, 1), dao.getDelivered());
+        indexer.close();
+        awaitUntil(() -> endpoint.list().length == 0);
+        assertTrue(endpoint.delete());
+        assertTrue(directory.delete());
+    }
+
+    /**
+     * Creates an indexer with room for two documents, which holds the first document in a blocked request
+     * and the next two in the buffer.
+     */
+    private static BulkIndexer fillBuffer(StubDao dao, BackpressurePolicy policy) throws Exception {
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setBackpressurePolicy(policy);
+        return fillBuffer(dao, config);
+    }
+
+    private static BulkIndexer fillBuffer(StubDao dao, ElasticsearchWriterConfiguration config) throws Exception {
+        config.setMaxBulkDocuments(1);
+        config.setBufferCapacity(2);
+        BulkIndexer indexer = new BulkIndexer(dao, config);
+        dao.entered = new CountDownLatch(1);
+        dao.release = new CountDownLatch(1);
+        add(indexer, 0, 1);
+        dao.entered.await();
+        add(indexer, 1, 3);
+        return indexer;
+    }
+
+    static void add(BulkIndexer indexer, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            indexer.add(document(i).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    static String document(int i) {
+        return "{\"message\":\"line " + i + "\"}";
+    }
+
+    static List<String> documents(int from, int to) {
+        List<String> documents = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            documents.add(document(i));
+        }
+        return documents;
+    }
+
+    static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for the indexer", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Records the documents of the bulk requests instead of sending them.
+     */
+    static class StubDao extends ElasticSearchDao {
+
+        private final List<List<String>> requests = Collections.synchronizedList(new ArrayList<>());
+        /**
+         * Failures of the next requests.
+         */
+        final BlockingQueue<Exception> failures = new LinkedBlockingQueue<>();
+        /**
+         * Counted down when a request arrives.
+         */
+        volatile CountDownLatch entered = new CountDownLatch(0);
+        /**
+         * Requests wait for it before they complete.
+         */
+        volatile CountDownLatch release = new CountDownLatch(0);
+        volatile int attempts;
+
+        StubDao(String name) {
+            // Circuit breakers and spill directories are shared per endpoint
+            super(URI.create("http://" + name.toLowerCase() + "-" + System.nanoTime() + ":9200/logstash/logs"), null, null);
+        }
+
+        @Override
+        public ElasticSearchDao withUri(URI uri) {
+            return this;
+        }
+
+        @Override
+        public BulkResult pushBulk(byte[] body, int length, BulkEncoding encoding, boolean gzip) throws IOException {
+            attempts++;
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            Exception failure = failures.poll();
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+            String[] lines = new String(body, 0, length, StandardCharsets.UTF_8).split("\n");
+            List<String> documents = new ArrayList<>();
+            // Every document follows its action line
+            for (int i = 1; i < lines.length; i += 2) {
+                documents.add(lines[i]);
+            }
+            requests.add(documents);
+            return BulkResult.SUCCESS;
+        }
+
+        List<List<String>> getRequests() {
+            synchronized (requests) {
+                return new ArrayList<>(requests);
+            }
+        }
+
+        List<String> getDelivered() {
+            List<String> delivered = new ArrayList<>();
+            for (List<String> request : getRequests()) {
+                delivered.addAll(request);
+            }
+            return delivered;
+        }
+    }
+}
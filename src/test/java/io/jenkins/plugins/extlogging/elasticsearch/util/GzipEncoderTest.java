@@ -0,0 +1,49 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public class GzipEncoderTest {
+
+    @Test
+    public void shouldProduceGzipReadableByTheJdk() throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            log.append("{\"index\":{}}\n{\"message\":\"line ").append(i).append("\",\"seq\":").append(i).append("}\n");
+        }
+        byte[] body = log.toString().getBytes(StandardCharsets.UTF_8);
+
+        GzipEncoder encoder = new GzipEncoder();
+        encoder.encode(body, 0, body.length);
+        assertTrue("Body should get smaller, got " + encoder.size(), encoder.size() < body.length / 4);
+        assertArrayEquals(body, decode(encoder));
+
+        // The encoder is reused for the next body
+        encoder.encode(body, 13, 100);
+        byte[] expected = new byte[100];
+        System.arraycopy(body, 13, expected, 0, 100);
+        assertArrayEquals(expected, decode(encoder));
+
+        encoder.encode(new byte[0], 0, 0);
+        assertEquals(0, decode(encoder).length);
+    }
+
+    private static byte[] decode(GzipEncoder encoder) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(encoder.array(), 0, encoder.size()))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
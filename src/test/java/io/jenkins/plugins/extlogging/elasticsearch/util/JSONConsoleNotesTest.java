@@ -0,0 +1,133 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import hudson.console.ConsoleNote;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public class JSONConsoleNotesTest {
+
+    private static final String NOTE = ConsoleNote.PREAMBLE_STR + "c2VyaWFsaXplZA==" + ConsoleNote.POSTAMBLE_STR;
+
+    private static final String[] LINES = {
+            "",
+            "plain line with \"quotes\" and \\ backslashes",
+            NOTE,
+            "a" + NOTE + "b" + NOTE + "c",
+            "\u00e9t\u00e9 \ud83d\ude00 " + NOTE + "\u20ac" + NOTE,
+            "broken " + ConsoleNote.PREAMBLE_STR + "no postamble",
+            "\u001b[31mred\u001b[0m " + NOTE,
+    };
+
+    @Test
+    public void byteLevelScanShouldMatchStringScan() {
+        JSONConsoleNotes.NoteScan scan = new JSONConsoleNotes.NoteScan();
+        for (String line : LINES) {
+            JsonBuffer fromString = new JsonBuffer().startObject();
+            JSONConsoleNotes.writeJSON(line, fromString);
+            fromString.endObject();
+
+            byte[] bytes = ("xx" + line).getBytes(StandardCharsets.UTF_8);
+            JsonBuffer fromBytes = new JsonBuffer().startObject();
+            JSONConsoleNotes.writeJSON(bytes, 2, bytes.length - 2, fromBytes);
+            fromBytes.endObject();
+
+            assertEquals(fromString.toString(), fromBytes.toString());
+
+            // The scan is reused for all lines
+            JsonBuffer reused = new JsonBuffer().startObject();
+            JSONConsoleNotes.writeJSON(bytes, 2, bytes.length - 2, reused, null, scan);
+            reused.endObject();
+            assertEquals(fromString.toString(), reused.toString());
+        }
+    }
+
+    @Test
+    public void byteLevelParseShouldMatchStringParse() {
+        for (String line : LINES) {
+            JSONObject fromString = new JSONObject();
+            JSONConsoleNotes.parseToJSON(line, fromString);
+
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            JSONObject fromBytes = new JSONObject();
+            JSONConsoleNotes.parseToJSON(bytes, bytes.length, StandardCharsets.UTF_8, fromBytes);
+
+            assertEquals(fromString, fromBytes);
+        }
+    }
+
+    @Test
+    public void shouldRemoveNotesInPlace() {
+        for (String line : LINES) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            int length = JSONConsoleNotes.removeNotes(bytes, 0, bytes.length);
+            String expected = line.replace(NOTE, "");
+            assertEquals(expected, new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void shouldReferenceLongNotesThroughDictionary() throws IOException {
+        String payload = "rO0ABXNyACdodWRzb24uY29uc29sZS5IeXBlcmxpbmtOb3RlAAAAAAAAAAECAAJJAAZsZW5ndGg=";
+        String longNote = ConsoleNote.PREAMBLE_STR + payload + ConsoleNote.POSTAMBLE_STR;
+        String line = "see " + longNote + "link" + NOTE;
+        NoteDictionary dictionary = new NoteDictionary();
+
+        JsonBuffer first = new JsonBuffer().startObject();
+        JSONConsoleNotes.writeJSON(line, first, dictionary);
+        first.endObject();
+        assertTrue(dictionary.hasPending());
+        List<byte[]> documents = dictionary.takeDocuments(0);
+        assertEquals(1, documents.size());
+        assertFalse(dictionary.hasPending());
+
+        // Known notes are referenced without a new document, also by the byte-level scan
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        JsonBuffer second = new JsonBuffer().startObject();
+        JSONConsoleNotes.writeJSON(bytes, 0, bytes.length, second, dictionary);
+        second.endObject();
+        assertFalse(dictionary.hasPending());
+        assertEquals(first.toString(), second.toString());
+
+        LogHit hit = read("{\"_source\":" + first + "}");
+        assertEquals("see link", hit.getMessage());
+        assertEquals(2, hit.getAnnotationCount());
+        assertNull(hit.getNote(0));
+        String ref = hit.getNoteRef(0);
+        assertNotNull(ref);
+        // Short notes stay in place
+        assertEquals("c2VyaWFsaXplZA==", hit.getNote(1));
+        assertNull(hit.getNoteRef(1));
+
+        LogHit note = read("{\"_source\":" + new String(documents.get(0), StandardCharsets.UTF_8) + "}");
+        assertEquals(ref, note.getNoteId());
+        assertEquals(payload, note.getDictionaryNote());
+        assertNull(note.getMessage());
+
+        // Unresolved notes are omitted
+        StringWriter w = new StringWriter();
+        JSONConsoleNotes.writeMessage(w, hit.copy(), null);
+        assertEquals("see link" + NOTE + "\n", w.toString());
+    }
+
+    private static LogHit read(String json) throws IOException {
+        LogHit hit = new LogHit();
+        hit.read(new JsonReader(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))));
+        return hit;
+    }
+}
@@ -0,0 +1,78 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public class JsonBufferTest {
+
+    @Test
+    public void shouldSeparateMembersAndElements() {
+        JsonBuffer json = new JsonBuffer(16);
+        json.startObject()
+                .name("a").value(1)
+                .name("b").startArray().value("x").value(true).nullValue().startObject().endObject().endArray()
+                .name("c").value(-42)
+                .endObject();
+        assertEquals("{\"a\":1,\"b\":[\"x\",true,null,{}],\"c\":-42}", json.toString());
+    }
+
+    @Test
+    public void shouldEscapeStrings() {
+        JsonBuffer json = new JsonBuffer();
+        json.value("\"quoted\" \\ \n\t\u001b[8mha:\u00e9\u20ac\ud83d\ude00");
+        assertEquals("\"\\\"quoted\\\" \\\\ \\n\\t\\u001b[8mha:\u00e9\u20ac\ud83d\ude00\"", json.toString());
+    }
+
+    @Test
+    public void shouldReplaceMalformedUtf8() {
+        byte[] bytes = {'a', (byte) 0xC3, (byte) 0xA9, (byte) 0xFF, (byte) 0xED, (byte) 0xA0, (byte) 0x80, '"'};
+        JsonBuffer json = new JsonBuffer();
+        json.value(bytes, 0, bytes.length);
+        assertEquals("\"a\u00e9\ufffd\ufffd\ufffd\ufffd\\\"\"", json.toString());
+        // Positions computed on raw bytes must match the text which gets indexed
+        assertEquals("a\u00e9\ufffd\ufffd\ufffd\ufffd\"".length(), Utf8.utf16Length(bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void shouldReplaceUnpairedSurrogates() {
+        String text = "a\ud800b\udc00\u00e9\ud83d\ude00\ud83d";
+        String replaced = "a\ufffdb\ufffd\u00e9\ud83d\ude00\ufffd";
+        JsonBuffer json = new JsonBuffer();
+        json.value(text);
+        assertEquals("\"" + replaced + "\"", json.toString());
+
+        byte[] encoded = new byte[3 * text.length()];
+        int length = Utf8.encode(text, encoded, 0);
+        assertArrayEquals(replaced.getBytes(StandardCharsets.UTF_8), Arrays.copyOf(encoded, length));
+        // Both write the same bytes, the value only adds the quotes
+        assertEquals(json.size() - 2, length);
+        assertEquals(length, Utf8.encodedLength(text));
+    }
+
+    @Test
+    public void shouldFormatTimestampsInUtc() {
+        JsonBuffer json = new JsonBuffer();
+        json.startArray().timestampValue(0).timestampValue(1529498096789L).timestampValue(951782400000L).endArray();
+        assertEquals("[\"1970-01-01T00:00:00.000Z\",\"2018-06-20T12:34:56.789Z\",\"2000-02-29T00:00:00.000Z\"]",
+                json.toString());
+    }
+
+    @Test
+    public void shouldReuseBuffer() {
+        JsonBuffer json = new JsonBuffer();
+        json.startObject().name("index").startObject().endObject().endObject().newLine();
+        json.startObject().name("a").value(1).endObject().newLine();
+        assertEquals("{\"index\":{}}\n{\"a\":1}\n", json.toString());
+        json.reset().startObject().endObject();
+        assertEquals("{}", json.toString());
+    }
+}
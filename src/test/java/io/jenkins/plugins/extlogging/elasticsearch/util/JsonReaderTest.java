@@ -0,0 +1,126 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public class JsonReaderTest {
+
+    private static final String TEXT = "a\"b\\c\n\u00e9\u20ac\ud83d\ude00\u001b[8m";
+
+    @Test
+    public void shouldReadWhatJsonBufferWrites() throws IOException {
+        JsonBuffer json = new JsonBuffer().startObject()
+                .name("text").value(TEXT)
+                .name("number").value(-42)
+                .name("flag").value(true)
+                .name("nothing").nullValue()
+                .name("list").startArray().value(1).startObject().endObject().endArray()
+                .endObject();
+
+        JsonReader reader = reader(json.toByteArray());
+        reader.beginObject();
+        assertEquals("text", reader.nextName());
+        assertEquals(TEXT, reader.nextString());
+        assertEquals("number", reader.nextName());
+        assertEquals(-42, reader.nextLong());
+        assertEquals("flag", reader.nextName());
+        assertEquals(true, reader.nextBoolean());
+        assertEquals("nothing", reader.nextName());
+        reader.nextNull();
+        assertEquals("list", reader.nextName());
+        reader.skipValue();
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void shouldCopySortValues() throws IOException {
+        JsonReader reader = reader(bytes("[ 1700000000000 , \"a\\u0041\", 1.5e3, null ]"));
+        JsonBuffer copy = new JsonBuffer();
+        reader.copyValue(copy);
+        assertEquals("[1700000000000,\"aA\",1.5e3,null]", copy.toString());
+    }
+
+    @Test
+    public void shouldReadHitsInBothRepresentations() throws IOException {
+        String fields = "{\"_id\":\"1\",\"fields\":{\"@timestamp\":[\"2020-01-01T00:00:00.000Z\"],\"message\":[\"from fields\"]},"
+                + "\"sort\":[1577836800000,7]}";
+        String source = "{\"_source\":{\"message\":\"from source\",\"annotations\":[{\"position\":2,\"note\":\"bm90ZQ==\"}],"
+                + "\"data\":{\"jobId\":\"x\"}},\"sort\":[1,2]}";
+
+        LogHit hit = new LogHit();
+        hit.read(reader(bytes(fields)));
+        assertEquals("from fields", hit.getMessage());
+        assertEquals(0, hit.getAnnotationCount());
+        assertEquals("[1577836800000,7]", hit.getSort().toString());
+
+        hit.read(reader(bytes(source)));
+        assertEquals("from source", hit.getMessage());
+        assertEquals(1, hit.getAnnotationCount());
+        assertEquals(2, hit.getPosition(0));
+        assertEquals("bm90ZQ==", hit.getNote(0));
+        assertEquals("[1,2]", hit.getSort().toString());
+
+        hit.read(reader(bytes("{\"_source\":{\"message\":null}}")));
+        assertNull(hit.getMessage());
+    }
+
+    @Test
+    public void shouldReadFilteredSourceWithDocValues() throws IOException {
+        String hitJson = "{\"_source\":{\"annotations\":[{\"note\":\"bm90ZQ==\",\"position\":0}],\"message\":\"line\"},"
+                + "\"fields\":{\"seq\":[1577836800000001]},\"sort\":[1577836800000001,1577836800000,3]}";
+
+        LogHit hit = new LogHit();
+        hit.read(reader(bytes(hitJson)));
+        assertEquals("line", hit.getMessage());
+        assertEquals(1577836800000001L, hit.getSeq());
+        assertEquals(1, hit.getAnnotationCount());
+        assertEquals(0, hit.getPosition(0));
+        assertEquals("bm90ZQ==", hit.getNote(0));
+        assertEquals("[1577836800000001,1577836800000,3]", hit.getSort().toString());
+    }
+
+    @Test
+    public void shouldRejectMalformedInput() throws IOException {
+        JsonReader reader = reader(bytes("{\"a\" 1}"));
+        reader.beginObject();
+        reader.nextName();
+        try {
+            reader.peek();
+            fail("Missing colon should be rejected");
+        } catch (IOException expected) {
+            // OK
+        }
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns one byte per read, so that every token crosses a buffer boundary.
+     */
+    private static JsonReader reader(byte[] json) {
+        InputStream in = new ByteArrayInputStream(json) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        return new JsonReader(in);
+    }
+}
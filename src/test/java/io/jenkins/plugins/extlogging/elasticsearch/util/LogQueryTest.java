@@ -0,0 +1,48 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public class LogQueryTest {
+
+    @Test
+    public void shouldEscapeValues() {
+        String value = "job \"x\\y\"\n\u0001";
+        String escaped = "\"job \\\"x\\\\y\\\"\\n\\u0001\"";
+        assertEquals("{\"bool\":{\"filter\":[{\"bool\":{\"should\":["
+                + "{\"term\":{\"data.jobId\":" + escaped + "}},"
+                + "{\"term\":{\"data.jobId.keyword\":" + escaped + "}}],"
+                + "\"minimum_should_match\":1}}]}}",
+                new LogQuery().data("jobId", value).toString());
+    }
+
+    @Test
+    public void shouldEscapeKeys() {
+        assertEquals("{\"bool\":{\"filter\":[{\"bool\":{\"should\":["
+                + "{\"term\":{\"data.a\\\"b\":\"1\"}},"
+                + "{\"term\":{\"data.a\\\"b.keyword\":\"1\"}}],"
+                + "\"minimum_should_match\":1}}]}}",
+                new LogQuery().data("a\"b", "1").toString());
+    }
+
+    @Test
+    public void shouldEscapeNoteIds() {
+        assertEquals("{\"bool\":{\"filter\":[{\"terms\":{\"noteId\":[\"a\",\"b\\\"c\"]}}]}}",
+                new LogQuery().noteIds(Arrays.asList("a", "b\"c")).toString());
+    }
+
+    @Test
+    public void shouldCombineSeqBounds() {
+        assertEquals("{\"bool\":{\"filter\":[{\"range\":{\"seq\":{\"gte\":5,\"lt\":9}}}]}}",
+                new LogQuery().fromSeq(5).toSeq(9).toString());
+        assertEquals("{\"bool\":{\"filter\":[{\"range\":{\"seq\":{\"lt\":9}}}]}}",
+                new LogQuery().toSeq(9).toString());
+    }
+}
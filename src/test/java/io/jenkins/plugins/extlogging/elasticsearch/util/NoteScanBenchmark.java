@@ -0,0 +1,97 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import hudson.console.ConsoleNote;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the byte-level console note scan with decoding the line and scanning the {@link String},
+ * for a block of typical build output.
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class NoteScanBenchmark {
+
+    private static final String[] WORDS = {
+            "[INFO]", "Building", "workspace", "/var/lib/jenkins/workspace/job", "Tests run: 42, Failures: 0",
+            "+ mvn -B test", "\u00e9t\u00e9", "\u65e5\u672c\u8a9e", "\"quoted\"", "\u001b[32mgreen\u001b[0m",
+    };
+    private static final String NOTE = ConsoleNote.PREAMBLE_STR
+            + "rO0ABXNyACZodWRzb24uY29uc29sZS5IeXBlcmxpbmtOb3RlAAAAAAAAAAECAAJJAAZsZW5ndGhMAAN1cmx0ABJMamF2YS9sYW5nL1N0cmluZzt4cgAUaHVkc29uLmNvbnNvbGUuQ29uc29sZU5vdGU="
+            + ConsoleNote.POSTAMBLE_STR;
+    private static final int LINES = 1000;
+
+    /**
+     * Share of the lines with a console note.
+     */
+    @Param({"0", "10", "100"})
+    public int notePercent;
+
+    private byte[] output;
+    private int[] offsets;
+    private final JsonBuffer document = new JsonBuffer(4096);
+    private final JSONConsoleNotes.NoteScan scan = new JSONConsoleNotes.NoteScan();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        offsets = new int[LINES + 1];
+        for (int i = 0; i < LINES; i++) {
+            offsets[i] = out.size();
+            StringBuilder line = new StringBuilder();
+            if (random.nextInt(100) < notePercent) {
+                line.append(NOTE);
+            }
+            int words = 1 + random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(bytes, 0, bytes.length);
+        }
+        offsets[LINES] = out.size();
+        output = out.toByteArray();
+    }
+
+    @Benchmark
+    public int byteScan() {
+        for (int i = 0; i < LINES; i++) {
+            document.reset().startObject();
+            JSONConsoleNotes.writeJSON(output, offsets[i], offsets[i + 1] - offsets[i], document, null, scan);
+            document.endObject();
+        }
+        return document.size();
+    }
+
+    @Benchmark
+    public int stringScan() {
+        for (int i = 0; i < LINES; i++) {
+            document.reset().startObject();
+            String line = new String(output, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+            JSONConsoleNotes.writeJSON(line, document);
+            document.endObject();
+        }
+        return document.size();
+    }
+}
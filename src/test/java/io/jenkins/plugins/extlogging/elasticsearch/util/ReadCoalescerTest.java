@@ -0,0 +1,129 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public class ReadCoalescerTest {
+
+    @Test
+    public void shouldShareReadWithoutWaitingForSlowReaders() throws Exception {
+        byte[] content = content(20000);
+        AtomicInteger reads = new AtomicInteger();
+        CountDownLatch go = new CountDownLatch(1);
+        ReadCoalescer.Read read = out -> {
+            reads.incrementAndGet();
+            await(go);
+            for (int i = 0; i < content.length; i += 1000) {
+                out.write(content, i, 1000);
+            }
+            return 42;
+        };
+        CountDownLatch unblock = new CountDownLatch(1);
+        ByteArrayOutputStream slowOut = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                await(unblock);
+                super.write(b, off, len);
+            }
+        };
+        ByteArrayOutputStream out1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Long> slow = executor.submit(() -> ReadCoalescer.get().read("shared", slowOut, read));
+            while (reads.get() == 0) {
+                Thread.sleep(10);
+            }
+            Future<Long> fast1 = executor.submit(() -> ReadCoalescer.get().read("shared", out1, read));
+            Future<Long> fast2 = executor.submit(() -> ReadCoalescer.get().read("shared", out2, read));
+            go.countDown();
+
+            assertEquals(42L, (long) fast1.get(10, TimeUnit.SECONDS));
+            assertEquals(42L, (long) fast2.get(10, TimeUnit.SECONDS));
+            assertArrayEquals(content, out1.toByteArray());
+            assertArrayEquals(content, out2.toByteArray());
+            assertFalse(slow.isDone());
+
+            unblock.countDown();
+            assertEquals(42L, (long) slow.get(10, TimeUnit.SECONDS));
+            assertArrayEquals(content, slowOut.toByteArray());
+            assertEquals(1, reads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldReadAgainIfSharedReadFailedBeforeOutput() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        CountDownLatch joined = new CountDownLatch(1);
+        ReadCoalescer.Read read = out -> {
+            if (reads.incrementAndGet() == 1) {
+                await(joined);
+                throw new IOException("Elasticsearch is not available");
+            }
+            out.write('x');
+            return 7;
+        };
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Long> starter = executor.submit(() -> ReadCoalescer.get().read("failing", new ByteArrayOutputStream(), read));
+            while (reads.get() == 0) {
+                Thread.sleep(10);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Future<Long> joiner = executor.submit(() -> ReadCoalescer.get().read("failing", out, read));
+            // Lets the joiner join the read before it fails
+            Thread.sleep(100);
+            joined.countDown();
+
+            try {
+                starter.get(10, TimeUnit.SECONDS);
+                fail("The read of the starter should fail");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IOException);
+            }
+            assertEquals(7L, (long) joiner.get(10, TimeUnit.SECONDS));
+            assertEquals("x", out.toString("UTF-8"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        return content;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package io.jenkins.plugins.extlogging.elasticsearch.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Oleg Nenashev
+ * @since TODO
+ */
+public class SmileEncoderTest {
+
+    @Test
+    public void shouldEncodeDocuments() throws IOException {
+        SmileEncoder encoder = new SmileEncoder();
+        write(encoder, "{\"a\":1,\"b\":\"xy\",\"c\":[true,null],\"d\":-20}");
+        assertArrayEquals(bytes(0x3A, 0x29, 0x0A, 0x00, 0xFA,
+                0x80, 'a', 0xC2,
+                0x80, 'b', 0x41, 'x', 'y',
+                0x80, 'c', 0xF8, 0x23, 0x21, 0xF9,
+                0x80, 'd', 0x24, 0xA7,
+                0xFB, 0xFF), encoded(encoder));
+
+        // Documents are appended until the reset
+        write(encoder, " [ false , \"\" ] ");
+        assertEquals(25 + 9, encoder.size());
+        encoder.reset();
+        write(encoder, "{\"m\":\"\\u00e9\\n\",\"n\":1000}");
+        assertArrayEquals(bytes(0x3A, 0x29, 0x0A, 0x00, 0xFA,
+                0x80, 'm', 0x81, 0xC3, 0xA9, 0x0A,
+                0x80, 'n', 0x24, 0x1F, 0x90,
+                0xFB, 0xFF), encoded(encoder));
+    }
+
+    @Test
+    public void shouldRejectMalformedDocuments() throws IOException {
+        SmileEncoder encoder = new SmileEncoder();
+        write(encoder, "{}");
+        int size = encoder.size();
+        for (String json : Arrays.asList("{\"a\":}", "{\"a\":\"b", "[1,2", "{} {}", "{\"a\":tru}", "\"\\x\"")) {
+            try {
+                write(encoder, json);
+                fail("Expected failure for " + json);
+            } catch (IOException ex) {
+                // expected
+            }
+            assertEquals("Failed document should be discarded", size, encoder.size());
+        }
+    }
+
+    private static void write(SmileEncoder encoder, String json) throws IOException {
+        byte[] b = json.getBytes(StandardCharsets.UTF_8);
+        encoder.writeDocument(b, 0, b.length);
+    }
+
+    private static byte[] encoded(SmileEncoder encoder) {
+        return Arrays.copyOf(encoder.array(), encoder.size());
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+}